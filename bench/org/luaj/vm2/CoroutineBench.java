@@ -0,0 +1,78 @@
+package org.luaj.vm2;
+
+import java.io.ByteArrayInputStream;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.JsePlatform;
+
+/**
+ * Measures the cost of creating coroutines and of switching between them.
+ * <p>
+ * Creation runs coroutines which return at once, so each one costs a create, a resume and the end of its Java thread.
+ * Switching resumes one coroutine which yields in a loop, so each round trip is a resume and a yield.
+ * Suspending creates coroutines which all yield once before any of them is resumed again,
+ * so that many coroutines and their Java threads are alive at the same time.
+ * The generator loop reads values yielded by a {@code coroutine.wrap} iterator, as generator-style code does.
+ * Both are measured in several rounds, the best one is reported.
+ * The backend is chosen as usual, for example with {@code -Dluaj.coroutine.virtual=true}
+ * or {@code -Dluaj.coroutine.stackless=true}.
+ * Usage: {@code java org.luaj.vm2.CoroutineBench [creations [switches [suspended]]]}
+ */
+public final class CoroutineBench
+{
+	private static final int    ROUNDS = 5;
+
+	private static final String SCRIPT = "local create, resume, yield = coroutine.create, coroutine.resume, coroutine.yield\n" +
+	        "local function empty() end\n" +
+	        "local function creations(n)\n" +
+	        "  for i = 1, n do resume(create(empty)) end\n" +
+	        "end\n" +
+	        "local function switches(n)\n" +
+	        "  local co = create(function() while true do yield() end end)\n" +
+	        "  for i = 1, n do resume(co) end\n" +
+	        "end\n" +
+	        "local function suspended(n)\n" +
+	        "  local t = {}\n" +
+	        "  for i = 1, n do t[i] = create(function() yield() end) resume(t[i]) end\n" +
+	        "  for i = 1, n do resume(t[i]) end\n" +
+	        "end\n" +
+	        "local function generator(n)\n" +
+	        "  local s = 0\n" +
+	        "  for v in coroutine.wrap(function() for i = 1, n do yield(i) end end) do s = s + v end\n" +
+	        "  return s\n" +
+	        "end\n" +
+	        "return creations, switches, suspended, generator\n";
+
+	public static void main(String[] args) throws Exception
+	{
+		int creations = (args.length > 0 ? Integer.parseInt(args[0]) : 5000);
+		int switches = (args.length > 1 ? Integer.parseInt(args[1]) : 50000);
+		int suspended = (args.length > 2 ? Integer.parseInt(args[2]) : 2000);
+		LuaValue.valueOf(1);
+		LuaTable _G = JsePlatform.standardGlobals();
+		Varargs f = LuaC.load(new ByteArrayInputStream(SCRIPT.getBytes("UTF-8")), "bench", _G).invoke();
+
+		double create = Double.MAX_VALUE, roundtrip = Double.MAX_VALUE, suspend = Double.MAX_VALUE;
+		double generate = Double.MAX_VALUE;
+		for(int round = 0; round < ROUNDS; round++)
+		{
+			long t = System.nanoTime();
+			f.arg(1).call(LuaValue.valueOf(creations));
+			create = Math.min(create, (System.nanoTime() - t) / 1e3 / creations);
+			t = System.nanoTime();
+			f.arg(2).call(LuaValue.valueOf(switches));
+			roundtrip = Math.min(roundtrip, (System.nanoTime() - t) / 1e3 / switches);
+			t = System.nanoTime();
+			f.arg(3).call(LuaValue.valueOf(suspended));
+			suspend = Math.min(suspend, (System.nanoTime() - t) / 1e3 / suspended);
+			t = System.nanoTime();
+			f.arg(4).call(LuaValue.valueOf(switches));
+			generate = Math.min(generate, (System.nanoTime() - t) / 1e3 / switches);
+		}
+		System.out.printf("create and run to end: %8.2f us per coroutine%n", create);
+		System.out.printf("resume and yield:      %8.2f us per round trip%n", roundtrip);
+		System.out.printf("%6d suspended:       %8.2f us per coroutine%n", suspended, suspend);
+		System.out.printf("generator loop:        %8.2f us per value%n", generate);
+		// the suspended coroutine of the switch loop may keep a Java thread alive
+		System.exit(0);
+	}
+}
@@ -0,0 +1,89 @@
+package org.luaj.vm2;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CountDownLatch;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.JsePlatform;
+
+/**
+ * Measures how scripts scale when each Java thread runs its own bound {@link LuaState}.
+ * <p>
+ * The script calls string methods, so every iteration looks up the current state for the string metatable.
+ * It is run once on the default state before any state is bound, then on 1 to N threads with a bound state each.
+ * Usage: {@code java org.luaj.vm2.LuaStateBench [maxThreads [iterations]]}
+ */
+public final class LuaStateBench
+{
+	private static final String SCRIPT = "local n, s, t = ..., 'hello world', {}\n" +
+	        "local r = 0\n" +
+	        "for i = 1, n do\n" +
+	        "  r = r + s:len() + #s:sub(1, 5)\n" +
+	        "  t[i % 64] = s:upper()\n" +
+	        "end\n" +
+	        "return r\n";
+
+	public static void main(String[] args) throws Exception
+	{
+		int maxThreads = (args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors());
+		final int iterations = (args.length > 1 ? Integer.parseInt(args[1]) : 2000000);
+		LuaValue.valueOf(1);
+
+		LuaFunction f = load();
+		run(f, iterations);
+		long t = System.nanoTime();
+		run(f, iterations);
+		double unbound = iterations / ((System.nanoTime() - t) / 1e9);
+		System.out.printf("unbound default state: %12.0f iterations/s%n", unbound);
+
+		for(int n = 1; n <= maxThreads; n++)
+		{
+			final CountDownLatch ready = new CountDownLatch(n);
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(n);
+			for(int i = 0; i < n; i++)
+			{
+				new Thread()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							LuaState.bind(new LuaState());
+							LuaFunction g = load();
+							LuaStateBench.run(g, iterations);
+							ready.countDown();
+							start.await();
+							LuaStateBench.run(g, iterations);
+						}
+						catch(Exception e)
+						{
+							e.printStackTrace();
+						}
+						finally
+						{
+							done.countDown();
+						}
+					}
+				}.start();
+			}
+			ready.await();
+			t = System.nanoTime();
+			start.countDown();
+			done.await();
+			double total = (double)n * iterations / ((System.nanoTime() - t) / 1e9);
+			System.out.printf("%2d bound state(s):    %12.0f iterations/s, %5.2fx one unbound thread%n", n, total, total / unbound);
+		}
+	}
+
+	private static LuaFunction load() throws Exception
+	{
+		LuaTable _G = JsePlatform.standardGlobals();
+		return LuaC.load(new ByteArrayInputStream(SCRIPT.getBytes("UTF-8")), "bench", _G);
+	}
+
+	static void run(LuaFunction f, int iterations)
+	{
+		f.call(LuaValue.valueOf(iterations));
+	}
+}
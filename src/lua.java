@@ -6,7 +6,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaState;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
@@ -31,6 +33,8 @@ public final class lua
 			"  -i       enter interactive mode after executing 'script'\n" +
 			"  -v       show version information\n" +
 			"  -n      	nodebug - do not load debug library by default\n" +
+			"  -u       unboxed - keep numbers unboxed in registers, requires -n\n" +
+			"  -I       integers - all numbers are integers and / is floor division\n" +
 			"  --       stop handling options\n" +
 			"  -        execute stdin and stop handling options";
 		//@formatter:on
@@ -153,6 +157,12 @@ public final class lua
 						case 'n':
 							nodebug = true;
 							break;
+						case 'u':
+							LuaClosure.unboxed_numbers = true;
+							break;
+						case 'I':
+							LuaState.getDefault().setIntegerOnly(true);
+							break;
 						case '-':
 							if(args[i].length() > 2)
 							    usageExit();
@@ -1,8 +1,20 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import org.luaj.vm2.Lua;
 import org.luaj.vm2.Print;
 import org.luaj.vm2.Prototype;
@@ -16,6 +28,10 @@ import org.luaj.vm2.lib.JsePlatform;
 public final class luac
 {
 	private static String  output       = "luac.out";
+	private static boolean outputset;
+	private static String  batchdir;
+	private static int     threads      = Runtime.getRuntime().availableProcessors();
+	private static boolean timing;
 	private static int     numberformat = DumpState.NUMBER_FORMAT_DEFAULT;
 	private static boolean list;
 	private static boolean parseonly;
@@ -34,10 +50,16 @@ public final class luac
 			"  -l       list\n" +
 			"  -o name  output to file 'name' (default is \"luac.out\")\n" +
 			"  -p       parse only\n" +
+			"  -O       optimize the compiled code\n" +
 			"  -s       strip debug information\n" +
 			"  -e       little endian format for numbers\n" +
 			"  -i<n>    number format 'n', (n=0,1 or 4, default="+DumpState.NUMBER_FORMAT_DEFAULT+")\n" +
 			"  -v       show version information\n" +
+			"  -b dir   compile each .lua file under directory 'dir' to a .luac file,\n" +
+			"           in the same tree under the -o directory, in the -o archive if it ends\n" +
+			"           with .zip, or next to the source without -o\n" +
+			"  -j<n>    compile -b files with n threads (default=number of processors)\n" +
+			"  -t       report the compile time of each -b file\n" +
 			"  --       stop handling options\n";
 		//@formatter:on
 		System.out.println(usage);
@@ -71,8 +93,166 @@ public final class luac
 		}
 	}
 
+	/** Compiled output of one file of a batch */
+	private static final class Result
+	{
+		byte[]    bytes;
+		long      nanos;
+		Throwable error;
+	}
+
+	/**
+	 * Compile all lua files under a directory on a pool of threads.
+	 * Each file is compiled on its own, so the outputs do not depend on the number of threads.
+	 * Files are listed, archived and reported in the order of their sorted paths.
+	 * @return true if all files compiled
+	 */
+	private static boolean processBatch(File root) throws IOException
+	{
+		List<String> names = new ArrayList<String>();
+		collect(root, "", names);
+		final File in = root;
+		final File out = (!outputset ? root : output.endsWith(".zip") ? null : new File(output));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Result>> results = new ArrayList<Future<Result>>(names.size());
+		long start = System.nanoTime(), total = 0;
+		for(final String name : names)
+		{
+			results.add(pool.submit(new Callable<Result>()
+			{
+				@Override
+				public Result call()
+				{
+					return compileFile(new File(in, name), name, out);
+				}
+			}));
+		}
+		pool.shutdown();
+		ZipOutputStream zip = (out == null ? new ZipOutputStream(new FileOutputStream(output)) : null);
+		int failed = 0;
+		try
+		{
+			for(int i = 0, n = names.size(); i < n; i++)
+			{
+				String name = names.get(i);
+				Result r;
+				try
+				{
+					r = results.get(i).get();
+				}
+				catch(InterruptedException e)
+				{
+					throw new IOException("interrupted");
+				}
+				catch(ExecutionException e)
+				{
+					r = new Result();
+					r.error = e.getCause(); // also errors such as StackOverflowError
+				}
+				if(r.error != null)
+				{
+					System.err.println(name + ": " + r.error);
+					failed++;
+					continue;
+				}
+				total += r.nanos;
+				if(timing)
+				    System.out.println(String.format("%9.3f ms %9d bytes  %s", r.nanos / 1e6, r.bytes.length, name));
+				if(zip != null && !parseonly)
+				{
+					ZipEntry e = new ZipEntry(outputName(name));
+					e.setTime(0); // same archive for the same sources
+					zip.putNextEntry(e);
+					zip.write(r.bytes);
+					zip.closeEntry();
+				}
+			}
+		}
+		finally
+		{
+			if(zip != null)
+			    zip.close();
+		}
+		if(timing)
+		    System.out.println(String.format("%d files, %d failed, %.3f ms compiling, %.3f ms elapsed with %d threads",
+		            names.size(), failed, total / 1e6, (System.nanoTime() - start) / 1e6, threads));
+		return failed == 0;
+	}
+
+	private static void collect(File dir, String prefix, List<String> names) throws IOException
+	{
+		String[] list = dir.list();
+		if(list == null)
+		    throw new IOException("cannot list directory " + dir);
+		Arrays.sort(list);
+		for(String f : list)
+		{
+			File file = new File(dir, f);
+			if(file.isDirectory())
+				collect(file, prefix + f + '/', names);
+			else if(f.endsWith(".lua"))
+			    names.add(prefix + f);
+		}
+	}
+
+	private static String outputName(String name)
+	{
+		return name.substring(0, name.length() - 4) + ".luac";
+	}
+
+	/** Compile one file of a batch, writing it to the output directory if there is one */
+	private static Result compileFile(File file, String name, File outdir)
+	{
+		Result r = new Result();
+		try
+		{
+			byte[] src = new byte[(int)file.length()];
+			InputStream is = new FileInputStream(file);
+			try
+			{
+				int n = 0;
+				for(int k; n < src.length && (k = is.read(src, n, src.length - n)) > 0;)
+					n += k;
+				if(n < src.length)
+				    src = Arrays.copyOf(src, n);
+			}
+			finally
+			{
+				is.close();
+			}
+			long t = System.nanoTime();
+			Prototype chunk = LuaC.compile(src, 0, src.length, name.substring(0, name.length() - 4));
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(src.length);
+			DumpState.dump(chunk, baos, stripdebug, numberformat, littleendian);
+			r.nanos = System.nanoTime() - t;
+			r.bytes = baos.toByteArray();
+			if(outdir != null && !parseonly)
+			{
+				File f = new File(outdir, outputName(name));
+				File dir = f.getParentFile();
+				if(!dir.isDirectory() && !dir.mkdirs())
+				    throw new IOException("cannot create directory " + dir);
+				OutputStream os = new FileOutputStream(f);
+				try
+				{
+					os.write(r.bytes);
+				}
+				finally
+				{
+					os.close();
+				}
+			}
+		}
+		catch(Exception e)
+		{
+			r.error = e;
+		}
+		return r;
+	}
+
 	public static void main(String[] args)
 	{
+		LuaC.lazy = false; // dumped chunks hold all code anyway
 		try
 		{
 			// get stateful args
@@ -97,10 +277,26 @@ public final class luac
 							if(++i >= args.length)
 							    usageExit();
 							output = args[i];
+							outputset = true;
+							break;
+						case 'b':
+							if(++i >= args.length)
+							    usageExit();
+							batchdir = args[i];
+							break;
+						case 'j':
+							if(args[i].length() <= 2 || (threads = Integer.parseInt(args[i].substring(2))) <= 0)
+							    usageExit();
+							break;
+						case 't':
+							timing = true;
 							break;
 						case 'p':
 							parseonly = true;
 							break;
+						case 'O':
+							LuaC.optimize = true;
+							break;
 						case 's':
 							stripdebug = true;
 							break;
@@ -130,6 +326,13 @@ public final class luac
 			if(versioninfo)
 			    System.out.println(Lua._VERSION + "Copyright (C) 2009 luaj.org");
 
+			if(batchdir != null)
+			{
+				if(!processBatch(new File(batchdir)))
+				    System.exit(-1);
+				return;
+			}
+
 			OutputStream fos = new FileOutputStream(output);
 
 			// process input files
@@ -161,6 +364,7 @@ public final class luac
 						switch(args[i].charAt(1))
 						{
 							case 'o':
+							case 'b':
 								++i;
 								break;
 							case '-':
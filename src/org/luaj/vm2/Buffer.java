@@ -165,6 +165,30 @@ public final class Buffer
 		return this;
 	}
 
+	/**
+	 * Append the decimal digits of a long value to the buffer.
+	 * @return {@code this} to allow call chaining
+	 * @see LuaString#formatLong(long, byte[], int)
+	 */
+	public Buffer append(long v)
+	{
+		makeroom(0, LuaString.MAX_LONG_CHARS);
+		_length = LuaString.formatLong(v, _bytes, _offset + _length) - _offset;
+		return this;
+	}
+
+	/**
+	 * Append a double value to the buffer, formatted as by {@link LuaDouble#tojstring()}.
+	 * @return {@code this} to allow call chaining
+	 * @see LuaString#formatDouble(double, byte[], int)
+	 */
+	public Buffer append(double v)
+	{
+		makeroom(0, LuaString.MAX_DOUBLE_CHARS);
+		_length = LuaString.formatDouble(v, _bytes, _offset + _length) - _offset;
+		return this;
+	}
+
 	/** Concatenate this buffer onto a {@link LuaValue}
 	 * @param lhs the left-hand-side value onto which we are concatenating {@code this}
 	 * @return {@link Buffer} for use in call chaining.
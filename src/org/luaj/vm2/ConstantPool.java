@@ -0,0 +1,135 @@
+package org.luaj.vm2;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Weak pool of the string and number constants of all loaded chunks.
+ * <p>
+ * When {@link #enabled} is set, the compiler and {@link LoadState} pass each string and number constant,
+ * and the names of locals and upvalues, through {@link #intern(LuaValue)}.
+ * Equal constants of all chunks and all {@link LuaState}s are then the same object,
+ * which saves memory and lets table lookups and comparisons of constant keys succeed on identity.
+ * Constants are immutable, so sharing them is safe.
+ * The pool only holds its entries weakly, they are removed once no function refers to them any more.
+ */
+public final class ConstantPool
+{
+	/** Intern the constants of chunks compiled or loaded from now on.
+	 * Defaults to the system property {@code luaj.constant.pool}.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean                                   enabled = Boolean.getBoolean("luaj.constant.pool");
+
+	private static final ConcurrentHashMap<Object, Ref>     pool    = new ConcurrentHashMap<Object, Ref>();
+	private static final ReferenceQueue<LuaValue>           queue   = new ReferenceQueue<LuaValue>();
+	private static final StripedCounter                     hits    = new StripedCounter();
+	private static final AtomicLong                         misses  = new AtomicLong();
+
+	private ConstantPool()
+	{
+	}
+
+	/** Weak reference to a pooled constant which remembers its key for expunging */
+	private static final class Ref extends WeakReference<LuaValue>
+	{
+		final Object _key;
+
+		Ref(LuaValue v, Object key)
+		{
+			super(v, queue);
+			_key = key;
+		}
+	}
+
+	/**
+	 * Get the pooled constant equal to a value, adding the value if there is none.
+	 * The value is returned as it is if it is neither a string nor a number.
+	 * @param v constant, which must not be changed any more, and for strings should not be a view into a larger array
+	 * @return the pooled constant
+	 */
+	public static LuaValue intern(LuaValue v)
+	{
+		Object k = (v instanceof LuaString ? v : key(v));
+		if(k == null)
+		    return v;
+		Ref r = pool.get(k);
+		LuaValue c = (r != null ? r.get() : null);
+		if(c != null)
+		{
+			hits.increment();
+			return c;
+		}
+		misses.incrementAndGet();
+		expunge();
+		if(k == v)
+		    k = key(v);
+		do
+		{
+			if(r != null)
+			    pool.remove(k, r);
+			Ref rr = new Ref(v, k);
+			r = pool.putIfAbsent(k, rr);
+			if(r == null) r = rr;
+			c = r.get();
+		}
+		while(c == null);
+		return c;
+	}
+
+	/** @see #intern(LuaValue) */
+	public static LuaString intern(LuaString s)
+	{
+		return (LuaString)intern((LuaValue)s);
+	}
+
+	/**
+	 * Get a key equal to the keys of equal constants, which does not refer to the constant itself.
+	 * Doubles are keyed by their bits, so 0 and -0 stay apart.
+	 * @return the key, or null for values which are not pooled
+	 */
+	private static Object key(LuaValue v)
+	{
+		if(v instanceof LuaString)
+		{
+			LuaString s = (LuaString)v;
+			return LuaString.valueOf(s._bytes, s._offset, s._length);
+		}
+		if(v instanceof LuaInteger)
+		    return Integer.valueOf(v.toint());
+		if(v instanceof LuaLong)
+		    return Long.valueOf(v.tolong());
+		if(v instanceof LuaDouble)
+		    return Double.valueOf(v.todouble());
+		return null;
+	}
+
+	/** Remove the entries whose constants have been collected */
+	private static void expunge()
+	{
+		Reference<? extends LuaValue> r;
+		while((r = queue.poll()) != null)
+			pool.remove(((Ref)r)._key, r);
+	}
+
+	/** @return the number of constants found in the pool */
+	public static long getHitCount()
+	{
+		return hits.get();
+	}
+
+	/** @return the number of constants added to the pool */
+	public static long getMissCount()
+	{
+		return misses.get();
+	}
+
+	/** @return the current number of entries, including not yet expunged ones */
+	public static int size()
+	{
+		return pool.size();
+	}
+}
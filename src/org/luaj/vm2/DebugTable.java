@@ -0,0 +1,259 @@
+package org.luaj.vm2;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed side table holding the debug information of the functions of a chunk.
+ * <p>
+ * {@link #detach(Prototype)} moves the line info, local and upvalue names out of a function and all functions nested in it
+ * into one deflated table, leaving the fields null until {@link Prototype#debug()} restores them for a function.
+ * The debug library, error tracebacks with line numbers, {@link Print} and the dumper call it,
+ * so they work as before, only the first use of each function is slower.
+ * Lines are stored as differences to the line before, so the table is usually a small fraction
+ * of the {@code int[]} and {@link LocVars} objects it replaces.
+ * The inflated table is kept softly while functions of the chunk are restored.
+ * <p>
+ * When {@link #detach_all} is set, chunks compiled by {@code LuaC} and loaded by {@link LoadState} are detached at load time.
+ * Functions loaded by {@link LoadState#mapBinaryChunk(java.io.File, String)} already read their debug information
+ * from the file on demand.
+ */
+public final class DebugTable
+{
+	/** Detach the debug information of all chunks when they are compiled or loaded.
+	 * Defaults to the system property {@code luaj.debug.detach}.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean                 detach_all = Boolean.getBoolean("luaj.debug.detach");
+
+	private final byte[]                  _packed;
+	private final int                     _size;
+	private volatile SoftReference<byte[]> _unpacked;
+
+	private DebugTable(byte[] packed, int size)
+	{
+		_packed = packed;
+		_size = size;
+	}
+
+	/**
+	 * Move the debug information of a function and the functions nested in it into a new table.
+	 * Functions whose body or debug information is still deferred are skipped, and so are functions without debug information.
+	 * @param p compiled or loaded function
+	 */
+	public static void detach(Prototype p)
+	{
+		ArrayList<Prototype> list = new ArrayList<Prototype>();
+		collect(p, list);
+		if(list.isEmpty())
+		    return;
+		Writer w = new Writer();
+		int[] offsets = new int[list.size()];
+		for(int i = 0; i < offsets.length; i++)
+		{
+			offsets[i] = w.size();
+			w.function(list.get(i));
+		}
+		Deflater d = new Deflater(Deflater.BEST_SPEED);
+		d.setInput(w.buf(), 0, w.size());
+		d.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(w.size() / 4 + 16);
+		byte[] b = new byte[4096];
+		while(!d.finished())
+			out.write(b, 0, d.deflate(b));
+		d.end();
+		DebugTable t = new DebugTable(out.toByteArray(), w.size());
+		for(int i = 0; i < offsets.length; i++)
+		{
+			Prototype f = list.get(i);
+			f.lineinfo = null;
+			f.locvars = null;
+			f.upvalues = null;
+			f.lazydebug = new Entry(t, offsets[i]);
+		}
+	}
+
+	private static void collect(Prototype p, ArrayList<Prototype> list)
+	{
+		if(p.lazy != null || p.lazydebug != null)
+		    return;
+		if(p.lineinfo != null && p.locvars != null && p.upvalues != null)
+		    list.add(p);
+		if(p.p != null)
+		    for(Prototype c : p.p)
+			    collect(c, list);
+	}
+
+	/** @return the packed size of this table in bytes */
+	public int getPackedSize()
+	{
+		return _packed.length;
+	}
+
+	private byte[] unpack()
+	{
+		SoftReference<byte[]> r = _unpacked;
+		byte[] b = (r != null ? r.get() : null);
+		if(b == null)
+		{
+			b = new byte[_size];
+			Inflater inf = new Inflater();
+			try
+			{
+				inf.setInput(_packed);
+				for(int n = 0; n < _size && !inf.finished();)
+					n += inf.inflate(b, n, _size - n);
+			}
+			catch(DataFormatException e)
+			{
+				throw new IllegalStateException(e);
+			}
+			finally
+			{
+				inf.end();
+			}
+			_unpacked = new SoftReference<byte[]>(b);
+		}
+		return b;
+	}
+
+	/** Debug information of one function, at its offset in the unpacked table */
+	private static final class Entry implements Prototype.Body
+	{
+		private final DebugTable _table;
+		private final int        _pos;
+
+		Entry(DebugTable table, int pos)
+		{
+			_table = table;
+			_pos = pos;
+		}
+
+		@Override
+		public void compile(Prototype p)
+		{
+			Reader r = new Reader(_table.unpack(), _pos);
+			int n = r.uint();
+			int[] lineinfo = new int[n];
+			for(int i = 0, line = 0; i < n; i++)
+				lineinfo[i] = line += r.sint();
+			n = r.uint();
+			LocVars[] locvars = new LocVars[n];
+			for(int i = 0; i < n; i++)
+			{
+				LuaString name = r.string();
+				int startpc = r.uint();
+				locvars[i] = new LocVars(name, startpc, startpc + r.uint());
+			}
+			n = r.uint();
+			LuaString[] upvalues = new LuaString[n];
+			for(int i = 0; i < n; i++)
+				upvalues[i] = r.string();
+			p.lineinfo = lineinfo;
+			p.locvars = locvars;
+			p.upvalues = upvalues;
+		}
+	}
+
+	/** Encodes functions with variable length numbers */
+	private static final class Writer extends ByteArrayOutputStream
+	{
+		Writer()
+		{
+			super(1024);
+		}
+
+		byte[] buf()
+		{
+			return buf;
+		}
+
+		void function(Prototype f)
+		{
+			int[] li = f.lineinfo;
+			uint(li.length);
+			for(int i = 0, line = 0; i < li.length; line = li[i++])
+				sint(li[i] - line);
+			uint(f.locvars.length);
+			for(LocVars v : f.locvars)
+			{
+				string(v._varname);
+				uint(v._startpc);
+				uint(v._endpc - v._startpc);
+			}
+			uint(f.upvalues.length);
+			for(LuaString s : f.upvalues)
+				string(s);
+		}
+
+		void uint(int v)
+		{
+			for(; (v & ~0x7f) != 0; v >>>= 7)
+				write((v & 0x7f) | 0x80);
+			write(v);
+		}
+
+		void sint(int v)
+		{
+			uint((v << 1) ^ (v >> 31));
+		}
+
+		void string(LuaString s)
+		{
+			if(s == null)
+			{
+				uint(0);
+				return;
+			}
+			uint(s._length + 1);
+			write(s._bytes, s._offset, s._length);
+		}
+	}
+
+	/** Decodes what {@link Writer} encoded */
+	private static final class Reader
+	{
+		private final byte[] _b;
+		private int          _pos;
+
+		Reader(byte[] b, int pos)
+		{
+			_b = b;
+			_pos = pos;
+		}
+
+		int uint()
+		{
+			int v = 0;
+			for(int shift = 0;; shift += 7)
+			{
+				int c = _b[_pos++];
+				v |= (c & 0x7f) << shift;
+				if(c >= 0)
+				    return v;
+			}
+		}
+
+		int sint()
+		{
+			int v = uint();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		LuaString string()
+		{
+			int n = uint() - 1;
+			if(n < 0)
+			    return null;
+			byte[] b = new byte[n];
+			System.arraycopy(_b, _pos, b, 0, n);
+			_pos += n;
+			LuaString s = LuaString.valueOf(b);
+			return ConstantPool.enabled ? ConstantPool.intern(s) : s;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package org.luaj.vm2;
 
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -48,6 +49,7 @@ public final class LoadState
 	public static final int          NUMBER_FORMAT_NUM_PATCH_INT32   = 4;
 
 	// type constants
+	public static final int          LUA_TLONG                       = -3;
 	public static final int          LUA_TINT                        = -2;
 	public static final int          LUA_TNONE                       = -1;
 	public static final int          LUA_TNIL                        = 0;
@@ -82,6 +84,12 @@ public final class LoadState
 	/** size of header of binary files */
 	public static final int          LUAC_HEADERSIZE                 = 12;
 
+	/** Load binary chunk files with {@link #mapBinaryChunk(File, String)} where {@code loadfile}, {@code dofile} and {@code require} load files.
+	 * Defaults to the system property {@code luaj.chunk.mapped}.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean            mapped_chunks                   = Boolean.getBoolean("luaj.chunk.mapped");
+
 	/** input stream from which we are loading */
 	private final DataInputStream    _is;
 
@@ -155,13 +163,15 @@ public final class LoadState
 		    return null;
 		byte[] bytes = new byte[size];
 		_is.readFully(bytes, 0, size);
-		return LuaString.valueOf(bytes, 0, bytes.length - 1);
+		LuaString s = LuaString.valueOf(bytes, 0, bytes.length - 1);
+		return ConstantPool.enabled ? ConstantPool.intern(s) : s;
 	}
 
 	/**
 	 * Convert bits in a long value to a {@link LuaValue}.
 	 * @param bits long value containing the bits
-	 * @return {@link LuaInteger} or {@link LuaDouble} whose value corresponds to the bits provided.
+	 * @return {@link LuaInteger}, {@link LuaLong} or {@link LuaDouble} whose value corresponds to the bits provided.
+	 * @throws LuaError if the value is not integral in {@link LuaNumber#isIntegerOnly()} mode
 	 */
 	public static LuaValue longBitsToLuaNumber(long bits)
 	{
@@ -184,7 +194,10 @@ public final class LoadState
 			}
 		}
 
-		return LuaValue.valueOf(Double.longBitsToDouble(bits));
+		double d = Double.longBitsToDouble(bits);
+		if(LuaNumber.isIntegerOnly() && d != (long)d)
+		    throw new LuaError("number has no integer representation: " + d);
+		return LuaValue.valueOf(d);
 	}
 
 	/**
@@ -221,6 +234,9 @@ public final class LoadState
 				case LUA_TINT:
 					values[i] = LuaInteger.valueOf(loadInt());
 					break;
+				case LUA_TLONG:
+					values[i] = LuaInteger.valueOf(loadInt64());
+					break;
 				case LUA_TNUMBER:
 					values[i] = loadNumber();
 					break;
@@ -230,6 +246,8 @@ public final class LoadState
 				default:
 					throw new IllegalStateException("bad constant");
 			}
+			if(ConstantPool.enabled)
+			    values[i] = ConstantPool.intern(values[i]);
 		}
 		f.k = values;
 
@@ -346,7 +364,26 @@ public final class LoadState
 			default:
 				throw new LuaError("unsupported int size");
 		}
-		return s.loadFunction(LuaString.valueOf(sname));
+		Prototype p = s.loadFunction(LuaString.valueOf(sname));
+		if(DebugTable.detach_all)
+		    DebugTable.detach(p);
+		return p;
+	}
+
+	/**
+	 * Load a binary chunk file by mapping it into memory.
+	 * Only the main function is decoded now, nested functions are decoded when their first closure is created
+	 * and debug information when it is read, so functions which are never called cost little time and memory.
+	 * The file must not be changed while functions loaded from it are in use.
+	 * @param file file holding a binary chunk
+	 * @param name Name to apply to the loaded chunk
+	 * @return {@link Prototype} that was loaded
+	 * @throws IllegalArgumentException if the signature is bad or the chunk is truncated
+	 * @throws IOException if an IOException occurs
+	 */
+	public static Prototype mapBinaryChunk(File file, String name) throws IOException
+	{
+		return MappedChunk.load(file, name);
 	}
 
 	/**
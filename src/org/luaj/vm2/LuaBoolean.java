@@ -20,9 +20,6 @@ package org.luaj.vm2;
  */
 public final class LuaBoolean extends LuaValue
 {
-	/** Shared static metatable for boolean values represented in lua. */
-	public static LuaValue s_metatable;
-
 	public final boolean   v;
 
 	LuaBoolean(boolean b)
@@ -90,6 +87,6 @@ public final class LuaBoolean extends LuaValue
 	@Override
 	public LuaValue getmetatable()
 	{
-		return s_metatable;
+		return LuaState.current()._booleanMetatable;
 	}
 }
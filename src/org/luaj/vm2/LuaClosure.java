@@ -1,6 +1,7 @@
 package org.luaj.vm2;
 
 import org.luaj.vm2.lib.LibDebug;
+import org.luaj.vm2.lib.LibMath;
 
 /**
  * Extension of {@link LuaFunction} which executes lua bytecode.
@@ -58,7 +59,14 @@ import org.luaj.vm2.lib.LibDebug;
  */
 public final class LuaClosure extends LuaFunction
 {
-	private static final UpValue[] NOUPVALUES = {};
+	private static final UpValue[] NOUPVALUES      = {};
+	private static final double[]  NONUMS          = {};
+
+	/** Execute with numbers kept unboxed in registers, see {@link #executeUnboxed(LuaValue[], Varargs)}.
+	 * This can be changed by Java startup code if desired,
+	 * it has no effect while the debug library is enabled or in {@link LuaNumber#isIntegerOnly()} mode.
+	 */
+	public static boolean          unboxed_numbers = false;
 
 	public final Prototype         _p;
 	public final UpValue[]         _upValues;
@@ -66,6 +74,7 @@ public final class LuaClosure extends LuaFunction
 	public LuaClosure(Prototype p, LuaValue env)
 	{
 		super(env);
+		p.compile();
 		_p = p;
 		_upValues = p.nups > 0 ? new UpValue[p.nups] : NOUPVALUES;
 	}
@@ -91,7 +100,7 @@ public final class LuaClosure extends LuaFunction
 	@Override
 	public LuaValue getmetatable()
 	{
-		return s_metatable;
+		return LuaState.current()._functionMetatable;
 	}
 
 	@Override
@@ -179,6 +188,9 @@ public final class LuaClosure extends LuaFunction
 	@SuppressWarnings("null")
 	protected Varargs execute(LuaValue[] stack, Varargs varargs)
 	{
+		if(unboxed_numbers && !LibDebug.DEBUG_ENABLED && !LuaNumber.isIntegerOnly())
+		    return executeUnboxed(stack, varargs);
+
 		// loop through instructions
 		int i, a, b, c, pc = 0, top = 0;
 		LuaValue o;
@@ -519,4 +531,477 @@ public final class LuaClosure extends LuaFunction
 				        openups[u].close();
 		}
 	}
+
+	/** Test if a register or constant holds a number which can be used unboxed, null meaning a raw number */
+	private static boolean isnum(LuaValue o)
+	{
+		return o == null || o instanceof LuaInteger || o instanceof LuaDouble;
+	}
+
+	/** Get the value of a register, boxing its raw number on first use */
+	private static LuaValue box(LuaValue[] stack, double[] nums, int r)
+	{
+		LuaValue o = stack[r];
+		return o != null ? o : (stack[r] = LuaDouble.valueOf(nums[r]));
+	}
+
+	/** Box the raw numbers of the registers in [from, to) before they are read as an array */
+	private static void box(LuaValue[] stack, double[] nums, int from, int to)
+	{
+		for(; from < to; ++from)
+			if(stack[from] == null)
+			    stack[from] = LuaDouble.valueOf(nums[from]);
+	}
+
+	/** Set a register to a raw number, or to a boxed one if an upvalue refers to it */
+	private static void setnum(LuaValue[] stack, double[] nums, UpValue[] openups, int r, double d)
+	{
+		if(openups != null && openups[r] != null)
+			stack[r] = LuaDouble.valueOf(d);
+		else
+		{
+			stack[r] = null;
+			nums[r] = d;
+		}
+	}
+
+	/**
+	 * Count the registers which the instructions of a prototype may set to a raw number, see {@link #setnum}.
+	 * Arithmetic and numeric for-loops make raw numbers, a move only copies one from a register which may hold one.
+	 * @return one more than the highest such register, 0 if there is none
+	 */
+	private static int numregs(Prototype p)
+	{
+		int[] code = p.code;
+		boolean[] raw = new boolean[256];
+		int n = 0;
+		for(int i : code)
+		{
+			int a = (i >> 6) & 0xff;
+			switch(i & 0x3f)
+			{
+				case Lua.OP_FORLOOP:
+					raw[a + 3] = true;
+					//$FALL-THROUGH$
+				case Lua.OP_ADD:
+				case Lua.OP_SUB:
+				case Lua.OP_MUL:
+				case Lua.OP_DIV:
+				case Lua.OP_MOD:
+				case Lua.OP_POW:
+				case Lua.OP_UNM:
+				case Lua.OP_FORPREP:
+					raw[a] = true;
+					n = 1;
+					break;
+			}
+		}
+		// moves spread raw numbers between registers in any order of the code, so repeat until nothing changes
+		for(boolean changed = (n > 0); changed;)
+		{
+			changed = false;
+			for(int i : code)
+			{
+				if((i & 0x3f) == Lua.OP_MOVE && raw[i >>> 23] && !raw[(i >> 6) & 0xff])
+				    changed = raw[(i >> 6) & 0xff] = true;
+			}
+		}
+		for(n = raw.length; n > 0 && !raw[n - 1];)
+			--n;
+		return n;
+	}
+
+	/**
+	 * Execute the bytecode keeping the results of arithmetic in a parallel double array.
+	 * <p>
+	 * A null register in {@code stack} marks that its value is the raw number in {@code nums}.
+	 * Arithmetic, comparison, move and numeric for-loop instructions work on the raw numbers.
+	 * All other instructions box the registers they read,
+	 * so a number is only boxed when it escapes into a table, a call, an upvalue or a return value.
+	 * Registers referred to by open upvalues always stay boxed.
+	 * Integer results beyond the exact range of double take the boxed path, so {@link LuaLong} stays exact.
+	 */
+	@SuppressWarnings("null")
+	private Varargs executeUnboxed(LuaValue[] stack, Varargs varargs)
+	{
+		// loop through instructions
+		int i, a, b, c, pc = 0, top = 0;
+		LuaValue o, ob, oc;
+		Varargs v = NONE;
+		int[] code = _p.code;
+		LuaValue[] k = _p.k;
+		int n = _p.numregs;
+		if(n < 0)
+		    _p.numregs = n = numregs(_p);
+		double[] nums = (n > 0 ? new double[n] : NONUMS);
+
+		// upvalues are only possible when closures create closures
+		UpValue[] openups = _p.p.length > 0 ? new UpValue[stack.length] : null;
+
+		// create varargs "arg" table
+		if(_p.is_vararg >= Lua.VARARG_NEEDSARG)
+		    stack[_p.numparams] = new LuaTable(varargs);
+
+		// process instructions
+		LuaThread.CallStack cs = LuaThread.onCall(this);
+		try
+		{
+			for(;;)
+			{
+				i = code[pc++];
+				a = (i >> 6) & 0xff;
+
+				switch(i & 0x3f)
+				{
+					case Lua.OP_MOVE:/*	A B	R(A):= R(B)					*/
+						if((o = stack[b = i >>> 23]) == null)
+							setnum(stack, nums, openups, a, nums[b]);
+						else
+							stack[a] = o;
+						continue;
+					case Lua.OP_LOADK:/*	A Bx	R(A):= Kst(Bx)					*/
+						stack[a] = k[i >>> 14];
+						continue;
+					case Lua.OP_LOADBOOL:/*	A B C	R(A):= (Bool)B: if (C) pc++			*/
+						stack[a] = (i >>> 23 != 0) ? LuaValue.TRUE : LuaValue.FALSE;
+						if((i & (0x1ff << 14)) != 0)
+						    pc++; /* skip next instruction (if C) */
+						continue;
+					case Lua.OP_LOADNIL: /*	A B	R(A):= ...:= R(B):= nil			*/
+						for(b = i >>> 23; a <= b;)
+							stack[a++] = LuaValue.NIL;
+						continue;
+					case Lua.OP_GETUPVAL: /*	A B	R(A):= UpValue[B]				*/
+						stack[a] = _upValues[i >>> 23].getValue();
+						continue;
+					case Lua.OP_GETGLOBAL: /*	A Bx	R(A):= Gbl[Kst(Bx)]				*/
+						stack[a] = _env.get(k[i >>> 14]);
+						continue;
+					case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
+						stack[a] = box(stack, nums, i >>> 23).get((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : box(stack, nums, c));
+						continue;
+					case Lua.OP_SETGLOBAL: /*	A Bx	Gbl[Kst(Bx)]:= R(A)				*/
+						_env.set(k[i >>> 14], box(stack, nums, a));
+						continue;
+					case Lua.OP_SETUPVAL: /*	A B	UpValue[B]:= R(A)				*/
+						_upValues[i >>> 23].setValue(box(stack, nums, a));
+						continue;
+					case Lua.OP_SETTABLE: /*	A B C	R(A)[RK(B)]:= RK(C)				*/
+						box(stack, nums, a).set(((b = i >>> 23) > 0xff ? k[b & 0xff] : box(stack, nums, b)), (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : box(stack, nums, c));
+						continue;
+					case Lua.OP_NEWTABLE: /*	A B C	R(A):= {} (size = B,C)				*/
+						stack[a] = new LuaTable(i >>> 23, (i >> 14) & 0x1ff);
+						continue;
+					case Lua.OP_SELF: /*	A B C	R(A+1):= R(B): R(A):= R(B)[RK(C)]		*/
+						stack[a + 1] = (o = box(stack, nums, i >>> 23));
+						stack[a] = o.get((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : box(stack, nums, c));
+						continue;
+					case Lua.OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
+					case Lua.OP_SUB: /*	A B C	R(A):= RK(B) - RK(C)				*/
+					case Lua.OP_MUL: /*	A B C	R(A):= RK(B) * RK(C)				*/
+					case Lua.OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
+					case Lua.OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
+					case Lua.OP_POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
+						ob = (b = i >>> 23) > 0xff ? k[b & 0xff] : stack[b];
+						oc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c];
+						if(isnum(ob) && isnum(oc))
+						{
+							double x = ob != null ? ob.todouble() : nums[b];
+							double y = oc != null ? oc.todouble() : nums[c];
+							switch(i & 0x3f)
+							{
+								case Lua.OP_ADD:
+									x += y;
+									break;
+								case Lua.OP_SUB:
+									x -= y;
+									break;
+								case Lua.OP_MUL:
+									x *= y;
+									break;
+								case Lua.OP_DIV:
+									x = LuaDouble.ddiv_d(x, y);
+									break;
+								case Lua.OP_MOD:
+									x = LuaDouble.dmod_d(x, y);
+									break;
+								default:
+									x = LibMath.dpow_d(x, y);
+									break;
+							}
+							// integer results beyond double precision are computed exactly by LuaLong below
+							if((x < 0x1p53 && x > -0x1p53) || (i & 0x3f) >= Lua.OP_DIV)
+							{
+								setnum(stack, nums, openups, a, x);
+								continue;
+							}
+						}
+						if(ob == null) ob = box(stack, nums, b);
+						if(oc == null) oc = box(stack, nums, c);
+						switch(i & 0x3f)
+						{
+							case Lua.OP_ADD:
+								stack[a] = ob.add(oc);
+								continue;
+							case Lua.OP_SUB:
+								stack[a] = ob.sub(oc);
+								continue;
+							case Lua.OP_MUL:
+								stack[a] = ob.mul(oc);
+								continue;
+							case Lua.OP_DIV:
+								stack[a] = ob.div(oc);
+								continue;
+							case Lua.OP_MOD:
+								stack[a] = ob.mod(oc);
+								continue;
+							default:
+								stack[a] = ob.pow(oc);
+								continue;
+						}
+					case Lua.OP_UNM: /*	A B	R(A):= -R(B)					*/
+						if(isnum(o = stack[b = i >>> 23]))
+							setnum(stack, nums, openups, a, -(o != null ? o.todouble() : nums[b]));
+						else
+							stack[a] = o.neg();
+						continue;
+					case Lua.OP_NOT: /*	A B	R(A):= not R(B)				*/
+						stack[a] = box(stack, nums, i >>> 23).not();
+						continue;
+					case Lua.OP_LEN: /*	A B	R(A):= length of R(B)				*/
+						stack[a] = box(stack, nums, i >>> 23).len();
+						continue;
+					case Lua.OP_CONCAT: /*	A B C	R(A):= R(B).. ... ..R(C)			*/
+						b = i >>> 23;
+						c = (i >> 14) & 0x1ff;
+						box(stack, nums, b, c + 1);
+						if(c > b + 1)
+						{
+							Buffer sb = stack[c].buffer();
+							while(--c >= b)
+								sb = stack[c].concat(sb);
+							stack[a] = sb.value();
+						}
+						else
+							stack[a] = stack[c - 1].concat(stack[c]);
+						continue;
+					case Lua.OP_JMP: /*	sBx	pc+=sBx					*/
+						pc += (i >>> 14) - 0x1ffff;
+						continue;
+					case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
+					case Lua.OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
+					case Lua.OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
+					{
+						ob = (b = i >>> 23) > 0xff ? k[b & 0xff] : stack[b];
+						oc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c];
+						boolean r;
+						if(isnum(ob) && isnum(oc))
+						{
+							double x = ob != null ? ob.todouble() : nums[b];
+							double y = oc != null ? oc.todouble() : nums[c];
+							r = (i & 0x3f) == Lua.OP_EQ ? x == y : (i & 0x3f) == Lua.OP_LT ? x < y : x <= y;
+						}
+						else
+						{
+							if(ob == null) ob = box(stack, nums, b);
+							if(oc == null) oc = box(stack, nums, c);
+							r = (i & 0x3f) == Lua.OP_EQ ? ob.eq_b(oc) : (i & 0x3f) == Lua.OP_LT ? ob.lt_b(oc) : ob.lteq_b(oc);
+						}
+						if(r != (a != 0))
+						    ++pc;
+						continue;
+					}
+					case Lua.OP_TEST: /*	A C	if not (R(A) <=> C) then pc++			*/
+						if(((o = stack[a]) == null || o.toboolean()) != ((i & (0x1ff << 14)) != 0))
+						    ++pc;
+						continue;
+					case Lua.OP_TESTSET: /*	A B C	if (R(B) <=> C) then R(A):= R(B) else pc++	*/
+						/* note: doc appears to be reversed */
+						if((o = box(stack, nums, i >>> 23)).toboolean() != ((i & (0x1ff << 14)) != 0))
+							++pc;
+						else
+							stack[a] = o; // TODO: should be sBx?
+						continue;
+					case Lua.OP_CALL: /*	A B C	R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+						b = i >>> 23;
+						c = (i >> 14) & 0x1ff;
+						box(stack, nums, a, b > 0 ? a + b : top - v.narg());
+						v = b > 0 ?
+						        varargsOf(stack, a + 1, b - 1) : // exact arg count
+						        varargsOf(stack, a + 1, top - v.narg() - (a + 1), v); // from prev top
+						v = stack[a].invoke(v);
+						if(c > 0)
+						{
+							while(--c > 0)
+								stack[a + c - 1] = v.arg(c);
+							v = NONE; // TODO: necessary?
+						}
+						else
+						{
+							top = a + v.narg();
+						}
+						continue;
+					case Lua.OP_TAILCALL: /*	A B C	return R(A)(R(A+1), ... ,R(A+B-1))		*/
+						b = i >>> 23;
+						box(stack, nums, a, b > 0 ? a + b : top - v.narg());
+						v = b > 0 ?
+						        varargsOf(stack, a + 1, b - 1) : // exact arg count
+						        varargsOf(stack, a + 1, top - v.narg() - (a + 1), v); // from prev top
+						return new VarargsTailcall(stack[a], v);
+					case Lua.OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
+						b = i >>> 23;
+						switch(b)
+						{
+							case 0:
+								box(stack, nums, a, top - v.narg());
+								return varargsOf(stack, a, top - v.narg() - a, v);
+							case 1:
+								return NONE;
+							case 2:
+								return box(stack, nums, a);
+							default:
+								box(stack, nums, a, a + b - 1);
+								return varargsOf(stack, a, b - 1);
+						}
+					case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+					{
+						LuaValue idx = stack[a];
+						LuaValue limit = stack[a + 1];
+						LuaValue step = stack[a + 2];
+						if(isnum(idx) && isnum(limit) && isnum(step))
+						{
+							double s = step != null ? step.todouble() : nums[a + 2];
+							double x = (idx != null ? idx.todouble() : nums[a]) + s;
+							double l = limit != null ? limit.todouble() : nums[a + 1];
+							if(x < 0x1p53 && x > -0x1p53)
+							{
+								if(s > 0 ? x <= l : x >= l)
+								{
+									setnum(stack, nums, openups, a, x);
+									setnum(stack, nums, openups, a + 3, x);
+									pc += (i >>> 14) - 0x1ffff;
+								}
+								continue;
+							}
+						}
+						idx = box(stack, nums, a).add(step = box(stack, nums, a + 2));
+						if(step.gt_b(0) ? idx.lteq_b(box(stack, nums, a + 1)) : idx.gteq_b(box(stack, nums, a + 1)))
+						{
+							stack[a] = idx;
+							stack[a + 3] = idx;
+							pc += (i >>> 14) - 0x1ffff;
+						}
+						continue;
+					}
+					case Lua.OP_FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/
+					{
+						LuaValue init = box(stack, nums, a).checknumber("'for' initial value must be a number");
+						LuaValue limit = box(stack, nums, a + 1).checknumber("'for' limit must be a number");
+						LuaValue step = box(stack, nums, a + 2).checknumber("'for' step must be a number");
+						if(isnum(init) && isnum(step))
+							setnum(stack, nums, openups, a, init.todouble() - step.todouble());
+						else
+							stack[a] = init.sub(step);
+						stack[a + 1] = limit;
+						stack[a + 2] = step;
+						pc += (i >>> 14) - 0x1ffff;
+						continue;
+					}
+					case Lua.OP_TFORLOOP: /*
+						                  * A C R(A+3), ... ,R(A+2+C):= R(A)(R(A+1),
+						                  * R(A+2)): if R(A+3) ~= nil then R(A+2)=R(A+3)
+						                  * else pc++
+						                  */
+						v = box(stack, nums, a).invoke(varargsOf(box(stack, nums, a + 1), box(stack, nums, a + 2)));
+						if((o = v.arg1()).isnil())
+							++pc;
+						else
+						{
+							stack[a + 2] = stack[a + 3] = o;
+							for(c = (i >> 14) & 0x1ff; c > 1; --c)
+								stack[a + 2 + c] = v.arg(c);
+							v = NONE; // todo: necessary?
+						}
+						continue;
+					case Lua.OP_SETLIST: /*	A B C	R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B	*/
+						if((c = (i >> 14) & 0x1ff) == 0)
+						    c = code[pc++];
+						int offset = (c - 1) * Lua.LFIELDS_PER_FLUSH;
+						o = stack[a];
+						if((b = i >>> 23) == 0)
+						{
+							b = top - a - 1;
+							int m = b - v.narg();
+							int j = 1;
+							for(; j <= m; j++)
+								o.set(offset + j, box(stack, nums, a + j));
+							for(; j <= b; j++)
+								o.set(offset + j, v.arg(j - m));
+						}
+						else
+						{
+							o.presize(offset + b);
+							for(int j = 1; j <= b; j++)
+								o.set(offset + j, box(stack, nums, a + j));
+						}
+						continue;
+					case Lua.OP_CLOSE: /*	A 	close all variables in the stack up to (>=) R(A)*/
+						for(b = openups.length; --b >= a;)
+							if(openups[b] != null)
+							{
+								openups[b].close();
+								openups[b] = null;
+							}
+						continue;
+					case Lua.OP_CLOSURE: /*	A Bx	R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))	*/
+						Prototype newp = _p.p[i >>> 14];
+						LuaClosure newcl = new LuaClosure(newp, _env);
+						for(int j = 0, nup = newp.nups; j < nup; ++j)
+						{
+							i = code[pc++];
+							//b = B(i);
+							b = i >>> 23;
+							if((i & 4) != 0)
+								newcl._upValues[j] = _upValues[b];
+							else
+							{
+								box(stack, nums, b);
+								newcl._upValues[j] = openups[b] != null ? openups[b] : (openups[b] = new UpValue(stack, b));
+							}
+						}
+						stack[a] = newcl;
+						continue;
+					case Lua.OP_VARARG: /*	A B	R(A), R(A+1), ..., R(A+B-1) = vararg		*/
+						b = i >>> 23;
+						if(b == 0)
+						{
+							top = a + (b = varargs.narg());
+							v = varargs;
+						}
+						else
+						{
+							for(int j = 1; j < b; ++j)
+								stack[a + j - 1] = varargs.arg(j);
+						}
+						continue;
+				}
+			}
+		}
+		catch(LuaError e)
+		{
+			throw e;
+		}
+		catch(Exception e)
+		{
+			throw new LuaError(e);
+		}
+		finally
+		{
+			cs.onReturn();
+			if(openups != null)
+			    for(int u = openups.length; --u >= 0;)
+				    if(openups[u] != null)
+				        openups[u].close();
+		}
+	}
 }
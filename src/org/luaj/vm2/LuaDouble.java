@@ -8,7 +8,8 @@ import org.luaj.vm2.lib.LibMath;
  * These instance are not instantiated directly by clients, but indirectly
  * via the static functions {@link LuaValue#valueOf(int)} or {@link LuaValue#valueOf(double)}
  * functions.  This ensures that values which can be represented as int
- * are wrapped in {@link LuaInteger} instead of {@link LuaDouble}.
+ * are wrapped in {@link LuaInteger}, and other integral values which can be represented as long
+ * are wrapped in {@link LuaLong} instead of {@link LuaDouble}.
  * <p>
  * Almost all API's implemented in LuaDouble are defined and documented in {@link LuaValue}.
  * <p>
@@ -38,7 +39,16 @@ public final class LuaDouble extends LuaNumber
 	public static LuaNumber valueOf(double d)
 	{
 		int id = (int)d;
-		return d == id ? (LuaNumber)LuaInteger.valueOf(id) : (LuaNumber)new LuaDouble(d);
+		if(d == id)
+		    return LuaInteger.valueOf(id);
+		if(isIntegerOnly())
+		{
+			if(Double.isNaN(d) || Double.isInfinite(d))
+			    throw new LuaError("number has no integer representation");
+			return LuaInteger.valueOf((long)d);
+		}
+		long ld = (long)d;
+		return d == ld && d < 0x1p63 ? (LuaNumber)new LuaLong(ld) : (LuaNumber)new LuaDouble(d);
 	}
 
 	/** Don't allow ints to be boxed by DoubleValues  */
@@ -178,6 +188,12 @@ public final class LuaDouble extends LuaNumber
 		return v == val;
 	}
 
+	@Override
+	public boolean raweq(long val)
+	{
+		return v >= -0x1p63 && v < 0x1p63 && (long)v == val && v == val;
+	}
+
 	// basic binary arithmetic
 	@Override
 	public LuaValue add(LuaValue rhs)
@@ -521,31 +537,42 @@ public final class LuaDouble extends LuaNumber
 		}
 		*/
 		long l = (long)v;
-		if(l == v)
+		if(l == v && v < 0x1p63)
 		    return Long.toString(l);
-		if(Double.isNaN(v))
-		    return JSTR_NAN;
-		if(Double.isInfinite(v))
-		    return (v < 0 ? JSTR_NEGINF : JSTR_POSINF);
-		return Float.toString((float)v);
+		LuaString s = strvalueOf(v);
+		return LuaString.decodeAsUtf8(s._bytes, s._offset, s._length);
+	}
+
+	/** Return the {@link LuaString} representing a double value, without an intermediate Java String
+	 * @param d double value to convert
+	 * @return {@link LuaString} in the format of {@link #tojstring()}
+	 * @see LuaString#formatDouble(double, byte[], int)
+	 */
+	public static LuaString strvalueOf(double d)
+	{
+		int i = (int)d;
+		if(i == d)
+		    return LuaInteger.strvalueOf(i);
+		byte[] b = new byte[LuaString.MAX_DOUBLE_CHARS];
+		return LuaString.valueOf(b, 0, LuaString.formatDouble(d, b, 0));
 	}
 
 	@Override
 	public LuaString strvalue()
 	{
-		return LuaString.valueOf(tojstring());
+		return strvalueOf(v);
 	}
 
 	@Override
 	public LuaString optstring(LuaString defval)
 	{
-		return LuaString.valueOf(tojstring());
+		return strvalueOf(v);
 	}
 
 	@Override
 	public LuaValue tostring()
 	{
-		return LuaString.valueOf(tojstring());
+		return strvalueOf(v);
 	}
 
 	@Override
@@ -611,7 +638,7 @@ public final class LuaDouble extends LuaNumber
 	@Override
 	public LuaString checkstring()
 	{
-		return LuaString.valueOf(tojstring());
+		return strvalueOf(v);
 	}
 
 	@Override
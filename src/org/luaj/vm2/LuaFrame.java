@@ -0,0 +1,100 @@
+package org.luaj.vm2;
+
+/**
+ * Saved activation of a {@link LuaClosure} in a stackless coroutine.
+ * <p>
+ * A frame holds what {@link LuaClosure#execute(LuaValue[], Varargs)} keeps in Java locals:
+ * the program counter, the register window, the pending varargs and the open upvalues.
+ * Frames are chained to their caller, so a coroutine can be suspended by simply keeping its top frame.
+ * @see StacklessCoroutine
+ */
+final class LuaFrame
+{
+	/** Maximum depth of nested Lua calls in one stackless coroutine, as LUAI_MAXCALLS in C lua */
+	static final int        MAX_FRAMES = 20000;
+
+	final LuaClosure        _closure;
+	final LuaValue[]        _stack;
+	final Varargs           _varargs;
+	final UpValue[]         _openups;
+	final LuaFrame          _parent;
+	final int               _depth;
+	final LuaThread.CallStack _cs;
+	int                     _pc;
+	int                     _top;
+	Varargs                 _v         = LuaValue.NONE;
+	boolean                 _protected;             // entered by pcall, which returns its results or catches its errors
+	LuaValue                _errfunc;               // error function to restore when a protected frame is left
+
+	/**
+	 * Enter a Lua function
+	 * @param closure the function to call
+	 * @param args the arguments of the call
+	 * @param parent the calling frame, or null for the body of the coroutine
+	 * @throws LuaError if the calls are nested too deeply
+	 */
+	LuaFrame(LuaClosure closure, Varargs args, LuaFrame parent)
+	{
+		_depth = (parent != null ? parent._depth + 1 : 0);
+		if(_depth >= MAX_FRAMES)
+		    throw new LuaError("stack overflow");
+		Prototype p = closure._p;
+		LuaValue[] stack = new LuaValue[p.maxstacksize];
+		System.arraycopy(LuaValue.NILS, 0, stack, 0, p.maxstacksize);
+		for(int i = 0; i < p.numparams; i++)
+			stack[i] = args.arg(i + 1);
+		_varargs = (p.is_vararg != 0 ? args.subargs(p.numparams + 1) : LuaValue.NONE);
+		if(p.is_vararg >= Lua.VARARG_NEEDSARG)
+		    stack[p.numparams] = new LuaTable(_varargs);
+		_closure = closure;
+		_stack = stack;
+		_openups = (p.p.length > 0 ? new UpValue[stack.length] : null);
+		_parent = parent;
+		_cs = LuaThread.onCall(closure);
+	}
+
+	/**
+	 * Store the results of the call this frame is waiting for, as the instruction before the program counter expects them
+	 * @param v the values returned by the callee or passed to resume after a yield
+	 */
+	void deliver(Varargs v)
+	{
+		int i = _closure._p.code[_pc - 1];
+		int a = (i >> 6) & 0xff;
+		int c = (i >> 14) & 0x1ff;
+		if((i & 0x3f) == Lua.OP_TFORLOOP)
+		{
+			LuaValue o = v.arg1();
+			if(o.isnil())
+				++_pc;
+			else
+			{
+				_stack[a + 2] = _stack[a + 3] = o;
+				for(; c > 1; --c)
+					_stack[a + 2 + c] = v.arg(c);
+			}
+			_v = LuaValue.NONE;
+		}
+		else if(c > 0)
+		{
+			while(--c > 0)
+				_stack[a + c - 1] = v.arg(c);
+			_v = LuaValue.NONE;
+		}
+		else
+		{
+			_top = a + v.narg();
+			_v = v;
+		}
+	}
+
+	/** Leave the function, closing its open upvalues */
+	void close()
+	{
+		_cs.onReturn();
+		if(_openups != null)
+		    for(int u = _openups.length; --u >= 0;)
+			    if(_openups[u] != null)
+			        _openups[u].close();
+	}
+}
@@ -12,9 +12,6 @@ package org.luaj.vm2;
  */
 public abstract class LuaFunction extends LuaValue
 {
-	/** Shared static metatable for all functions and closures. */
-	public static LuaValue s_metatable;
-
 	protected LuaValue     _env;
 
 	public LuaFunction()
@@ -60,18 +57,22 @@ public abstract class LuaFunction extends LuaValue
 	@Override
 	public LuaValue getmetatable()
 	{
-		return s_metatable;
+		return LuaState.current()._functionMetatable;
 	}
 
 	@Override
 	public LuaValue getfenv()
 	{
-		return _env;
+		LuaValue e = _env;
+		return LuaSnapshot.isFrozen(e) ? LuaSnapshot.getfenv(this, e) : e;
 	}
 
 	@Override
 	public void setfenv(LuaValue env)
 	{
-		_env = env != null ? env : NIL;
+		if(LuaSnapshot.isFrozen(_env))
+		    LuaSnapshot.setfenv(this, env != null ? env : NIL);
+		else
+			_env = env != null ? env : NIL;
 	}
 }
@@ -23,21 +23,44 @@ public final class LuaInteger extends LuaNumber
 			intValues[i] = new LuaInteger(i - 256);
 	}
 
+	/** Lazily filled cache of the string forms of the integers in [-256, 1023] */
+	private static final LuaString[]  strValues = new LuaString[1280];
+
 	public static LuaInteger valueOf(int i)
 	{
 		return i <= 255 && i >= -256 ? intValues[i + 256] : new LuaInteger(i);
 	}
 
-	// TODO consider moving this to LuaValue
+	/** Return the {@link LuaString} representing an int value, without an intermediate Java String
+	 * @param i int value to convert
+	 * @return {@link LuaString} holding the decimal digits of i, shared for small values
+	 */
+	public static LuaString strvalueOf(int i)
+	{
+		if(i > 1023 || i < -256)
+		    return formatstr(i);
+		LuaString s = strValues[i + 256];
+		if(s == null)
+		    strValues[i + 256] = s = formatstr(i);
+		return s;
+	}
+
+	private static LuaString formatstr(long l)
+	{
+		byte[] b = new byte[LuaString.MAX_LONG_CHARS];
+		return LuaString.valueOf(b, 0, LuaString.formatLong(l, b, 0));
+	}
+
 	/** Return a LuaNumber that represents the value provided
 	 * @param l long value to represent.
-	 * @return LuaNumber that is eithe LuaInteger or LuaDouble representing l
+	 * @return LuaNumber that is either LuaInteger or LuaLong representing l
+	 * @see LuaValue#valueOf(long)
 	 */
 	public static LuaNumber valueOf(long l)
 	{
 		int i = (int)l;
 		return l == i ? (i <= 255 && i >= -256 ? intValues[i + 256] :
-		        new LuaInteger(i)) : LuaDouble.valueOf(l);
+		        new LuaInteger(i)) : new LuaLong(l);
 	}
 
 	/** The value being held by this instance. */
@@ -141,19 +164,19 @@ public final class LuaInteger extends LuaNumber
 	@Override
 	public LuaString strvalue()
 	{
-		return LuaString.valueOf(Integer.toString(v));
+		return strvalueOf(v);
 	}
 
 	@Override
 	public LuaString optstring(LuaString defval)
 	{
-		return LuaString.valueOf(Integer.toString(v));
+		return strvalueOf(v);
 	}
 
 	@Override
 	public LuaValue tostring()
 	{
-		return LuaString.valueOf(Integer.toString(v));
+		return strvalueOf(v);
 	}
 
 	@Override
@@ -226,6 +249,12 @@ public final class LuaInteger extends LuaNumber
 		return v == val;
 	}
 
+	@Override
+	public boolean raweq(long val)
+	{
+		return v == val;
+	}
+
 	// arithmetic operators
 	@Override
 	public LuaValue add(LuaValue rhs)
@@ -245,6 +274,12 @@ public final class LuaInteger extends LuaNumber
 		return LuaInteger.valueOf((long)v + lhs);
 	}
 
+	@Override
+	public LuaValue add(long lhs)
+	{
+		return LuaLong.ladd(v, lhs);
+	}
+
 	@Override
 	public LuaValue sub(LuaValue rhs)
 	{
@@ -275,6 +310,12 @@ public final class LuaInteger extends LuaNumber
 		return LuaInteger.valueOf(lhs - (long)v);
 	}
 
+	@Override
+	public LuaValue subFrom(long lhs)
+	{
+		return LuaLong.lsub(lhs, v);
+	}
+
 	@Override
 	public LuaValue mul(LuaValue rhs)
 	{
@@ -293,6 +334,12 @@ public final class LuaInteger extends LuaNumber
 		return LuaInteger.valueOf((long)v * lhs);
 	}
 
+	@Override
+	public LuaValue mul(long lhs)
+	{
+		return LuaLong.lmul(v, lhs);
+	}
+
 	@Override
 	public LuaValue pow(LuaValue rhs)
 	{
@@ -302,25 +349,31 @@ public final class LuaInteger extends LuaNumber
 	@Override
 	public LuaValue pow(double rhs)
 	{
-		return LibMath.dpow(v, rhs);
+		return isIntegerOnly() ? LuaLong.lpow(v, (long)rhs) : LibMath.dpow(v, rhs);
 	}
 
 	@Override
 	public LuaValue pow(int rhs)
 	{
-		return LibMath.dpow(v, rhs);
+		return isIntegerOnly() ? LuaLong.lpow(v, rhs) : LibMath.dpow(v, rhs);
 	}
 
 	@Override
 	public LuaValue powWith(double lhs)
 	{
-		return LibMath.dpow(lhs, v);
+		return isIntegerOnly() ? LuaLong.lpow((long)lhs, v) : LibMath.dpow(lhs, v);
 	}
 
 	@Override
 	public LuaValue powWith(int lhs)
 	{
-		return LibMath.dpow(lhs, v);
+		return isIntegerOnly() ? LuaLong.lpow(lhs, v) : LibMath.dpow(lhs, v);
+	}
+
+	@Override
+	public LuaValue powWith(long lhs)
+	{
+		return isIntegerOnly() ? LuaLong.lpow(lhs, v) : LibMath.dpow(lhs, v);
 	}
 
 	@Override
@@ -332,19 +385,25 @@ public final class LuaInteger extends LuaNumber
 	@Override
 	public LuaValue div(double rhs)
 	{
-		return LuaDouble.ddiv(v, rhs);
+		return isIntegerOnly() ? LuaLong.ldiv(v, (long)rhs) : LuaDouble.ddiv(v, rhs);
 	}
 
 	@Override
 	public LuaValue div(int rhs)
 	{
-		return LuaDouble.ddiv(v, rhs);
+		return isIntegerOnly() ? LuaLong.ldiv(v, rhs) : LuaDouble.ddiv(v, rhs);
 	}
 
 	@Override
 	public LuaValue divInto(double lhs)
 	{
-		return LuaDouble.ddiv(lhs, v);
+		return isIntegerOnly() ? LuaLong.ldiv((long)lhs, v) : LuaDouble.ddiv(lhs, v);
+	}
+
+	@Override
+	public LuaValue divInto(long lhs)
+	{
+		return isIntegerOnly() ? LuaLong.ldiv(lhs, v) : LuaDouble.ddiv(lhs, v);
 	}
 
 	@Override
@@ -356,19 +415,25 @@ public final class LuaInteger extends LuaNumber
 	@Override
 	public LuaValue mod(double rhs)
 	{
-		return LuaDouble.dmod(v, rhs);
+		return isIntegerOnly() ? LuaLong.lmod(v, (long)rhs) : LuaDouble.dmod(v, rhs);
 	}
 
 	@Override
 	public LuaValue mod(int rhs)
 	{
-		return LuaDouble.dmod(v, rhs);
+		return LuaLong.lmod(v, rhs);
 	}
 
 	@Override
 	public LuaValue modFrom(double lhs)
 	{
-		return LuaDouble.dmod(lhs, v);
+		return isIntegerOnly() ? LuaLong.lmod((long)lhs, v) : LuaDouble.dmod(lhs, v);
+	}
+
+	@Override
+	public LuaValue modFrom(long lhs)
+	{
+		return LuaLong.lmod(lhs, v);
 	}
 
 	// relational operators
@@ -402,6 +467,12 @@ public final class LuaInteger extends LuaNumber
 		return v < rhs;
 	}
 
+	@Override
+	public boolean lt_b(long rhs)
+	{
+		return v < rhs;
+	}
+
 	@Override
 	public boolean lt_b(double rhs)
 	{
@@ -438,6 +509,12 @@ public final class LuaInteger extends LuaNumber
 		return v <= rhs;
 	}
 
+	@Override
+	public boolean lteq_b(long rhs)
+	{
+		return v <= rhs;
+	}
+
 	@Override
 	public boolean lteq_b(double rhs)
 	{
@@ -474,6 +551,12 @@ public final class LuaInteger extends LuaNumber
 		return v > rhs;
 	}
 
+	@Override
+	public boolean gt_b(long rhs)
+	{
+		return v > rhs;
+	}
+
 	@Override
 	public boolean gt_b(double rhs)
 	{
@@ -510,6 +593,12 @@ public final class LuaInteger extends LuaNumber
 		return v >= rhs;
 	}
 
+	@Override
+	public boolean gteq_b(long rhs)
+	{
+		return v >= rhs;
+	}
+
 	@Override
 	public boolean gteq_b(double rhs)
 	{
@@ -551,6 +640,6 @@ public final class LuaInteger extends LuaNumber
 	@Override
 	public LuaString checkstring()
 	{
-		return valueOf(String.valueOf(v));
+		return strvalueOf(v);
 	}
 }
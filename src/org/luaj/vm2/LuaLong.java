@@ -0,0 +1,691 @@
+package org.luaj.vm2;
+
+import org.luaj.vm2.lib.LibMath;
+
+/**
+ * Extension of {@link LuaNumber} which can hold a Java long as its value.
+ * <p>
+ * These instance are not instantiated directly by clients, but indirectly
+ * via the static functions {@link LuaValue#valueOf(long)} or {@link LuaValue#valueOf(double)}
+ * functions.  This ensures that only values outside the range of int
+ * are wrapped in {@link LuaLong}, and values in range are wrapped in {@link LuaInteger}.
+ * <p>
+ * Addition, subtraction, multiplication, modulo and negation are exact,
+ * and only promote to {@link LuaDouble} when the result overflows a long.
+ * Division and exponentiation use double arithmetic,
+ * unless {@link LuaNumber#isIntegerOnly()} is true, in which case overflow wraps around
+ * and division and exponentiation are integral as well.
+ * <p>
+ * LuaLong also defines functions for exact long arithmetic according to lua rules in
+ * <ul>
+ * <li>{@link #ladd(long, long)}</li>
+ * <li>{@link #lsub(long, long)}</li>
+ * <li>{@link #lmul(long, long)}</li>
+ * <li>{@link #ldiv(long, long)}</li>
+ * <li>{@link #lmod(long, long)}</li>
+ * <li>{@link #lpow(long, long)}</li>
+ * </ul>
+ */
+public final class LuaLong extends LuaNumber
+{
+	/** The value being held by this instance. */
+	public final long v;
+
+	/** Don't allow ints to be boxed by LuaLong, use {@link LuaInteger#valueOf(long)} */
+	LuaLong(long l)
+	{
+		v = l;
+	}
+
+	/** Add two long numbers, promoting to double on overflow.
+	 * @param lhs Left-hand-side of the addition.
+	 * @param rhs Right-hand-side of the addition.
+	 * @return {@link LuaNumber} for the exact sum, or the double sum if it overflows and not {@link #isIntegerOnly()}
+	 */
+	public static LuaNumber ladd(long lhs, long rhs)
+	{
+		long r = lhs + rhs;
+		return ((lhs ^ r) & (rhs ^ r)) < 0 && !isIntegerOnly() ? LuaDouble.valueOf((double)lhs + rhs) : LuaInteger.valueOf(r);
+	}
+
+	/** Subtract two long numbers, promoting to double on overflow.
+	 * @param lhs Left-hand-side of the subtraction.
+	 * @param rhs Right-hand-side of the subtraction.
+	 * @return {@link LuaNumber} for the exact difference, or the double difference if it overflows and not {@link #isIntegerOnly()}
+	 */
+	public static LuaNumber lsub(long lhs, long rhs)
+	{
+		long r = lhs - rhs;
+		return ((lhs ^ rhs) & (lhs ^ r)) < 0 && !isIntegerOnly() ? LuaDouble.valueOf((double)lhs - rhs) : LuaInteger.valueOf(r);
+	}
+
+	/** Multiply two long numbers, promoting to double on overflow.
+	 * @param lhs Left-hand-side of the multiplication.
+	 * @param rhs Right-hand-side of the multiplication.
+	 * @return {@link LuaNumber} for the exact product, or the double product if it overflows and not {@link #isIntegerOnly()}
+	 */
+	public static LuaNumber lmul(long lhs, long rhs)
+	{
+		long r = lhs * rhs;
+		if(((Math.abs(lhs) | Math.abs(rhs)) >>> 31) != 0 && !isIntegerOnly() &&
+		        ((rhs != 0 && r / rhs != lhs) || (lhs == Long.MIN_VALUE && rhs == -1)))
+		    return LuaDouble.valueOf((double)lhs * rhs);
+		return LuaInteger.valueOf(r);
+	}
+
+	/** Take modulo of two long numbers according to lua math, which floors the quotient.
+	 * @param lhs Left-hand-side of the modulo.
+	 * @param rhs Right-hand-side of the modulo.
+	 * @return {@link LuaValue} for the result of the modulo, which has the sign of rhs,
+	 * or {@link LuaDouble#NAN} if rhs is zero
+	 * @throws LuaError if rhs is zero and {@link #isIntegerOnly()} is true
+	 * @see LuaDouble#dmod(double, double)
+	 */
+	public static LuaValue lmod(long lhs, long rhs)
+	{
+		if(rhs == 0)
+		{
+			if(isIntegerOnly())
+			    throw new LuaError("attempt to perform 'n%0'");
+			return LuaDouble.NAN;
+		}
+		long r = lhs % rhs;
+		return LuaInteger.valueOf(r != 0 && (r ^ rhs) < 0 ? r + rhs : r);
+	}
+
+	/** Divide two long numbers, flooring the quotient as used by {@link #isIntegerOnly()}.
+	 * @param lhs Left-hand-side of the division.
+	 * @param rhs Right-hand-side of the division.
+	 * @return {@link LuaNumber} for the floored quotient, wrapping around for Long.MIN_VALUE / -1
+	 * @throws LuaError if rhs is zero
+	 * @see LuaDouble#ddiv(double, double)
+	 */
+	public static LuaNumber ldiv(long lhs, long rhs)
+	{
+		if(rhs == 0)
+		    throw new LuaError("attempt to divide by zero");
+		long q = lhs / rhs;
+		return LuaInteger.valueOf(q * rhs != lhs && (lhs ^ rhs) < 0 ? q - 1 : q);
+	}
+
+	/** Raise a long number to a long power as used by {@link #isIntegerOnly()}, wrapping around on overflow.
+	 * @param lhs The base.
+	 * @param rhs The exponent, a negative exponent gives the floored reciprocal.
+	 * @return {@link LuaNumber} for the integral power
+	 * @throws LuaError if lhs is zero and rhs is negative
+	 * @see LibMath#dpow(double, double)
+	 */
+	public static LuaNumber lpow(long lhs, long rhs)
+	{
+		if(rhs < 0)
+		{
+			/* floor of 1 / lhs^-rhs, without negating rhs or computing the power */
+			if(lhs == 0)
+			    throw new LuaError("attempt to divide by zero");
+			boolean negative = lhs < 0 && (rhs & 1) != 0;
+			if(lhs == 1 || lhs == -1)
+			    return LuaInteger.valueOf(negative ? -1 : 1);
+			return LuaInteger.valueOf(negative ? -1 : 0);
+		}
+		long r = 1;
+		for(; rhs != 0; rhs >>>= 1, lhs *= lhs)
+			if((rhs & 1) != 0)
+			    r *= lhs;
+		return LuaInteger.valueOf(r);
+	}
+
+	@Override
+	public boolean islong()
+	{
+		return true;
+	}
+
+	@Override
+	public byte tobyte()
+	{
+		return (byte)v;
+	}
+
+	@Override
+	public char tochar()
+	{
+		return (char)v;
+	}
+
+	@Override
+	public double todouble()
+	{
+		return v;
+	}
+
+	@Override
+	public float tofloat()
+	{
+		return v;
+	}
+
+	@Override
+	public int toint()
+	{
+		return (int)v;
+	}
+
+	@Override
+	public long tolong()
+	{
+		return v;
+	}
+
+	@Override
+	public short toshort()
+	{
+		return (short)v;
+	}
+
+	@Override
+	public double optdouble(double defval)
+	{
+		return v;
+	}
+
+	@Override
+	public int optint(int defval)
+	{
+		return (int)v;
+	}
+
+	@Override
+	public LuaInteger optinteger(LuaInteger defval)
+	{
+		return LuaInteger.valueOf((int)v);
+	}
+
+	@Override
+	public long optlong(long defval)
+	{
+		return v;
+	}
+
+	@Override
+	public String tojstring()
+	{
+		return Long.toString(v);
+	}
+
+	@Override
+	public LuaString strvalue()
+	{
+		byte[] b = new byte[LuaString.MAX_LONG_CHARS];
+		return LuaString.valueOf(b, 0, LuaString.formatLong(v, b, 0));
+	}
+
+	@Override
+	public LuaString optstring(LuaString defval)
+	{
+		return strvalue();
+	}
+
+	@Override
+	public LuaValue tostring()
+	{
+		return strvalue();
+	}
+
+	@Override
+	public String optjstring(String defval)
+	{
+		return Long.toString(v);
+	}
+
+	@Override
+	public LuaInteger checkinteger()
+	{
+		return LuaInteger.valueOf((int)v);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return (int)(v ^ (v >>> 32));
+	}
+
+	// unary operators
+	@Override
+	public LuaValue neg()
+	{
+		return v != Long.MIN_VALUE || isIntegerOnly() ? LuaInteger.valueOf(-v) : LuaDouble.valueOf(-(double)v);
+	}
+
+	// object equality, used for key comparison
+	@Override
+	public boolean equals(Object o)
+	{
+		return o instanceof LuaLong ? ((LuaLong)o).v == v : false;
+	}
+
+	// equality w/ metatable processing
+	@Override
+	public LuaValue eq(LuaValue val)
+	{
+		return val.raweq(v) ? TRUE : FALSE;
+	}
+
+	@Override
+	public boolean eq_b(LuaValue val)
+	{
+		return val.raweq(v);
+	}
+
+	// equality w/o metatable processing
+	@Override
+	public boolean raweq(LuaValue val)
+	{
+		return val.raweq(v);
+	}
+
+	@Override
+	public boolean raweq(double val)
+	{
+		return val >= -0x1p63 && val < 0x1p63 && (long)val == v && val == v;
+	}
+
+	@Override
+	public boolean raweq(int val)
+	{
+		return v == val;
+	}
+
+	@Override
+	public boolean raweq(long val)
+	{
+		return v == val;
+	}
+
+	// arithmetic operators
+	@Override
+	public LuaValue add(LuaValue rhs)
+	{
+		return rhs.add(v);
+	}
+
+	@Override
+	public LuaValue add(double lhs)
+	{
+		return LuaDouble.valueOf(v + lhs);
+	}
+
+	@Override
+	public LuaValue add(int lhs)
+	{
+		return ladd(v, lhs);
+	}
+
+	@Override
+	public LuaValue add(long lhs)
+	{
+		return ladd(v, lhs);
+	}
+
+	@Override
+	public LuaValue sub(LuaValue rhs)
+	{
+		return rhs.subFrom(v);
+	}
+
+	@Override
+	public LuaValue sub(double rhs)
+	{
+		return LuaDouble.valueOf(v - rhs);
+	}
+
+	@Override
+	public LuaValue sub(int rhs)
+	{
+		return lsub(v, rhs);
+	}
+
+	@Override
+	public LuaValue subFrom(double lhs)
+	{
+		return LuaDouble.valueOf(lhs - v);
+	}
+
+	@Override
+	public LuaValue subFrom(int lhs)
+	{
+		return lsub(lhs, v);
+	}
+
+	@Override
+	public LuaValue subFrom(long lhs)
+	{
+		return lsub(lhs, v);
+	}
+
+	@Override
+	public LuaValue mul(LuaValue rhs)
+	{
+		return rhs.mul(v);
+	}
+
+	@Override
+	public LuaValue mul(double lhs)
+	{
+		return LuaDouble.valueOf(v * lhs);
+	}
+
+	@Override
+	public LuaValue mul(int lhs)
+	{
+		return lmul(v, lhs);
+	}
+
+	@Override
+	public LuaValue mul(long lhs)
+	{
+		return lmul(v, lhs);
+	}
+
+	@Override
+	public LuaValue pow(LuaValue rhs)
+	{
+		return rhs.powWith(v);
+	}
+
+	@Override
+	public LuaValue pow(double rhs)
+	{
+		return isIntegerOnly() ? lpow(v, (long)rhs) : LibMath.dpow(v, rhs);
+	}
+
+	@Override
+	public LuaValue pow(int rhs)
+	{
+		return isIntegerOnly() ? lpow(v, rhs) : LibMath.dpow(v, rhs);
+	}
+
+	@Override
+	public LuaValue powWith(double lhs)
+	{
+		return isIntegerOnly() ? lpow((long)lhs, v) : LibMath.dpow(lhs, v);
+	}
+
+	@Override
+	public LuaValue powWith(int lhs)
+	{
+		return isIntegerOnly() ? lpow(lhs, v) : LibMath.dpow(lhs, v);
+	}
+
+	@Override
+	public LuaValue powWith(long lhs)
+	{
+		return isIntegerOnly() ? lpow(lhs, v) : LibMath.dpow(lhs, v);
+	}
+
+	@Override
+	public LuaValue div(LuaValue rhs)
+	{
+		return rhs.divInto(v);
+	}
+
+	@Override
+	public LuaValue div(double rhs)
+	{
+		return isIntegerOnly() ? ldiv(v, (long)rhs) : LuaDouble.ddiv(v, rhs);
+	}
+
+	@Override
+	public LuaValue div(int rhs)
+	{
+		return isIntegerOnly() ? ldiv(v, rhs) : LuaDouble.ddiv(v, rhs);
+	}
+
+	@Override
+	public LuaValue divInto(double lhs)
+	{
+		return isIntegerOnly() ? ldiv((long)lhs, v) : LuaDouble.ddiv(lhs, v);
+	}
+
+	@Override
+	public LuaValue divInto(long lhs)
+	{
+		return isIntegerOnly() ? ldiv(lhs, v) : LuaDouble.ddiv(lhs, v);
+	}
+
+	@Override
+	public LuaValue mod(LuaValue rhs)
+	{
+		return rhs.modFrom(v);
+	}
+
+	@Override
+	public LuaValue mod(double rhs)
+	{
+		return isIntegerOnly() ? lmod(v, (long)rhs) : LuaDouble.dmod(v, rhs);
+	}
+
+	@Override
+	public LuaValue mod(int rhs)
+	{
+		return lmod(v, rhs);
+	}
+
+	@Override
+	public LuaValue modFrom(double lhs)
+	{
+		return isIntegerOnly() ? lmod((long)lhs, v) : LuaDouble.dmod(lhs, v);
+	}
+
+	@Override
+	public LuaValue modFrom(long lhs)
+	{
+		return lmod(lhs, v);
+	}
+
+	// relational operators
+	@Override
+	public LuaValue lt(LuaValue rhs)
+	{
+		return rhs.gt_b(v) ? TRUE : FALSE;
+	}
+
+	@Override
+	public LuaValue lt(double rhs)
+	{
+		return v < rhs ? TRUE : FALSE;
+	}
+
+	@Override
+	public LuaValue lt(int rhs)
+	{
+		return v < rhs ? TRUE : FALSE;
+	}
+
+	@Override
+	public boolean lt_b(LuaValue rhs)
+	{
+		return rhs.gt_b(v);
+	}
+
+	@Override
+	public boolean lt_b(int rhs)
+	{
+		return v < rhs;
+	}
+
+	@Override
+	public boolean lt_b(long rhs)
+	{
+		return v < rhs;
+	}
+
+	@Override
+	public boolean lt_b(double rhs)
+	{
+		return v < rhs;
+	}
+
+	@Override
+	public LuaValue lteq(LuaValue rhs)
+	{
+		return rhs.gteq_b(v) ? TRUE : FALSE;
+	}
+
+	@Override
+	public LuaValue lteq(double rhs)
+	{
+		return v <= rhs ? TRUE : FALSE;
+	}
+
+	@Override
+	public LuaValue lteq(int rhs)
+	{
+		return v <= rhs ? TRUE : FALSE;
+	}
+
+	@Override
+	public boolean lteq_b(LuaValue rhs)
+	{
+		return rhs.gteq_b(v);
+	}
+
+	@Override
+	public boolean lteq_b(int rhs)
+	{
+		return v <= rhs;
+	}
+
+	@Override
+	public boolean lteq_b(long rhs)
+	{
+		return v <= rhs;
+	}
+
+	@Override
+	public boolean lteq_b(double rhs)
+	{
+		return v <= rhs;
+	}
+
+	@Override
+	public LuaValue gt(LuaValue rhs)
+	{
+		return rhs.lt_b(v) ? TRUE : FALSE;
+	}
+
+	@Override
+	public LuaValue gt(double rhs)
+	{
+		return v > rhs ? TRUE : FALSE;
+	}
+
+	@Override
+	public LuaValue gt(int rhs)
+	{
+		return v > rhs ? TRUE : FALSE;
+	}
+
+	@Override
+	public boolean gt_b(LuaValue rhs)
+	{
+		return rhs.lt_b(v);
+	}
+
+	@Override
+	public boolean gt_b(int rhs)
+	{
+		return v > rhs;
+	}
+
+	@Override
+	public boolean gt_b(long rhs)
+	{
+		return v > rhs;
+	}
+
+	@Override
+	public boolean gt_b(double rhs)
+	{
+		return v > rhs;
+	}
+
+	@Override
+	public LuaValue gteq(LuaValue rhs)
+	{
+		return rhs.lteq_b(v) ? TRUE : FALSE;
+	}
+
+	@Override
+	public LuaValue gteq(double rhs)
+	{
+		return v >= rhs ? TRUE : FALSE;
+	}
+
+	@Override
+	public LuaValue gteq(int rhs)
+	{
+		return v >= rhs ? TRUE : FALSE;
+	}
+
+	@Override
+	public boolean gteq_b(LuaValue rhs)
+	{
+		return rhs.lteq_b(v);
+	}
+
+	@Override
+	public boolean gteq_b(int rhs)
+	{
+		return v >= rhs;
+	}
+
+	@Override
+	public boolean gteq_b(long rhs)
+	{
+		return v >= rhs;
+	}
+
+	@Override
+	public boolean gteq_b(double rhs)
+	{
+		return v >= rhs;
+	}
+
+	// string comparison
+	@Override
+	public int strcmp(LuaString rhs)
+	{
+		typerror("attempt to compare number with string");
+		return 0;
+	}
+
+	@Override
+	public int checkint()
+	{
+		return (int)v;
+	}
+
+	@Override
+	public long checklong()
+	{
+		return v;
+	}
+
+	@Override
+	public double checkdouble()
+	{
+		return v;
+	}
+
+	@Override
+	public String checkjstring()
+	{
+		return Long.toString(v);
+	}
+
+	@Override
+	public LuaString checkstring()
+	{
+		return strvalue();
+	}
+}
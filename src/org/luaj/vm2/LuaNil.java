@@ -16,8 +16,6 @@ package org.luaj.vm2;
  */
 public class LuaNil extends LuaValue
 {
-	public static LuaValue s_metatable;
-
 	LuaNil()
 	{
 	}
@@ -61,7 +59,7 @@ public class LuaNil extends LuaValue
 	@Override
 	public LuaValue getmetatable()
 	{
-		return s_metatable;
+		return LuaState.current()._nilMetatable;
 	}
 
 	@Override
@@ -4,12 +4,20 @@ package org.luaj.vm2;
  * Base class for representing numbers as lua values directly.
  * <p>
  * The main subclasses are {@link LuaInteger} which holds values that fit in a java int,
+ * {@link LuaLong} which holds other integral values that fit in a java long,
  * and {@link LuaDouble} which holds all other number values.
  */
 public abstract class LuaNumber extends LuaValue
 {
-	/** Shared static metatable for all number values represented in lua. */
-	public static LuaValue s_metatable;
+	/**
+	 * Check the number mode of the state bound to the current Java thread
+	 * @return true if the state is in integer-only mode
+	 * @see LuaState#setIntegerOnly(boolean)
+	 */
+	public static boolean isIntegerOnly()
+	{
+		return LuaState.any_integer_only && LuaState.current()._integerOnly;
+	}
 
 	@Override
 	public int type()
@@ -62,7 +70,7 @@ public abstract class LuaNumber extends LuaValue
 	@Override
 	public LuaValue getmetatable()
 	{
-		return s_metatable;
+		return LuaState.current()._numberMetatable;
 	}
 
 	@Override
@@ -0,0 +1,395 @@
+package org.luaj.vm2;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import org.luaj.vm2.lib.LibPackage;
+
+/**
+ * Frozen copy of an initialized {@link LuaState}, from which new states are forked cheaply.
+ * <p>
+ * Taking a snapshot freezes the tables reachable from the state:
+ * the globals, {@code package.loaded}, the string library and the per-type metatables,
+ * with all tables, metatables, function environments and upvalues found through them.
+ * Changing a frozen table raises an error, so the state itself must not be used any more.
+ * <p>
+ * {@link #fork()} creates a state whose tables start out empty and are copied from their frozen
+ * originals on first access. Tables holding only strings, numbers, booleans, Java functions or userdata
+ * share their contents with the original until their first change.
+ * Other tables are copied with references to tables and lua functions replaced by those of the fork,
+ * so forks only pay for the tables they use and never see each other's changes:
+ * <pre> {@code
+ * LuaState warm = new LuaState();
+ * LuaState.bind(warm);
+ * LuaValue _G = JsePlatform.standardGlobals();
+ * LuaC.load(new FileInputStream("framework.lua"), "framework.lua", _G).call();
+ * LuaState.bind(null);
+ * LuaSnapshot snapshot = new LuaSnapshot(warm);
+ * ...
+ * LuaState.bind(snapshot.fork());
+ * } </pre>
+ * Weak tables are copied with their mode. Java functions and userdata are shared by all forks,
+ * as is the state kept by Java library objects, such as the default files of the io library.
+ * The environment of a shared Java function is the copy of its frozen environment in the fork using it,
+ * and {@code setfenv} on it only changes it for that fork.
+ * A snapshot may be used by several Java threads at a time to fork states.
+ */
+public final class LuaSnapshot
+{
+	/** Marks a frozen table which refers to other tables or lua functions */
+	static final Source                         FROZEN      = new Source(null, null);
+
+	/** Marks a frozen table which only holds values shared by all forks */
+	static final Source                         FROZEN_LEAF = new Source(null, null);
+
+	private final IdentityHashMap<LuaValue, LuaValue[]> _weak = new IdentityHashMap<LuaValue, LuaValue[]>(); // contents of weak tables, held strongly
+
+	private final boolean                       _integerOnly;
+	private final LuaValue                      _globals;
+	private final LibPackage                    _packageLib;
+	private final LuaTable                      _stringLib;
+	private final LuaValue                      _nilMetatable;
+	private final LuaValue                      _booleanMetatable;
+	private final LuaValue                      _numberMetatable;
+	private final LuaValue                      _stringMetatable;
+	private final LuaValue                      _functionMetatable;
+	private final LuaValue                      _threadMetatable;
+
+	/**
+	 * Freeze a state to fork new ones from it
+	 * @param state initialized state, which must not be bound to any Java thread any more
+	 * @throws IllegalArgumentException if the state belongs to a {@link LuaStatePool} or refers to a coroutine
+	 */
+	public LuaSnapshot(LuaState state)
+	{
+		if(state._snapshot != null)
+		    throw new IllegalArgumentException("state belongs to a pool");
+		_globals = state._mainThread.getfenv();
+		_integerOnly = state._integerOnly;
+		_packageLib = state._packageLib;
+		_stringLib = state._stringLib;
+		_nilMetatable = state._nilMetatable;
+		_booleanMetatable = state._booleanMetatable;
+		_numberMetatable = state._numberMetatable;
+		_stringMetatable = state._stringMetatable;
+		_functionMetatable = state._functionMetatable;
+		_threadMetatable = state._threadMetatable;
+
+		Freezer f = new Freezer();
+		f.visit(_globals);
+		f.visit(_stringLib);
+		f.visit(_nilMetatable);
+		f.visit(_booleanMetatable);
+		f.visit(_numberMetatable);
+		f.visit(_stringMetatable);
+		f.visit(_functionMetatable);
+		f.visit(_threadMetatable);
+		if(_packageLib != null)
+		{
+			f.visit(_packageLib.LOADED);
+			f.visit(_packageLib.PACKAGE);
+		}
+		f.run();
+	}
+
+	/**
+	 * Create a new state from this snapshot
+	 * @return the new state, which the caller binds to the Java thread using it
+	 */
+	public LuaState fork()
+	{
+		LuaState s = new LuaState();
+		s.setIntegerOnly(_integerOnly);
+		Fork f = s._fork = new Fork(this);
+		LuaValue globals = f.copy(_globals);
+		s._mainThread.setfenv(globals);
+		s._stringLib = (LuaTable)f.copy(_stringLib);
+		s._nilMetatable = f.copy(_nilMetatable);
+		s._booleanMetatable = f.copy(_booleanMetatable);
+		s._numberMetatable = f.copy(_numberMetatable);
+		s._stringMetatable = f.copy(_stringMetatable);
+		s._functionMetatable = f.copy(_functionMetatable);
+		s._threadMetatable = f.copy(_threadMetatable);
+		if(_packageLib != null)
+		{
+			LuaState prev = LuaState.bind(s);
+			LibPackage p;
+			try
+			{
+				p = new LibPackage();
+			}
+			finally
+			{
+				LuaState.bind(prev);
+			}
+			p._env = globals;
+			p.STDIN = _packageLib.STDIN;
+			p.STDOUT = _packageLib.STDOUT;
+			p.LOADED = (LuaTable)f.copy(_packageLib.LOADED);
+			p.PACKAGE = (LuaTable)f.copy(_packageLib.PACKAGE);
+			p.preload_loader = _packageLib.preload_loader;
+			p.lua_loader = _packageLib.lua_loader;
+			p.java_loader = _packageLib.java_loader;
+		}
+		return s;
+	}
+
+	/** @return true if a value is a table frozen by a snapshot */
+	static boolean isFrozen(LuaValue v)
+	{
+		if(!(v instanceof LuaTable))
+		    return false;
+		Source s = ((LuaTable)v)._source;
+		return s == FROZEN || s == FROZEN_LEAF;
+	}
+
+	/**
+	 * Get the environment of a Java function shared with a snapshot
+	 * @param f function whose environment is frozen
+	 * @param env frozen environment of the function
+	 * @return the environment of the function in the fork bound to the current Java thread
+	 */
+	static LuaValue getfenv(LuaFunction f, LuaValue env)
+	{
+		Fork fork = LuaState.current()._fork;
+		if(fork == null)
+		    return env;
+		LuaValue e = (LuaValue)fork._copies.get(f);
+		return e != null ? e : fork.copy(env);
+	}
+
+	/**
+	 * Set the environment of a Java function shared with a snapshot for the fork bound to the current Java thread
+	 * @throws LuaError if the current state is not a fork
+	 */
+	static void setfenv(LuaFunction f, LuaValue env)
+	{
+		Fork fork = LuaState.current()._fork;
+		if(fork == null)
+		    throw new LuaError("attempt to modify a function of a snapshot");
+		fork._copies.put(f, env);
+	}
+
+	private static boolean isShared(LuaValue v)
+	{
+		return !(v instanceof LuaTable) && !(v instanceof LuaClosure);
+	}
+
+	/** Walks the values reachable from a state and freezes the tables found */
+	private final class Freezer
+	{
+		private final IdentityHashMap<LuaValue, LuaValue> _visited = new IdentityHashMap<LuaValue, LuaValue>();
+		private final ArrayList<LuaValue>                 _pending = new ArrayList<LuaValue>();
+
+		void visit(LuaValue v)
+		{
+			if(v != null && !v.isnil() && !(v instanceof LuaString) && !(v instanceof LuaNumber) && !(v instanceof LuaBoolean)
+			        && _visited.put(v, v) == null)
+			    _pending.add(v);
+		}
+
+		void run()
+		{
+			while(!_pending.isEmpty())
+			{
+				LuaValue v = _pending.remove(_pending.size() - 1);
+				if(v instanceof WeakTable)
+				{
+					WeakTable t = (WeakTable)v;
+					ArrayList<LuaValue> kv = new ArrayList<LuaValue>();
+					Varargs n;
+					for(LuaValue k = LuaValue.NIL; !(k = (n = t.next(k)).arg1()).isnil();)
+					{
+						kv.add(k);
+						kv.add(n.arg(2));
+					}
+					for(LuaValue e : kv)
+					    visit(e);
+					visit(t._metatable);
+					_weak.put(t, kv.toArray(new LuaValue[kv.size()]));
+				}
+				else if(v instanceof LuaTable)
+				{
+					LuaTable t = (LuaTable)v;
+					boolean leaf = true;
+					Varargs n;
+					for(LuaValue k = LuaValue.NIL; !(k = (n = t.next(k)).arg1()).isnil();)
+					{
+						LuaValue e = n.arg(2);
+						leaf &= isShared(k) && isShared(e);
+						visit(k);
+						visit(e);
+					}
+					visit(t._metatable);
+					if(t._source != FROZEN && t._source != FROZEN_LEAF)
+					    t._source = (leaf ? FROZEN_LEAF : FROZEN);
+				}
+				else if(v instanceof LuaClosure)
+				{
+					LuaClosure c = (LuaClosure)v;
+					visit(c.getfenv());
+					for(UpValue u : c._upValues)
+					    if(u != null)
+					        visit(u.getValue());
+				}
+				else if(v instanceof LuaThread)
+				    throw new IllegalArgumentException("cannot snapshot a coroutine");
+				else if(v instanceof LuaFunction)
+				    visit(v.getfenv());
+				else if(v instanceof LuaUserdata)
+				    visit(((LuaUserdata)v)._metatable);
+			}
+		}
+	}
+
+	/** Copies of the tables and lua functions of a snapshot in one forked state, and the environments its Java functions got */
+	static final class Fork
+	{
+		private final LuaSnapshot                         _snapshot;
+		private final IdentityHashMap<Object, Object>     _copies = new IdentityHashMap<Object, Object>();
+
+		Fork(LuaSnapshot snapshot)
+		{
+			_snapshot = snapshot;
+		}
+
+		/** @return the copy of a value of the snapshot in this fork, created empty for tables */
+		LuaValue copy(LuaValue v)
+		{
+			if(v == null || isShared(v))
+			    return v;
+			LuaValue c = (LuaValue)_copies.get(v);
+			if(c != null)
+			    return c;
+			if(v instanceof LuaTable)
+			{
+				LuaTable t = (LuaTable)v;
+				LuaTable r;
+				if(t instanceof WeakTable)
+				    r = new WeakTable(((WeakTable)t)._weakkeys, ((WeakTable)t)._weakvalues);
+				else
+					r = new LuaTable();
+				_copies.put(t, r);
+				r._source = new Source(this, t);
+				r._metatable = copy(t._metatable);
+				return r;
+			}
+			LuaClosure f = (LuaClosure)v;
+			LuaClosure r = new LuaClosure(f._p, LuaValue.NIL);
+			_copies.put(f, r);
+			r._env = copy(f._env);
+			for(int i = 0, n = f._upValues.length; i < n; i++)
+			{
+				UpValue u = f._upValues[i];
+				if(u != null)
+				{
+					UpValue w = (UpValue)_copies.get(u);
+					if(w == null)
+					{
+						_copies.put(u, w = new UpValue(new LuaValue[1], 0));
+						w._array[0] = copy(u.getValue());
+					}
+					r._upValues[i] = w;
+				}
+			}
+			return r;
+		}
+	}
+
+	/** Where a table of a fork gets its contents from */
+	static final class Source
+	{
+		private final Fork     _fork;   // null for the markers of frozen tables
+		private final LuaTable _table;  // frozen table to copy from
+		private boolean        _shared; // contents are shared with _table until the first change
+
+		Source(Fork fork, LuaTable table)
+		{
+			_fork = fork;
+			_table = table;
+		}
+
+		/**
+		 * Called by a table before reading its contents
+		 * @return true if the contents have just been copied in
+		 */
+		boolean read(LuaTable t)
+		{
+			if(_fork == null || _shared)
+			    return false;
+			LuaTable s = _table;
+			if(s._source == FROZEN_LEAF)
+			{
+				t._array = s._array;
+				t._hashKeys = s._hashKeys;
+				t._hashValues = s._hashValues;
+				t._hashEntries = s._hashEntries;
+				_shared = true;
+			}
+			else
+			{
+				t._source = null;
+				copyInto(t);
+			}
+			return true;
+		}
+
+		/** Called by a table before changing its contents */
+		void write(LuaTable t)
+		{
+			if(_fork == null)
+			    throw new LuaError("attempt to modify a table of a snapshot");
+			t._source = null;
+			if(_shared)
+			{
+				if(t._array.length > 0)
+				    t._array = t._array.clone();
+				if(t._hashKeys.length > 0)
+				{
+					t._hashKeys = t._hashKeys.clone();
+					t._hashValues = t._hashValues.clone();
+				}
+			}
+			else
+				copyInto(t);
+		}
+
+		private void copyInto(LuaTable t)
+		{
+			Fork f = _fork;
+			LuaTable s = _table;
+			LuaValue[] kv = f._snapshot._weak.get(s);
+			if(kv != null)
+			{
+				for(int i = 0; i < kv.length; i += 2)
+				    t.rawset(f.copy(kv[i]), f.copy(kv[i + 1]));
+				return;
+			}
+			boolean rehash = false;
+			for(LuaValue k : s._hashKeys)
+			    rehash |= (k != null && !isShared(k));
+			if(rehash)
+			{
+				// keys hashed by identity get new hash codes in the fork
+				Varargs n;
+				for(LuaValue k = LuaValue.NIL; !(k = (n = s.next(k)).arg1()).isnil();)
+				    t.rawset(f.copy(k), f.copy(n.arg(2)));
+				return;
+			}
+			LuaValue[] a = s._array;
+			if(a.length > 0)
+			{
+				t._array = a = a.clone();
+				for(int i = 0; i < a.length; i++)
+				    a[i] = f.copy(a[i]);
+			}
+			if(s._hashKeys.length > 0)
+			{
+				t._hashKeys = s._hashKeys.clone();
+				t._hashValues = a = s._hashValues.clone();
+				for(int i = 0; i < a.length; i++)
+				    a[i] = f.copy(a[i]);
+				t._hashEntries = s._hashEntries;
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package org.luaj.vm2;
+
+import org.luaj.vm2.lib.LibPackage;
+
+/**
+ * Independent lua interpreter state.
+ * <p>
+ * A state holds everything which would otherwise be shared by all scripts in the Java virtual machine:
+ * the main and the running {@link LuaThread} with the globals of the main thread,
+ * the package library with its {@code package.loaded} table, the string library table
+ * and the metatables shared by all values of the types nil, boolean, number, string, function and thread.
+ * <p>
+ * A state is bound to the Java thread which uses it with {@link #bind(LuaState)}.
+ * Java threads without a binding all use the {@link #getDefault() default state},
+ * so single-state programs need not care about states at all.
+ * To run scripts in parallel, each Java thread binds its own state before creating its globals:
+ * <pre> {@code
+ * LuaState.bind(new LuaState());
+ * LuaValue _G = JsePlatform.standardGlobals();
+ * LuaC.load(new FileInputStream("main.lua"), "main.lua", _G).call();
+ * } </pre>
+ * A state must only be used by one Java thread at a time,
+ * but it may be bound to another Java thread after the first one unbound it.
+ * Coroutines run in the state of the thread which resumes them.
+ * <p>
+ * Values must not be passed between states which run in parallel,
+ * except for immutable ones such as strings and numbers.
+ * {@link LuaStatePool} keeps initialized states for reuse by short-lived scripts,
+ * {@link LuaSnapshot} forks new states from a frozen initialized one.
+ * Each state has its own number mode, see {@link #setIntegerOnly(boolean)}.
+ * Tuning switches like {@link LuaThread#stackless}, {@link LuaClosure#unboxed_numbers}
+ * and the debug hooks enabled by loading {@code debug} still apply to the whole Java virtual machine.
+ */
+public final class LuaState
+{
+	private static final LuaState              default_state = new LuaState();
+	private static final ThreadLocal<LuaState> bound_state   = new ThreadLocal<LuaState>();
+
+	/** Set once any Java thread bound a state, so unbound programs skip the thread-local lookup.
+	 * A Java thread only finds its own binding, which it has made itself after setting this.
+	 */
+	private static boolean                     any_bound;
+
+	/** Set once any state switched to integer-only mode, so other programs skip the state lookup of {@link LuaNumber#isIntegerOnly()}.
+	 * The state is switched before it is handed to the Java thread which uses it.
+	 */
+	static boolean                             any_integer_only;
+
+	final LuaThread                            _mainThread;
+	LuaThread                                  _running;
+
+	/** Package library of this state, set by {@link LibPackage} when it is loaded */
+	public LibPackage                          _packageLib;
+
+	/** String library table, used for indexing strings if there is no string metatable */
+	public LuaTable                            _stringLib;
+
+	/** Metatables shared by all values of a type in this state, or null for none */
+	public LuaValue                            _nilMetatable;
+	public LuaValue                            _booleanMetatable;
+	public LuaValue                            _numberMetatable;
+	public LuaValue                            _stringMetatable;
+	public LuaValue                            _functionMetatable;
+	public LuaValue                            _threadMetatable;
+
+	/** Integer-only number mode of this state, see {@link #setIntegerOnly(boolean)} */
+	boolean                                    _integerOnly;
+
+	/** Baseline to reset to when checked in, if this state belongs to a {@link LuaStatePool} */
+	LuaStatePool.Snapshot                      _snapshot;
+
+	/** Copies of the tables of the {@link LuaSnapshot} this state was forked from, or null */
+	LuaSnapshot.Fork                           _fork;
+
+	/** Create a state with a new main thread and no globals yet */
+	public LuaState()
+	{
+		_running = _mainThread = new LuaThread();
+	}
+
+	/**
+	 * Get the state used by Java threads without a binding
+	 * @return the default state
+	 */
+	public static LuaState getDefault()
+	{
+		return default_state;
+	}
+
+	/**
+	 * Get the state of the current Java thread
+	 * @return the state bound to the current Java thread, or the default state
+	 */
+	public static LuaState current()
+	{
+		if(any_bound)
+		{
+			LuaState s = bound_state.get();
+			if(s != null)
+			    return s;
+		}
+		return default_state;
+	}
+
+	/**
+	 * Bind a state to the current Java thread
+	 * @param state the state to use from now on, or null for the default state
+	 * @return the state bound before, or null if it was the default state
+	 */
+	public static LuaState bind(LuaState state)
+	{
+		LuaState prev = (any_bound ? bound_state.get() : null);
+		if(state != null && state != default_state)
+		{
+			any_bound = true;
+			bound_state.set(state);
+		}
+		else if(prev != null)
+		    bound_state.remove();
+		return prev;
+	}
+
+	/**
+	 * Get the main thread of this state
+	 * @return the main {@link LuaThread}, whose environment holds the globals
+	 */
+	public LuaThread getMainThread()
+	{
+		return _mainThread;
+	}
+
+	/**
+	 * Switch the number mode of this state.
+	 * <p>
+	 * In integer-only mode every number is a {@link LuaInteger} or {@link LuaLong},
+	 * {@code /} is floor division, {@code ^} is integer exponentiation,
+	 * overflow wraps around, dividing by zero is an error,
+	 * other conversions from double truncate toward zero,
+	 * the compiler rejects numerals which are not integers,
+	 * and the math library only provides its integer functions.
+	 * This must be done before any library is loaded or chunk is compiled in this state.
+	 * @param integerOnly true for integer-only mode, false for the default mode with doubles
+	 */
+	public void setIntegerOnly(boolean integerOnly)
+	{
+		if(integerOnly)
+		    any_integer_only = true;
+		_integerOnly = integerOnly;
+	}
+
+	/**
+	 * Get the number mode of this state
+	 * @return true if this state is in integer-only mode
+	 * @see #setIntegerOnly(boolean)
+	 */
+	public boolean isIntegerOnly()
+	{
+		return _integerOnly;
+	}
+
+	/**
+	 * Get the globals of this state
+	 * @return the environment of the main thread, or null if not initialized
+	 */
+	public LuaValue getGlobals()
+	{
+		return _mainThread.getfenv();
+	}
+}
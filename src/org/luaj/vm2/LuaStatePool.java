@@ -0,0 +1,358 @@
+package org.luaj.vm2;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.luaj.vm2.lib.JsePlatform;
+import org.luaj.vm2.lib.LibPackage;
+
+/**
+ * Fixed number of initialized {@link LuaState}s for exclusive use by one Java thread at a time.
+ * <p>
+ * Each state is initialized once by the {@link Initializer}, typically by loading the libraries and some scripts.
+ * Everything then reachable from the state is recorded as its baseline:
+ * the globals, {@code package.loaded}, the string library and the per-type metatables,
+ * with all tables, metatables, function environments and upvalues found through them.
+ * <p>
+ * {@link #checkout()} hands out a state, {@link #checkin(LuaState)} resets it to its baseline and makes it available again:
+ * <pre> {@code
+ * LuaState s = pool.checkout();
+ * LuaState.bind(s);
+ * try {
+ *     s.getGlobals().get("handler").call(request);
+ * } finally {
+ *     pool.checkin(s);
+ * }
+ * } </pre>
+ * A recorded table is marked dirty on its first change, so the reset only copies back the tables
+ * which have been changed since the last checkout. Tables created after the baseline are dropped with the
+ * references to them. Upvalues which do not hold tables and the contents of userdata are not restored.
+ * <p>
+ * The pool counts checkouts, the time spent waiting for a free state and the time spent resetting,
+ * for tuning its size.
+ */
+public final class LuaStatePool
+{
+	/** Sets up a new state of the pool, which is bound to the current Java thread while it runs */
+	public interface Initializer
+	{
+		void initialize(LuaState state);
+	}
+
+	/** Initializer which loads the standard libraries */
+	public static final Initializer STANDARD_GLOBALS = new Initializer()
+	{
+		@Override
+		public void initialize(LuaState state)
+		{
+			JsePlatform.standardGlobals();
+		}
+	};
+
+	private final ArrayBlockingQueue<LuaState> _free;
+	private final int                        _size;
+
+	private final AtomicLong                 _checkouts        = new AtomicLong();
+	private final AtomicLong                 _checkoutNanos    = new AtomicLong();
+	private final AtomicLong                 _maxCheckoutNanos = new AtomicLong();
+	private final AtomicLong                 _resets           = new AtomicLong();
+	private final AtomicLong                 _resetNanos       = new AtomicLong();
+	private final AtomicLong                 _maxResetNanos    = new AtomicLong();
+	private final AtomicLong                 _resetTables      = new AtomicLong();
+
+	/**
+	 * Create a pool of states with the standard libraries
+	 * @param size number of states
+	 */
+	public LuaStatePool(int size)
+	{
+		this(size, STANDARD_GLOBALS);
+	}
+
+	/**
+	 * Create a pool of states
+	 * @param size number of states
+	 * @param init sets up each state before its baseline is recorded
+	 */
+	public LuaStatePool(int size, Initializer init)
+	{
+		if(size <= 0)
+		    throw new IllegalArgumentException("pool size must be positive: " + size);
+		_size = size;
+		_free = new ArrayBlockingQueue<LuaState>(size);
+		LuaState prev = LuaState.bind(null);
+		try
+		{
+			for(int i = 0; i < size; i++)
+			{
+				LuaState s = new LuaState();
+				LuaState.bind(s);
+				init.initialize(s);
+				s._snapshot = new Snapshot(this, s);
+				_free.add(s);
+			}
+		}
+		finally
+		{
+			LuaState.bind(prev);
+		}
+	}
+
+	/**
+	 * Take a state out of the pool, waiting until one is free
+	 * @return the state, which the caller binds to the Java thread using it
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public LuaState checkout() throws InterruptedException
+	{
+		long t = System.nanoTime();
+		LuaState s = _free.take();
+		s._snapshot._out = true;
+		_checkouts.incrementAndGet();
+		record(_checkoutNanos, _maxCheckoutNanos, System.nanoTime() - t);
+		return s;
+	}
+
+	/**
+	 * Reset a state to its baseline and return it to the pool.
+	 * The state is unbound if it is bound to the current Java thread.
+	 * It must not be used by any Java thread after this.
+	 * @param state a state taken out of this pool by {@link #checkout()}
+	 */
+	public void checkin(LuaState state)
+	{
+		Snapshot snap = state._snapshot;
+		if(snap == null || snap._pool != this)
+		    throw new IllegalArgumentException("state does not belong to this pool");
+		if(!snap._out)
+		    throw new IllegalStateException("state is already checked in");
+		if(LuaState.current() == state)
+		    LuaState.bind(null);
+		long t = System.nanoTime();
+		int n = snap.reset(state);
+		snap._out = false;
+		_resets.incrementAndGet();
+		_resetTables.addAndGet(n);
+		record(_resetNanos, _maxResetNanos, System.nanoTime() - t);
+		_free.add(state);
+	}
+
+	private static void record(AtomicLong total, AtomicLong max, long nanos)
+	{
+		total.addAndGet(nanos);
+		for(long m; nanos > (m = max.get()) && !max.compareAndSet(m, nanos);)
+		{
+		}
+	}
+
+	/** @return the number of states */
+	public int getSize()
+	{
+		return _size;
+	}
+
+	/** @return the number of states not checked out */
+	public int getFreeCount()
+	{
+		return _free.size();
+	}
+
+	/** @return the number of checkouts so far */
+	public long getCheckoutCount()
+	{
+		return _checkouts.get();
+	}
+
+	/** @return the total time in nanoseconds spent in {@link #checkout()}, mostly waiting for a free state */
+	public long getCheckoutNanos()
+	{
+		return _checkoutNanos.get();
+	}
+
+	/** @return the longest time in nanoseconds spent in one {@link #checkout()} */
+	public long getMaxCheckoutNanos()
+	{
+		return _maxCheckoutNanos.get();
+	}
+
+	/** @return the number of resets so far */
+	public long getResetCount()
+	{
+		return _resets.get();
+	}
+
+	/** @return the total time in nanoseconds spent resetting states */
+	public long getResetNanos()
+	{
+		return _resetNanos.get();
+	}
+
+	/** @return the longest time in nanoseconds spent in one reset */
+	public long getMaxResetNanos()
+	{
+		return _maxResetNanos.get();
+	}
+
+	/** @return the total number of dirty tables restored by all resets */
+	public long getResetTableCount()
+	{
+		return _resetTables.get();
+	}
+
+	/** Recorded contents of a table in a state of a pool */
+	static final class TableBaseline
+	{
+		private final LuaTable   _table;
+		private final Snapshot   _snapshot;
+		private final LuaValue[] _array;
+		private final LuaValue[] _hashKeys;
+		private final LuaValue[] _hashValues;
+		private final int        _hashEntries;
+		private final LuaValue   _metatable;
+		private boolean          _dirty;
+
+		TableBaseline(LuaTable t, Snapshot snapshot)
+		{
+			_table = t;
+			_snapshot = snapshot;
+			_array = t._array.clone();
+			_hashKeys = t._hashKeys.clone();
+			_hashValues = t._hashValues.clone();
+			_hashEntries = t._hashEntries;
+			_metatable = t._metatable;
+		}
+
+		/** Called by the table before each change */
+		void touch()
+		{
+			if(!_dirty)
+			{
+				_dirty = true;
+				_snapshot._dirty.add(this);
+			}
+		}
+
+		void restore()
+		{
+			LuaTable t = _table;
+			t._array = (_array.length > 0 ? _array.clone() : _array);
+			t._hashKeys = (_hashKeys.length > 0 ? _hashKeys.clone() : _hashKeys);
+			t._hashValues = (_hashValues.length > 0 ? _hashValues.clone() : _hashValues);
+			t._hashEntries = _hashEntries;
+			t._metatable = _metatable;
+			_dirty = false;
+		}
+	}
+
+	/** Baseline of a whole state */
+	static final class Snapshot
+	{
+		final LuaStatePool                           _pool;
+		final ArrayList<TableBaseline>               _dirty   = new ArrayList<TableBaseline>();
+		boolean                                      _out;
+
+		private IdentityHashMap<Object, Object>      _visited = new IdentityHashMap<Object, Object>(); // only while recording
+		private ArrayList<LuaValue>                  _pending = new ArrayList<LuaValue>();
+		private final LuaValue                       _globals;
+		private final LibPackage                     _packageLib;
+		private final LuaTable                       _stringLib;
+		private final LuaValue                       _nilMetatable;
+		private final LuaValue                       _booleanMetatable;
+		private final LuaValue                       _numberMetatable;
+		private final LuaValue                       _stringMetatable;
+		private final LuaValue                       _functionMetatable;
+		private final LuaValue                       _threadMetatable;
+
+		Snapshot(LuaStatePool pool, LuaState s)
+		{
+			_pool = pool;
+			_globals = s._mainThread.getfenv();
+			_packageLib = s._packageLib;
+			_stringLib = s._stringLib;
+			_nilMetatable = s._nilMetatable;
+			_booleanMetatable = s._booleanMetatable;
+			_numberMetatable = s._numberMetatable;
+			_stringMetatable = s._stringMetatable;
+			_functionMetatable = s._functionMetatable;
+			_threadMetatable = s._threadMetatable;
+
+			visit(_globals);
+			visit(_stringLib);
+			visit(_nilMetatable);
+			visit(_booleanMetatable);
+			visit(_numberMetatable);
+			visit(_stringMetatable);
+			visit(_functionMetatable);
+			visit(_threadMetatable);
+			if(_packageLib != null)
+			{
+				visit(_packageLib.LOADED);
+				visit(_packageLib.PACKAGE);
+			}
+			while(!_pending.isEmpty())
+			    record(_pending.remove(_pending.size() - 1));
+			_visited = null;
+			_pending = null;
+		}
+
+		private void visit(LuaValue v)
+		{
+			if(v != null && !v.isnil() && !(v instanceof LuaString) && !(v instanceof LuaNumber) && !(v instanceof LuaBoolean)
+			        && _visited.put(v, v) == null)
+			    _pending.add(v);
+		}
+
+		private void record(LuaValue v)
+		{
+			if(v instanceof LuaTable)
+			{
+				LuaTable t = (LuaTable)v;
+				if(t._baseline != null)
+				    throw new IllegalStateException("table is shared with another pooled state");
+				t._baseline = new TableBaseline(t, this);
+				Varargs n;
+				for(LuaValue k = LuaValue.NIL; !(k = (n = t.next(k)).arg1()).isnil();)
+				{
+					visit(k);
+					visit(n.arg(2));
+				}
+				visit(t._metatable);
+			}
+			else if(v instanceof LuaClosure)
+			{
+				LuaClosure c = (LuaClosure)v;
+				visit(c.getfenv());
+				for(UpValue u : c._upValues)
+				    if(u != null)
+				        visit(u.getValue());
+			}
+			else if(v instanceof LuaFunction || v instanceof LuaThread)
+			    visit(v.getfenv());
+			else if(v instanceof LuaUserdata)
+			    visit(((LuaUserdata)v)._metatable);
+		}
+
+		/** @return the number of tables restored */
+		int reset(LuaState s)
+		{
+			int n = _dirty.size();
+			for(int i = 0; i < n; i++)
+			    _dirty.get(i).restore();
+			_dirty.clear();
+			LuaThread main = s._mainThread;
+			s._running = main;
+			main.setfenv(_globals);
+			main._err = null;
+			s._packageLib = _packageLib;
+			s._stringLib = _stringLib;
+			s._nilMetatable = _nilMetatable;
+			s._booleanMetatable = _booleanMetatable;
+			s._numberMetatable = _numberMetatable;
+			s._stringMetatable = _stringMetatable;
+			s._functionMetatable = _functionMetatable;
+			s._threadMetatable = _threadMetatable;
+			return n;
+		}
+	}
+}
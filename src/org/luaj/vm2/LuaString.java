@@ -4,10 +4,14 @@ import java.io.ByteArrayInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.luaj.vm2.lib.LibMath;
-import org.luaj.vm2.lib.LibString;
 
 /**
  * Subclass of {@link LuaValue} for representing lua strings.
@@ -33,7 +37,11 @@ import org.luaj.vm2.lib.LibString;
  */
 public final class LuaString extends LuaValue
 {
-	/** The singleton instance representing lua {@code true} */
+	/** Metatable most recently set for strings in any {@link LuaState}.
+	 * @deprecated each state has its own string metatable, use {@link LuaState#_stringMetatable} of {@link LuaState#current()}.
+	 * This only mirrors the latest value for code written against a single global state, assigning it has no effect.
+	 */
+	@Deprecated
 	public static LuaValue                                                   s_metatable;
 
 	/** The bytes for the string */
@@ -45,7 +53,63 @@ public final class LuaString extends LuaValue
 	/** The number of bytes that comprise this string */
 	public final int                                                         _length;
 
-	private static final ConcurrentHashMap<String, WeakReference<LuaString>> index_java = new ConcurrentHashMap<String, WeakReference<LuaString>>();
+	/** What is known about the Java String of this string: null for nothing yet,
+	 * {@link Boolean#TRUE} or {@link Boolean#FALSE} for whether all bytes are ASCII,
+	 * or the String itself once converted when {@link #cache_jstring} is set
+	 */
+	private Object                                                           _jstring;
+
+	private static final Charset                                             LATIN1                    = Charset.forName("ISO-8859-1");
+
+	/** Keep the Java String of each string converted by {@link #tojstring()} in the string, for converting it again.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean                                                    cache_jstring             = false;
+
+	/** Byte arrays at least this long are not shared by small substrings, see {@link #substring(int, int)}.
+	 * This can be changed by Java startup code if desired, 0 disables copying.
+	 */
+	public static int                                                        substring_copy_min_parent = 4096;
+
+	/** Substrings shorter than the parent byte array length divided by this ratio are copied.
+	 * This can be changed by Java startup code if desired, 0 or less disables copying.
+	 */
+	public static int                                                        substring_copy_ratio      = 8;
+
+	/** Maximum number of entries in the cache used by {@link #valueOf(String)}.
+	 * This can be changed by Java startup code if desired, 0 means unbounded.
+	 */
+	public static int                                                        index_java_max_size       = 0;
+
+	private static final ConcurrentHashMap<String, JavaStringRef>            index_java                = new ConcurrentHashMap<String, JavaStringRef>();
+	private static final ReferenceQueue<LuaString>                           index_java_queue          = new ReferenceQueue<LuaString>();
+	private static final StripedCounter                                      index_java_hits           = new StripedCounter();
+	private static final AtomicLong                                          index_java_misses         = new AtomicLong();
+	private static final AtomicLong                                          index_java_evictions      = new AtomicLong();
+
+	/** Needles at least this long are searched with a skip table by {@link #indexOf(LuaString, int)} */
+	private static final int                                                 HORSPOOL_MIN_NEEDLE       = 4;
+
+	/** Haystacks shorter than this are always scanned directly by {@link #indexOf(LuaString, int)} */
+	private static final int                                                 HORSPOOL_MIN_HAYSTACK     = 64;
+
+	/** Number of skip tables kept for later searches, a power of 2 */
+	private static final int                                                 SKIP_CACHE_SIZE           = 64;
+
+	/** Skip tables of recent needles, each in the slot of the identity hash of its needle */
+	private static final SkipTable[]                                         skip_cache                = new SkipTable[SKIP_CACHE_SIZE];
+
+	/** Weak reference to a cached string which remembers its key for expunging */
+	private static final class JavaStringRef extends WeakReference<LuaString>
+	{
+		final String _key;
+
+		JavaStringRef(String key, LuaString s)
+		{
+			super(s, index_java_queue);
+			_key = key;
+		}
+	}
 
 	/**
 	 * Get a {@link LuaString} instance whose bytes match
@@ -55,28 +119,79 @@ public final class LuaString extends LuaValue
 	 */
 	public static LuaString valueOf(String string)
 	{
-		WeakReference<LuaString> w = index_java.get(string);
+		JavaStringRef w = index_java.get(string);
 		LuaString s = w != null ? w.get() : null;
-		if(s == null)
+		if(s != null)
 		{
-			char[] c = string.toCharArray();
-			byte[] b = new byte[lengthAsUtf8(c)];
-			encodeToUtf8(c, b, 0);
-			LuaString ss = valueOf(b, 0, b.length);
-			do
-			{
-				if(w != null)
-				    index_java.remove(string, w);
-				WeakReference<LuaString> ww = new WeakReference<LuaString>(ss);
-				w = index_java.putIfAbsent(string, ww);
-				if(w == null) w = ww;
-				s = w.get();
-			}
-			while(s == null);
+			index_java_hits.increment();
+			return s;
+		}
+		index_java_misses.incrementAndGet();
+		expungeJavaIndex();
+		char[] c = string.toCharArray();
+		byte[] b = new byte[lengthAsUtf8(c)];
+		encodeToUtf8(c, b, 0);
+		LuaString ss = valueOf(b, 0, b.length);
+		ss._jstring = (cache_jstring ? string : Boolean.valueOf(b.length == c.length));
+		do
+		{
+			if(w != null)
+			    index_java.remove(string, w);
+			JavaStringRef ww = new JavaStringRef(string, ss);
+			w = index_java.putIfAbsent(string, ww);
+			if(w == null) w = ww;
+			s = w.get();
 		}
+		while(s == null);
+		if(index_java_max_size > 0 && index_java.size() > index_java_max_size)
+		    evictJavaIndex();
 		return s;
 	}
 
+	/** Remove the cache entries whose strings have been collected */
+	private static void expungeJavaIndex()
+	{
+		Reference<? extends LuaString> r;
+		while((r = index_java_queue.poll()) != null)
+			index_java.remove(((JavaStringRef)r)._key, r);
+	}
+
+	/** Remove arbitrary cache entries until the size is a quarter below the bound */
+	private static void evictJavaIndex()
+	{
+		int n = index_java.size() - index_java_max_size + (index_java_max_size >> 2);
+		for(Iterator<JavaStringRef> it = index_java.values().iterator(); n > 0 && it.hasNext(); --n)
+		{
+			it.next();
+			it.remove();
+			index_java_evictions.incrementAndGet();
+		}
+	}
+
+	/** Get the number of {@link #valueOf(String)} calls served from the cache */
+	public static long getJavaIndexHits()
+	{
+		return index_java_hits.get();
+	}
+
+	/** Get the number of {@link #valueOf(String)} calls which had to encode the string */
+	public static long getJavaIndexMisses()
+	{
+		return index_java_misses.get();
+	}
+
+	/** Get the number of cache entries removed to respect {@link #index_java_max_size} */
+	public static long getJavaIndexEvictions()
+	{
+		return index_java_evictions.get();
+	}
+
+	/** Get the current number of cache entries, including not yet expunged ones */
+	public static int getJavaIndexSize()
+	{
+		return index_java.size();
+	}
+
 	/** Construct a {@link LuaString} around a byte array without copying the contents.
 	 * <p>
 	 * The array is used directly after this is called, so clients must not change contents.
@@ -145,7 +260,7 @@ public final class LuaString extends LuaValue
 	@Override
 	public LuaValue getmetatable()
 	{
-		return s_metatable;
+		return LuaState.current()._stringMetatable;
 	}
 
 	@Override
@@ -160,17 +275,61 @@ public final class LuaString extends LuaValue
 		return "string";
 	}
 
+	/**
+	 * Convert to a Java String, interpreting the bytes as UTF8.
+	 * <p>
+	 * Pure ASCII strings are converted directly, byte per char.
+	 * If {@link #cache_jstring} is set, the result is kept for converting the same string again.
+	 */
 	@Override
 	public String tojstring()
 	{
-		return decodeAsUtf8(_bytes, _offset, _length);
+		Object j = _jstring;
+		if(j instanceof String)
+		    return (String)j;
+		String s = isAscii() ? new String(_bytes, _offset, _length, LATIN1) : decodeAsUtf8(_bytes, _offset, _length);
+		if(cache_jstring)
+		    _jstring = s;
+		return s;
+	}
+
+	/**
+	 * Check if all bytes are 7-bit ASCII.
+	 * <p>
+	 * The bytes are scanned once, later calls use the remembered result.
+	 * @return true if no byte has its high bit set
+	 */
+	public boolean isAscii()
+	{
+		Object j = _jstring;
+		if(j == Boolean.TRUE)
+		    return true;
+		if(j == Boolean.FALSE)
+		    return false;
+		boolean ascii = true;
+		for(int i = _offset, n = _offset + _length; i < n; ++i)
+		{
+			if(_bytes[i] < 0)
+			{
+				ascii = false;
+				break;
+			}
+		}
+		if(j == null)
+		    _jstring = Boolean.valueOf(ascii);
+		return ascii;
 	}
 
 	// get is delegated to the string library
 	@Override
 	public LuaValue get(LuaValue key)
 	{
-		return s_metatable != null ? gettable(this, key) : LibString.instance.get(key);
+		LuaState s = LuaState.current();
+		LuaValue mt = s._stringMetatable;
+		if(mt == null)
+		    return s._stringLib.get(key);
+		LuaValue tm = mt.rawget(INDEX);
+		return tm.isfunction() ? tm.call(this, key) : tm.isnil() ? gettable(this, key) : tm.get(key);
 	}
 
 	// unary operators
@@ -501,7 +660,8 @@ public final class LuaString extends LuaValue
 	@Override
 	public long checklong()
 	{
-		return (long)checkdouble();
+		double d = checkdouble();
+		return d >= 0x1p53 || d <= -0x1p53 ? tonumber(10).tolong() : (long)d;
 	}
 
 	@Override
@@ -595,7 +755,8 @@ public final class LuaString extends LuaValue
 	@Override
 	public long tolong()
 	{
-		return (long)todouble();
+		double d = scannumber(10);
+		return d >= 0x1p53 || d <= -0x1p53 ? tonumber(10).tolong() : (long)d;
 	}
 
 	@Override
@@ -658,11 +819,61 @@ public final class LuaString extends LuaValue
 		return this;
 	}
 
+	/**
+	 * Get a substring which may outlive this string.
+	 * <p>
+	 * Small substrings of a large byte array are copied,
+	 * so that they do not keep the whole array reachable.
+	 * Otherwise the byte array is shared.
+	 * @param beginIndex the first index of the substring
+	 * @param endIndex the index beyond the last byte of the substring
+	 * @return {@link LuaString} holding the substring
+	 * @see #substring_copy_min_parent
+	 * @see #substring_copy_ratio
+	 * @see #substringShared(int, int)
+	 */
 	public LuaString substring(int beginIndex, int endIndex)
+	{
+		int n = endIndex - beginIndex;
+		int m = _bytes.length;
+		int ratio = substring_copy_ratio;
+		if(substring_copy_min_parent > 0 && m >= substring_copy_min_parent && ratio > 0 && n < m / ratio)
+		{
+			byte[] b = new byte[n];
+			System.arraycopy(_bytes, _offset + beginIndex, b, 0, n);
+			return new LuaString(b, 0, n);
+		}
+		return new LuaString(_bytes, _offset + beginIndex, n);
+	}
+
+	/**
+	 * Get a substring which always shares the byte array of this string.
+	 * <p>
+	 * Used for transient values such as the captures consumed by {@code string.gsub},
+	 * which must not be stored where they can outlive this string.
+	 * @param beginIndex the first index of the substring
+	 * @param endIndex the index beyond the last byte of the substring
+	 * @return {@link LuaString} sharing the byte array of this string
+	 * @see #substring(int, int)
+	 */
+	public LuaString substringShared(int beginIndex, int endIndex)
 	{
 		return new LuaString(_bytes, _offset + beginIndex, endIndex - beginIndex);
 	}
 
+	/**
+	 * Get a string which does not share a larger byte array.
+	 * @return {@code this} if it owns its whole byte array, otherwise a copy of its bytes
+	 */
+	public LuaString compact()
+	{
+		if(_offset == 0 && _length == _bytes.length)
+		    return this;
+		byte[] b = new byte[_length];
+		System.arraycopy(_bytes, _offset, b, 0, _length);
+		return new LuaString(b, 0, _length);
+	}
+
 	@Override
 	public int hashCode()
 	{
@@ -823,30 +1034,88 @@ public final class LuaString extends LuaValue
 	 */
 	public int indexOf(byte b, int start)
 	{
-		for(int i = 0, j = _offset + start; i < _length; ++i)
+		for(int i = _offset + start, n = _offset + _length; i < n; ++i)
 		{
-			if(_bytes[j++] == b)
-			    return i;
+			if(_bytes[i] == b)
+			    return i - _offset;
 		}
 		return -1;
 	}
 
+	/** Skip table for searches using the first bytes of a string as the needle, which it refers to weakly */
+	private static final class SkipTable extends WeakReference<LuaString>
+	{
+		final int   _length;
+		final int[] _shift = new int[256];
+
+		SkipTable(LuaString s, int length)
+		{
+			super(s);
+			_length = length;
+			final int n = length - 1;
+			for(int i = 0; i < 256; ++i)
+				_shift[i] = n + 1;
+			for(int i = 0; i < n; ++i)
+				_shift[s._bytes[s._offset + i] & 0xff] = n - i;
+		}
+	}
+
+	/** @return the skip table for the first bytes of a needle, from {@link #skip_cache} or built now */
+	private static int[] skipTable(LuaString s, int length)
+	{
+		int i = System.identityHashCode(s) & (SKIP_CACHE_SIZE - 1);
+		SkipTable t = skip_cache[i];
+		if(t == null || t.get() != s || t._length != length)
+		    skip_cache[i] = t = new SkipTable(s, length);
+		return t._shift;
+	}
+
 	/**
 	 * Find the index of a string starting at a point in this string
 	 * @param s the string to search for
 	 * @param start the first index in the string
 	 * @return index of first match found, or -1 if not found.
+	 * @see #indexOf(LuaString, int, int)
 	 */
 	public int indexOf(LuaString s, int start)
 	{
-		final int slen = s.length();
+		return indexOf(s, s._length, start);
+	}
+
+	/**
+	 * Find the index of the first bytes of a string starting at a point in this string
+	 * <p>
+	 * Long needles are searched with the Boyer-Moore-Horspool algorithm,
+	 * using a skip table which is kept in a small cache for later searches with the same string and length.
+	 * @param s the string whose first bytes to search for
+	 * @param slen the number of bytes of s to search for
+	 * @param start the first index in the string
+	 * @return index of first match found, or -1 if not found.
+	 */
+	public int indexOf(LuaString s, int slen, int start)
+	{
 		final int limit = _offset + _length - slen;
-		for(int i = _offset + start; i <= limit; ++i)
+		if(slen == 0)
+		    return start <= _length ? start : -1;
+		final byte[] sb = s._bytes;
+		final int soff = s._offset;
+		final int last = slen - 1;
+		final byte blast = sb[soff + last];
+		if(slen >= HORSPOOL_MIN_NEEDLE && _length - start >= HORSPOOL_MIN_HAYSTACK)
 		{
-			if(equals(_bytes, i, s._bytes, s._offset, slen))
+			final int[] shift = skipTable(s, slen);
+			for(int i = _offset + start; i <= limit; i += shift[_bytes[i + last] & 0xff])
 			{
-				return i;
+				if(_bytes[i + last] == blast && equals(_bytes, i, sb, soff, last))
+				    return i - _offset;
 			}
+			return -1;
+		}
+		final byte bfirst = sb[soff];
+		for(int i = _offset + start; i <= limit; ++i)
+		{
+			if(_bytes[i] == bfirst && _bytes[i + last] == blast && equals(_bytes, i, sb, soff, slen))
+			    return i - _offset;
 		}
 		return -1;
 	}
@@ -864,7 +1133,7 @@ public final class LuaString extends LuaValue
 		{
 			if(equals(_bytes, i, s._bytes, s._offset, slen))
 			{
-				return i;
+				return i - _offset;
 			}
 		}
 		return -1;
@@ -986,6 +1255,88 @@ public final class LuaString extends LuaValue
 		return true;
 	}
 
+	// --------------------- number formatting -----------------------
+
+	/** Maximum number of bytes written by {@link #formatLong(long, byte[], int)} */
+	public static final int       MAX_LONG_CHARS   = 20;
+
+	/** Maximum number of bytes written by {@link #formatDouble(double, byte[], int)} */
+	public static final int       MAX_DOUBLE_CHARS = 32;
+
+	private static final double[] POW10            = {
+	                                               1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+	                                               1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22, };
+
+	/**
+	 * Write the decimal digits of a long value as ASCII bytes.
+	 * @param v the value to format
+	 * @param bytes destination with room for {@link #MAX_LONG_CHARS} bytes from {@code off}
+	 * @param off offset in destination
+	 * @return offset just beyond the last byte written
+	 */
+	public static int formatLong(long v, byte[] bytes, int off)
+	{
+		if(v >= 0) v = -v;
+		else bytes[off++] = '-';
+		int n = 1;
+		for(long t = v; t <= -10; t /= 10)
+			++n;
+		int end = off + n;
+		for(int i = end; --i >= off; v /= 10)
+			bytes[i] = (byte)('0' - (int)(v % 10));
+		return end;
+	}
+
+	/**
+	 * Write a double value as ASCII bytes using the format of {@link LuaDouble#tojstring()}:
+	 * integral values as longs, otherwise the shortest decimal that reads back as the same float.
+	 * @param v the value to format
+	 * @param bytes destination with room for {@link #MAX_DOUBLE_CHARS} bytes from {@code off}
+	 * @param off offset in destination
+	 * @return offset just beyond the last byte written
+	 */
+	public static int formatDouble(double v, byte[] bytes, int off)
+	{
+		long l = (long)v;
+		if(l == v && v < 0x1p63)
+		    return formatLong(l, bytes, off);
+		String s;
+		if(Double.isNaN(v))
+			s = LuaDouble.JSTR_NAN;
+		else if(Double.isInfinite(v))
+			s = v < 0 ? LuaDouble.JSTR_NEGINF : LuaDouble.JSTR_POSINF;
+		else
+		{
+			float f = (float)v;
+			double a = Math.abs(f);
+			if(a >= 1e-3 && a < 1e7)
+			{
+				for(int k = 1; k <= 12; ++k)
+				{
+					double scale = POW10[k];
+					long m = (long)Math.rint(a * scale);
+					if((float)(m / scale) == (float)a)
+					{
+						if(f < 0) bytes[off++] = '-';
+						long p = (long)scale;
+						off = formatLong(m / p, bytes, off);
+						bytes[off++] = '.';
+						for(m %= p; --k >= 0; m %= p)
+						{
+							p /= 10;
+							bytes[off++] = (byte)('0' + (int)(m / p));
+						}
+						return off;
+					}
+				}
+			}
+			s = Float.toString(f);
+		}
+		for(int i = 0, n = s.length(); i < n; ++i)
+			bytes[off++] = (byte)s.charAt(i);
+		return off;
+	}
+
 	// --------------------- number conversion -----------------------
 
 	/**
@@ -997,7 +1348,48 @@ public final class LuaString extends LuaValue
 	public LuaValue tonumber(int base)
 	{
 		double d = scannumber(base);
-		return Double.isNaN(d) ? NIL : valueOf(d);
+		if(Double.isNaN(d))
+		    return NIL;
+		if(d >= 0x1p53 || d <= -0x1p53)
+		{
+			LuaValue l = scanexact(base);
+			if(l != null)
+			    return l;
+		}
+		return valueOf(d);
+	}
+
+	/**
+	 * Convert an integer beyond the exact range of double to a {@link LuaLong}.
+	 * @param base the base to use, such as 10
+	 * @return {@link LuaNumber} holding the exact value,
+	 * or null if the string is not an integer or doesn't fit in a long
+	 */
+	private LuaValue scanexact(int base)
+	{
+		int i = _offset, j = _offset + _length;
+		while(i < j && _bytes[i] == ' ')
+			++i;
+		while(i < j && _bytes[j - 1] == ' ')
+			--j;
+		if((base == 10 || base == 16) && (_bytes[i] == '0' && i + 1 < j && (_bytes[i + 1] == 'x' || _bytes[i + 1] == 'X')))
+		{
+			base = 16;
+			i += 2;
+		}
+		boolean neg = (_bytes[i] == '-');
+		if(neg)
+		    ++i;
+		long x = 0; // accumulated negatively to reach Long.MIN_VALUE
+		for(; i < j; i++)
+		{
+			int digit = _bytes[i] - (base <= 10 || (_bytes[i] >= '0' && _bytes[i] <= '9') ? '0' :
+			        _bytes[i] >= 'A' && _bytes[i] <= 'Z' ? ('A' - 10) : ('a' - 10));
+			if(digit < 0 || digit >= base || x < (Long.MIN_VALUE + digit) / base)
+			    return null;
+			x = x * base - digit;
+		}
+		return neg ? valueOf(x) : x != Long.MIN_VALUE ? valueOf(-x) : null;
 	}
 
 	/**
@@ -1039,15 +1431,28 @@ public final class LuaString extends LuaValue
 	private double scanlong(int base, int start, int end)
 	{
 		long x = 0;
+		double d = 0;
 		boolean neg = (_bytes[start] == '-');
+		boolean big = false;
+		long limit = (Long.MAX_VALUE - base) / base;
 		for(int i = (neg ? start + 1 : start); i < end; i++)
 		{
 			int digit = _bytes[i] - (base <= 10 || (_bytes[i] >= '0' && _bytes[i] <= '9') ? '0' :
 			        _bytes[i] >= 'A' && _bytes[i] <= 'Z' ? ('A' - 10) : ('a' - 10));
 			if(digit < 0 || digit >= base)
 			    return Double.NaN;
-			x = x * base + digit;
+			if(big)
+				d = d * base + digit;
+			else if(x <= limit)
+				x = x * base + digit;
+			else
+			{
+				big = true;
+				d = (double)x * base + digit;
+			}
 		}
+		if(big)
+		    return base == 10 ? Double.NaN : neg ? -d : d; // let scandouble round decimals correctly
 		return neg ? -x : x;
 	}
 
@@ -1061,32 +1466,64 @@ public final class LuaString extends LuaValue
 	private double scandouble(int start, int end)
 	{
 		if(end > start + 64) end = start + 64;
-		for(int i = start; i < end; i++)
+		int i = start;
+		boolean neg = false;
+		if(_bytes[i] == '-' || _bytes[i] == '+')
+		    neg = (_bytes[i++] == '-');
+		long m = 0;
+		int ndigits = 0, nsig = 0, exp = 0;
+		boolean exact = true;
+		for(; i < end && _bytes[i] >= '0' && _bytes[i] <= '9'; ++i, ++ndigits)
 		{
-			switch(_bytes[i])
+			if(nsig < 18)
 			{
-				case '-':
-				case '+':
-				case '.':
-				case 'e':
-				case 'E':
-				case '0':
-				case '1':
-				case '2':
-				case '3':
-				case '4':
-				case '5':
-				case '6':
-				case '7':
-				case '8':
-				case '9':
-					break;
-				default:
-					return Double.NaN;
+				m = m * 10 + (_bytes[i] - '0');
+				if(m != 0) ++nsig;
 			}
+			else
+			{
+				++exp;
+				exact &= _bytes[i] == '0';
+			}
+		}
+		if(i < end && _bytes[i] == '.')
+		{
+			for(++i; i < end && _bytes[i] >= '0' && _bytes[i] <= '9'; ++i, ++ndigits)
+			{
+				if(nsig < 18)
+				{
+					m = m * 10 + (_bytes[i] - '0');
+					if(m != 0) ++nsig;
+					--exp;
+				}
+				else
+					exact &= _bytes[i] == '0';
+			}
+		}
+		if(ndigits == 0)
+		    return Double.NaN;
+		if(i < end && (_bytes[i] == 'e' || _bytes[i] == 'E'))
+		{
+			boolean eneg = false;
+			if(++i < end && (_bytes[i] == '-' || _bytes[i] == '+'))
+			    eneg = (_bytes[i++] == '-');
+			if(i >= end)
+			    return Double.NaN;
+			int e = 0;
+			for(; i < end && _bytes[i] >= '0' && _bytes[i] <= '9'; ++i)
+				if(e < 100000) e = e * 10 + (_bytes[i] - '0');
+			exp += eneg ? -e : e;
+		}
+		if(i != end)
+		    return Double.NaN;
+		// exact when the mantissa and the power of ten are both exactly representable
+		if(exact && m < (1L << 53) && exp >= -22 && exp <= 22)
+		{
+			double d = exp < 0 ? m / POW10[-exp] : m * POW10[exp];
+			return neg ? -d : d;
 		}
 		char[] c = new char[end - start];
-		for(int i = start; i < end; i++)
+		for(i = start; i < end; i++)
 			c[i - start] = (char)_bytes[i];
 		try
 		{
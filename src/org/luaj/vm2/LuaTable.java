@@ -68,6 +68,12 @@ public class LuaTable extends LuaValue
 	/** metatable for this table, or null */
 	protected LuaValue             _metatable;
 
+	/** contents recorded by a {@link LuaStatePool} to reset to, which is marked dirty on the first change, or null */
+	LuaStatePool.TableBaseline     _baseline;
+
+	/** snapshot table this table is copied from on first access, or marks a table frozen by a {@link LuaSnapshot}, or null */
+	LuaSnapshot.Source             _source;
+
 	/** Construct empty table */
 	public LuaTable()
 	{
@@ -166,12 +172,22 @@ public class LuaTable extends LuaValue
 	@Override
 	public void presize(int narray)
 	{
+		if(_source != null)
+		    _source.write(this);
 		if(narray > _array.length)
-		    _array = resize(_array, narray);
+		{
+			if(_baseline != null)
+			    _baseline.touch();
+			_array = resize(_array, narray);
+		}
 	}
 
 	public void presize(int narray, int nhash)
 	{
+		if(_source != null)
+		    _source.write(this);
+		if(_baseline != null)
+		    _baseline.touch();
 		if(nhash > 0 && nhash < MIN_HASH_CAPACITY)
 		    nhash = MIN_HASH_CAPACITY;
 		_array = (narray > 0 ? new LuaValue[narray] : NOVALS);
@@ -194,6 +210,8 @@ public class LuaTable extends LuaValue
 	 */
 	protected int getArrayLength()
 	{
+		if(_source != null)
+		    _source.read(this);
 		return _array.length;
 	}
 
@@ -203,6 +221,8 @@ public class LuaTable extends LuaValue
 	 */
 	protected int getHashLength()
 	{
+		if(_source != null)
+		    _source.read(this);
 		return _hashValues.length;
 	}
 
@@ -215,6 +235,10 @@ public class LuaTable extends LuaValue
 	@Override
 	public LuaValue setmetatable(LuaValue metatable)
 	{
+		if(_source != null)
+		    _source.write(this);
+		if(_baseline != null)
+		    _baseline.touch();
 		_metatable = metatable;
 		LuaValue mode;
 		if(_metatable != null && (mode = _metatable.rawget(MODE)).isstring())
@@ -281,6 +305,8 @@ public class LuaTable extends LuaValue
 			LuaValue v = _hashValues[hashFindSlot(key)];
 			return v != null ? v : NIL;
 		}
+		if(_source != null && _source.read(this))
+		    return rawget(key);
 		return NIL;
 	}
 
@@ -303,6 +329,8 @@ public class LuaTable extends LuaValue
 	@Override
 	public void rawset(int key, LuaValue value)
 	{
+		if(_source != null)
+		    _source.write(this);
 		if(!arrayset(key, value))
 		    hashset(LuaInteger.valueOf(key), value);
 	}
@@ -311,6 +339,8 @@ public class LuaTable extends LuaValue
 	@Override
 	public void rawset(LuaValue key, LuaValue value)
 	{
+		if(_source != null)
+		    _source.write(this);
 		if(!key.isinttype() || !arrayset(key.toint(), value))
 		    hashset(key, value);
 	}
@@ -320,11 +350,15 @@ public class LuaTable extends LuaValue
 	{
 		if(key > 0 && key <= _array.length)
 		{
+			if(_baseline != null)
+			    _baseline.touch();
 			_array[key - 1] = (value.isnil() ? null : value);
 			return true;
 		}
 		else if(key == _array.length + 1 && !value.isnil())
 		{
+			if(_baseline != null)
+			    _baseline.touch();
 			expandarray();
 			_array[key - 1] = value;
 			return true;
@@ -454,6 +488,8 @@ public class LuaTable extends LuaValue
 	 */
 	public int maxn()
 	{
+		if(_source != null)
+		    _source.read(this);
 		int n = 0;
 		for(int i = 0; i < _array.length; i++)
 			if(_array[i] != null)
@@ -478,6 +514,8 @@ public class LuaTable extends LuaValue
 	@Override
 	public Varargs next(LuaValue key)
 	{
+		if(_source != null)
+		    _source.read(this);
 		int i = 0;
 		do
 		{
@@ -569,6 +607,10 @@ public class LuaTable extends LuaValue
 	 */
 	public void hashset(LuaValue key, LuaValue value)
 	{
+		if(_source != null)
+		    _source.write(this);
+		if(_baseline != null)
+		    _baseline.touch();
 		if(value.isnil())
 			hashRemove(key);
 		else
@@ -631,6 +673,8 @@ public class LuaTable extends LuaValue
 	{
 		if(_hashKeys[i] != null)
 		{
+			if(_baseline != null)
+			    _baseline.touch();
 			int j = i;
 			int n = _hashKeys.length;
 			while(_hashKeys[j = ((j + 1) % n)] != null)
@@ -700,11 +744,19 @@ public class LuaTable extends LuaValue
 	 */
 	public void sort(LuaValue comparator)
 	{
+		if(_source != null)
+		    _source.read(this);
 		int n = _array.length;
 		while(n > 0 && _array[n - 1] == null)
 			--n;
 		if(n > 1)
-		    heapSort(n, comparator);
+		{
+			if(_source != null)
+			    _source.write(this);
+			if(_baseline != null)
+			    _baseline.touch();
+			heapSort(n, comparator);
+		}
 	}
 
 	private void heapSort(int count, LuaValue cmpfunc)
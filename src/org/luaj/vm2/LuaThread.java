@@ -1,7 +1,14 @@
 package org.luaj.vm2;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 import org.luaj.vm2.lib.LibDebug;
 
 /**
@@ -17,6 +24,9 @@ import org.luaj.vm2.lib.LibDebug;
  * at some point during globals initialization.
  * See LibBase for additional documentation and example code.
  * <p>
+ * The running thread, the main thread and its globals belong to the {@link LuaState}
+ * of the current Java thread, so independent states do not see each other's threads.
+ * <p>
  * The utility classes JsePlatform see to it that this initialization is done properly.
  * For this reason it is highly recommended to use one of these classes
  * when initializing globals.
@@ -25,16 +35,30 @@ import org.luaj.vm2.lib.LibDebug;
  * of C coroutine library.  However, because of the use of Java threads
  * to manage call state, it is possible to yield from anywhere in luaj.
  * <p>
- * Each Java thread wakes up at regular intervals and checks a weak reference
- * to determine if it can ever be resumed.  If not, it throws
- * {@link OrphanedThread} which is an {@link Error}.
+ * Control is handed between the resuming and the coroutine thread by an explicit status machine:
+ * the waiting side spins for {@link #handoff_spin} checks of the status
+ * and then parks with {@link LockSupport#park(Object)} until the other side unparks it.
+ * Coroutine bodies run on daemon carrier threads which are kept in a pool
+ * of up to {@link #carrier_pool_size} idle threads for reuse by later coroutines.
+ * On JDK 21 or later coroutines can run on virtual threads instead,
+ * see {@link #virtual_threads}.
+ * <p>
+ * With {@link #stackless} turned on, a coroutine of a {@link LuaClosure} needs no Java thread at all.
+ * Its lua calls are kept as a chain of interpreter frames which is saved by a yield
+ * and continued on the resumer's Java thread by the next resume.
+ * Such a coroutine yields from lua functions, including ones called by {@code pcall}, without a Java thread.
+ * Before it calls another Java function which may call lua, such as {@code xpcall}, a metamethod or a library callback,
+ * it moves its frames to a Java thread and runs like other coroutines from then on.
+ * <p>
+ * A suspended coroutine whose {@link LuaThread} is garbage collected can never be resumed.
+ * Its weak reference is enqueued and a reaper thread wakes the carrier,
+ * which then throws {@link OrphanedThread} which is an {@link Error}.
+ * As a fallback each suspended coroutine also checks its weak reference at regular intervals.
  * Applications should not catch {@link OrphanedThread}, because it can break
  * the thread safety of luaj.
  */
 public final class LuaThread extends LuaValue
 {
-	public static LuaValue          s_metatable;
-
 	private static final AtomicLong coroutine_count              = new AtomicLong();
 
 	/** Interval at which to check for lua threads that are no longer referenced.
@@ -42,24 +66,82 @@ public final class LuaThread extends LuaValue
 	 */
 	private static final long       thread_orphan_check_interval = 30000;
 
+	/** Maximum number of idle carrier threads kept for reuse by new coroutines.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static int               carrier_pool_size            = 64;
+
+	/** Milliseconds an idle carrier thread waits for a new coroutine before it exits.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static long              carrier_keep_alive           = 60000;
+
+	/** Run coroutines on virtual threads if the JVM supports them, otherwise on platform threads.
+	 * Defaults to the system property {@code luaj.coroutine.virtual}.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean           virtual_threads              = Boolean.getBoolean("luaj.coroutine.virtual");
+
+	/** Run coroutines of lua functions created from now on as saved interpreter frames instead of Java threads.
+	 * It has no effect while the debug library is enabled.
+	 * Defaults to the system property {@code luaj.coroutine.stackless}.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean           stackless                    = Boolean.getBoolean("luaj.coroutine.stackless");
+
+	/** Number of status checks a resume or yield spins before parking its Java thread.
+	 * Spinning only pays off with more than one processor, so it defaults to 0 on a single processor.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static int               handoff_spin                 = Runtime.getRuntime().availableProcessors() > 1 ? 2000 : 0;
+
+	/** Thread.ofVirtual() and the Thread.Builder methods, or null before JDK 21 */
+	private static final Method     virtual_of;
+	private static final Method     virtual_name;
+	private static final Method     virtual_unstarted;
+
 	private static final int        STATUS_INITIAL               = 0;
 	private static final int        STATUS_SUSPENDED             = 1;
 	private static final int        STATUS_RUNNING               = 2;
 	private static final int        STATUS_NORMAL                = 3;
 	private static final int        STATUS_DEAD                  = 4;
+	private static final int        STATUS_RESUMING              = 5; // claimed by a resume, arguments not yet published
 	private static final String[]   STATUS_NAMES                 = {
 	                                                             "suspended",
 	                                                             "suspended",
 	                                                             "running",
 	                                                             "normal",
-	                                                             "dead", };
+	                                                             "dead",
+	                                                             "running", };
 
 	public static final int         MAX_CALLSTACK                = 256;
 
-	private static final LuaThread  main_thread                  = new LuaThread();
+	private static final AtomicInteger                   live_count      = new AtomicInteger();
+	private static final AtomicInteger                   suspended_count = new AtomicInteger();
+	private static final AtomicLong                      orphaned_count  = new AtomicLong();
+	private static final AtomicInteger                   idle_count      = new AtomicInteger();
+	private static final ConcurrentLinkedQueue<Carrier>  idle_carriers   = new ConcurrentLinkedQueue<Carrier>();
+	private static final ReferenceQueue<LuaThread>       orphan_queue    = new ReferenceQueue<LuaThread>();
+	private static Thread                                reaper;
 
-	// state of running thread including call stack
-	private static LuaThread        running_thread               = main_thread;
+	static
+	{
+		Method of = null, name = null, unstarted = null;
+		try
+		{
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			of = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		}
+		catch(Exception e)
+		{
+			of = null; // virtual threads are not available
+		}
+		virtual_of = of;
+		virtual_name = name;
+		virtual_unstarted = unstarted;
+	}
 
 	private LuaValue                _env;
 	private final State             _state;
@@ -72,10 +154,10 @@ public final class LuaThread extends LuaValue
 	/** Thread-local used by DebugLib to store debugging state.  */
 	public Object                   _debugState;
 
-	/** Private constructor for main thread only */
-	private LuaThread()
+	/** Constructor for the main thread of a {@link LuaState} only */
+	LuaThread()
 	{
-		_state = new State(this, null);
+		_state = new State(this, null, null, null);
 		_state._status = STATUS_RUNNING;
 	}
 
@@ -88,7 +170,9 @@ public final class LuaThread extends LuaValue
 	{
 		LuaValue.assert_(func != null, "function cannot be null");
 		_env = env;
-		_state = new State(this, func);
+		_state = (stackless && func instanceof LuaClosure && !LibDebug.DEBUG_ENABLED ?
+		        new State(this, func, null, new StacklessCoroutine((LuaClosure)func)) :
+		        new State(this, func, orphan_queue, null));
 	}
 
 	@Override
@@ -124,7 +208,7 @@ public final class LuaThread extends LuaValue
 	@Override
 	public LuaValue getmetatable()
 	{
-		return s_metatable;
+		return LuaState.current()._threadMetatable;
 	}
 
 	@Override
@@ -146,20 +230,20 @@ public final class LuaThread extends LuaValue
 
 	/**
 	 * Get the currently running thread.
-	 * @return {@link LuaThread} that is currenly running
+	 * @return {@link LuaThread} that is currenly running in the {@link LuaState} of the current Java thread
 	 */
 	public static LuaThread getRunning()
 	{
-		return running_thread;
+		return LuaState.current()._running;
 	}
 
 	/**
 	 * Test if this is the main thread
-	 * @return true if this is the main thread
+	 * @return true if this is the main thread of its {@link LuaState}
 	 */
 	public static boolean isMainThread(LuaThread r)
 	{
-		return r == main_thread;
+		return r._state._function == null;
 	}
 
 	/**
@@ -170,7 +254,7 @@ public final class LuaThread extends LuaValue
 	 */
 	public static void setGlobals(LuaValue globals)
 	{
-		running_thread._env = globals;
+		LuaState.current()._running._env = globals;
 	}
 
 	/** Get the current thread's environment
@@ -178,7 +262,7 @@ public final class LuaThread extends LuaValue
 	 */
 	public static LuaValue getGlobals()
 	{
-		LuaValue e = running_thread._env;
+		LuaValue e = LuaState.current()._running._env;
 		return e != null ? e : LuaValue.error("LuaThread.setGlobals() not initialized");
 	}
 
@@ -190,7 +274,7 @@ public final class LuaThread extends LuaValue
 	 */
 	public static CallStack onCall(LuaFunction function)
 	{
-		CallStack cs = running_thread._callstack;
+		CallStack cs = LuaState.current()._running._callstack;
 		cs.onCall(function);
 		return cs;
 	}
@@ -202,7 +286,7 @@ public final class LuaThread extends LuaValue
 	 */
 	public static LuaFunction getCallstackFunction(int level)
 	{
-		return running_thread._callstack.getFunction(level);
+		return LuaState.current()._running._callstack.getFunction(level);
 	}
 
 	/**
@@ -212,8 +296,9 @@ public final class LuaThread extends LuaValue
 	 */
 	public static LuaValue setErrorFunc(LuaValue errfunc)
 	{
-		LuaValue prev = running_thread._err;
-		running_thread._err = errfunc;
+		LuaThread r = LuaState.current()._running;
+		LuaValue prev = r._err;
+		r._err = errfunc;
 		return prev;
 	}
 
@@ -224,9 +309,11 @@ public final class LuaThread extends LuaValue
 	 */
 	public static Varargs yield(Varargs args)
 	{
-		State s = running_thread._state;
+		State s = LuaState.current()._running._state;
 		if(s._function == null)
 		    throw new LuaError("cannot yield main thread");
+		if(s._coroutine != null && !s._coroutine.isThreaded())
+		    throw new LuaError("attempt to yield across a Java call boundary");
 		return s.lua_yield(args);
 	}
 
@@ -237,35 +324,273 @@ public final class LuaThread extends LuaValue
 	 */
 	public Varargs resume(Varargs args)
 	{
-		if(_state._status > STATUS_SUSPENDED)
-		    return LuaValue.varargsOf(LuaValue.FALSE,
-		            LuaValue.valueOf("cannot resume " + LuaThread.STATUS_NAMES[_state._status] + " coroutine"));
 		return _state.lua_resume(this, args);
 	}
 
-	private static class State implements Runnable
+	/** Test if coroutines can run on virtual threads in this JVM
+	 * @return true if the JVM supports virtual threads, so {@link #virtual_threads} has an effect
+	 */
+	public static boolean isVirtualThreadSupported()
+	{
+		return virtual_of != null;
+	}
+
+	/** Get the number of thread-based coroutines which have been started and are not dead yet
+	 * @return number of live coroutines, including suspended ones
+	 */
+	public static int getLiveCount()
+	{
+		return live_count.get();
+	}
+
+	/** Get the number of thread-based coroutines currently suspended in yield
+	 * @return number of suspended coroutines
+	 */
+	public static int getSuspendedCount()
+	{
+		return suspended_count.get();
+	}
+
+	/** Get the number of suspended coroutines which were killed because their {@link LuaThread} was collected
+	 * @return total number of orphaned coroutines since startup
+	 */
+	public static long getOrphanedCount()
+	{
+		return orphaned_count.get();
+	}
+
+	/** Get the number of carrier threads waiting in the pool for a new coroutine
+	 * @return number of idle carrier threads
+	 */
+	public static int getIdleCarrierCount()
+	{
+		return idle_count.get();
+	}
+
+	/** Start a Java thread running a coroutine body
+	 * @param body the coroutine state to run
+	 * @return virtual thread if enabled and supported, otherwise an idle pooled or new carrier thread
+	 */
+	private static Thread startThread(Runnable body)
+	{
+		if(virtual_threads && virtual_of != null)
+		{
+			try
+			{
+				Thread t = (Thread)virtual_unstarted.invoke(virtual_name.invoke(virtual_of.invoke(null),
+				        "Coroutine-" + coroutine_count.incrementAndGet()), body);
+				t.start();
+				return t;
+			}
+			catch(Exception e)
+			{
+				// fall back to a platform thread
+			}
+		}
+		for(Carrier c; (c = idle_carriers.poll()) != null;)
+		{
+			idle_count.decrementAndGet();
+			if(c.offer(body))
+			    return c;
+		}
+		Carrier c = new Carrier(body);
+		c.start();
+		return c;
+	}
+
+	/** Start the reaper thread for orphaned coroutines if it is not running yet */
+	private static synchronized void startReaper()
+	{
+		if(reaper != null)
+		    return;
+		reaper = new Thread("LuaThread-Reaper")
+		{
+			@Override
+			public void run()
+			{
+				for(;;)
+				{
+					try
+					{
+						((LuaThread.State)orphan_queue.remove()).orphan();
+					}
+					catch(InterruptedException e)
+					{
+						// keep reaping
+					}
+				}
+			}
+		};
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	/**
+	 * Pooled daemon thread which runs one coroutine body after another.
+	 * <p>
+	 * After a body finishes the carrier puts itself into {@link LuaThread#idle_carriers}
+	 * if fewer than {@link LuaThread#carrier_pool_size} carriers are idle,
+	 * and waits up to {@link LuaThread#carrier_keep_alive} milliseconds for the next one.
+	 * A body is handed over with {@link #offer(Runnable)}, which fails if the carrier has already retired.
+	 */
+	private static final class Carrier extends Thread
+	{
+		private static final AtomicReferenceFieldUpdater<Carrier, Runnable> TASK = AtomicReferenceFieldUpdater.newUpdater(Carrier.class, Runnable.class, "_task");
+
+		/** next body to run, null while idle, or this carrier once it retired */
+		private volatile Runnable _task;
+
+		private Carrier(Runnable task)
+		{
+			super("Coroutine-" + coroutine_count.incrementAndGet());
+			_task = task;
+			setDaemon(true);
+		}
+
+		private boolean offer(Runnable task)
+		{
+			if(!TASK.compareAndSet(this, null, task))
+			    return false;
+			LockSupport.unpark(this);
+			return true;
+		}
+
+		@Override
+		public void run()
+		{
+			for(Runnable task = _task; task != this; task = await())
+			{
+				task.run();
+				Thread.interrupted();
+				_task = null;
+				if(idle_count.incrementAndGet() > carrier_pool_size)
+				{
+					idle_count.decrementAndGet();
+					return;
+				}
+				idle_carriers.offer(this);
+			}
+		}
+
+		/** Wait for the next body while idle
+		 * @return the next body to run, or this carrier if it retired
+		 */
+		private Runnable await()
+		{
+			long deadline = System.nanoTime() + carrier_keep_alive * 1000000;
+			for(Runnable task;;)
+			{
+				if((task = _task) != null)
+				    return task;
+				long remain = deadline - System.nanoTime();
+				if(remain <= 0 && TASK.compareAndSet(this, null, this))
+				{
+					if(idle_carriers.remove(this))
+					    idle_count.decrementAndGet();
+					return this;
+				}
+				LockSupport.parkNanos(this, remain);
+			}
+		}
+	}
+
+	/**
+	 * Coroutine state and the handoff between the resuming and the coroutine Java thread.
+	 * <p>
+	 * {@link #_status} moves only along these transitions:
+	 * <pre>
+	 * INITIAL, SUSPENDED -> RESUMING   resume claims the coroutine (compare-and-set)
+	 * RESUMING           -> RUNNING    resume published its arguments
+	 * RUNNING           <-> NORMAL     the coroutine resumes another one
+	 * RUNNING            -> SUSPENDED  yield published its results
+	 * RUNNING            -> DEAD       the body returned or raised an error
+	 * SUSPENDED          -> DEAD       the coroutine was orphaned (compare-and-set)
+	 * </pre>
+	 * Values written before a status change are visible to the thread observing that change,
+	 * so {@link #_args}, {@link #_result} and {@link #_error} need no locking.
+	 * <p>
+	 * The state is a weak reference to its {@link LuaThread}. It stays reachable from its Java thread
+	 * while started, so it is enqueued on {@link LuaThread#orphan_queue} when the {@link LuaThread} is collected.
+	 */
+	private static final class State extends WeakReference<LuaThread> implements Runnable
 	{
-		final WeakReference<LuaThread> _lua_thread;
+		private static final AtomicIntegerFieldUpdater<State> STATUS = AtomicIntegerFieldUpdater.newUpdater(State.class, "_status");
+
 		final LuaValue                 _function;
+		final StacklessCoroutine       _coroutine; // frames of a stackless coroutine, which has no Java thread
 		Varargs                        _args   = LuaValue.NONE;
 		Varargs                        _result = LuaValue.NONE;
 		String                         _error;
-		int                            _status = LuaThread.STATUS_INITIAL;
+		volatile int                   _status = LuaThread.STATUS_INITIAL;
+
+		/** State of the Java thread which resumed the coroutine, bound to the Java thread running its body */
+		LuaState                       _luastate;
+
+		/** Java thread running the coroutine body, and the one waiting for it in resume */
+		volatile Thread                _thread;
+		volatile Thread                _resumer;
 
-		private State(LuaThread lua_thread, LuaValue function)
+		private State(LuaThread lua_thread, LuaValue function, ReferenceQueue<LuaThread> queue, StacklessCoroutine coroutine)
 		{
-			_lua_thread = new WeakReference<LuaThread>(lua_thread);
+			super(lua_thread, queue);
 			_function = function;
+			_coroutine = coroutine;
+		}
+
+		/** Kill this coroutine if it is suspended, called when its {@link LuaThread} was collected */
+		private void orphan()
+		{
+			if(STATUS.compareAndSet(this, STATUS_SUSPENDED, STATUS_DEAD))
+			{
+				suspended_count.decrementAndGet();
+				orphaned_count.incrementAndGet();
+				LockSupport.unpark(_thread);
+			}
+		}
+
+		/** Wait while the status is one of two values, spinning briefly before parking
+		 * @param s1 status to wait on
+		 * @param s2 other status to wait on
+		 * @param timeout maximum nanoseconds to park, or 0 to park until unparked
+		 * @return the current status, which may still be s1 or s2 if the timeout elapsed
+		 * @throws OrphanedThread if the waiting Java thread is interrupted
+		 */
+		private int await(int s1, int s2, long timeout)
+		{
+			int status;
+			for(int i = handoff_spin; --i >= 0;)
+			{
+				status = _status;
+				if(status != s1 && status != s2)
+				    return status;
+			}
+			long deadline = (timeout > 0 ? System.nanoTime() + timeout : 0);
+			while((status = _status) == s1 || status == s2)
+			{
+				if(timeout <= 0)
+					LockSupport.park(this);
+				else
+				{
+					long remain = deadline - System.nanoTime();
+					if(remain <= 0)
+					    break;
+					LockSupport.parkNanos(this, remain);
+				}
+				if(Thread.interrupted())
+				    throw new OrphanedThread();
+			}
+			return status;
 		}
 
 		@Override
-		public synchronized void run()
+		public void run()
 		{
+			LuaState.bind(_luastate);
 			try
 			{
 				Varargs a = _args;
 				_args = LuaValue.NONE;
-				_result = _function.invoke(a);
+				_result = (_coroutine != null ? _coroutine.run() : _function.invoke(a));
 			}
 			catch(Throwable t)
 			{
@@ -273,69 +598,141 @@ public final class LuaThread extends LuaValue
 			}
 			finally
 			{
+				LuaState.bind(null);
 				_status = LuaThread.STATUS_DEAD;
-				notify();
+				live_count.decrementAndGet();
+				LockSupport.unpark(_resumer);
 			}
 		}
 
-		private synchronized Varargs lua_resume(LuaThread new_thread, Varargs varargs)
+		private Varargs lua_resume(LuaThread new_thread, Varargs varargs)
 		{
-			LuaThread previous_thread = LuaThread.running_thread;
+			if(_coroutine != null && !_coroutine.isThreaded())
+			    return lua_resume_stackless(new_thread, varargs);
+			int status = _status;
+			if(status > STATUS_SUSPENDED || !STATUS.compareAndSet(this, status, STATUS_RESUMING))
+			    return LuaValue.varargsOf(LuaValue.FALSE,
+			            LuaValue.valueOf("cannot resume " + LuaThread.STATUS_NAMES[_status] + " coroutine"));
+			if(status == STATUS_SUSPENDED)
+				suspended_count.decrementAndGet();
+			else
+			{
+				live_count.incrementAndGet();
+				if(reaper == null)
+				    startReaper();
+			}
+			LuaState ls = LuaState.current();
+			LuaThread previous_thread = ls._running;
 			try
 			{
-				LuaThread.running_thread = new_thread;
+				ls._running = new_thread;
+				previous_thread._state._status = STATUS_NORMAL;
+				_luastate = ls;
 				_args = varargs;
-				if(_status == STATUS_INITIAL)
+				_resumer = Thread.currentThread();
+				if(status == STATUS_INITIAL)
 				{
 					_status = STATUS_RUNNING;
-					new Thread(this, "Coroutine-" + coroutine_count.incrementAndGet()).start();
+					_thread = startThread(this);
 				}
 				else
-					notify();
-				previous_thread._state._status = STATUS_NORMAL;
-				_status = STATUS_RUNNING;
-				wait();
+				{
+					_status = STATUS_RUNNING;
+					LockSupport.unpark(_thread);
+				}
+				await(STATUS_RUNNING, STATUS_NORMAL, 0);
 				return (_error != null ?
 				        LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf(_error)) :
 				        LuaValue.varargsOf(LuaValue.TRUE, _result));
 			}
-			catch(InterruptedException ie)
+			finally
 			{
-				throw new OrphanedThread();
+				ls._running = previous_thread;
+				previous_thread._state._status = STATUS_RUNNING;
+				_args = LuaValue.NONE;
+				_result = LuaValue.NONE;
+				_error = null;
+			}
+		}
+
+		/** Resume a stackless coroutine by running its frames on the current Java thread until it yields or returns */
+		private Varargs lua_resume_stackless(LuaThread new_thread, Varargs varargs)
+		{
+			int status = _status;
+			if(status > STATUS_SUSPENDED || !STATUS.compareAndSet(this, status, STATUS_RESUMING))
+			    return LuaValue.varargsOf(LuaValue.FALSE,
+			            LuaValue.valueOf("cannot resume " + LuaThread.STATUS_NAMES[_status] + " coroutine"));
+			LuaState ls = LuaState.current();
+			LuaThread previous_thread = ls._running;
+			try
+			{
+				ls._running = new_thread;
+				previous_thread._state._status = STATUS_NORMAL;
+				_status = STATUS_RUNNING;
+				Varargs result = _coroutine.resume(varargs);
+				if(_coroutine.isThreaded())
+				{
+					// the frames moved at a call which may yield from Java, continue them on a new Java thread
+					live_count.incrementAndGet();
+					if(reaper == null)
+					    startReaper();
+					_luastate = ls;
+					_resumer = Thread.currentThread();
+					_thread = startThread(this);
+					await(STATUS_RUNNING, STATUS_NORMAL, 0);
+					return (_error != null ?
+					        LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf(_error)) :
+					        LuaValue.varargsOf(LuaValue.TRUE, _result));
+				}
+				_status = (_coroutine.isSuspended() ? STATUS_SUSPENDED : STATUS_DEAD);
+				return LuaValue.varargsOf(LuaValue.TRUE, result);
+			}
+			catch(RuntimeException e)
+			{
+				return die(e);
+			}
+			catch(StackOverflowError e)
+			{
+				return die(e);
 			}
 			finally
 			{
-				running_thread = previous_thread;
-				running_thread._state._status = STATUS_RUNNING;
-				_args = LuaValue.NONE;
+				ls._running = previous_thread;
+				previous_thread._state._status = STATUS_RUNNING;
 				_result = LuaValue.NONE;
 				_error = null;
 			}
 		}
 
-		private synchronized Varargs lua_yield(Varargs varargs)
+		/** End a stackless coroutine whose body raised an error
+		 * @param e the error, a {@link LuaError} or an unexpected exception
+		 * @return the results of the resume, false and the error message
+		 */
+		private Varargs die(Throwable e)
+		{
+			_status = STATUS_DEAD;
+			String msg = e.getMessage();
+			return LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf(msg != null ? msg : e.toString()));
+		}
+
+		private Varargs lua_yield(Varargs varargs)
 		{
 			try
 			{
 				_result = varargs;
+				suspended_count.incrementAndGet();
 				_status = STATUS_SUSPENDED;
-				notify();
-				do
+				LockSupport.unpark(_resumer);
+				for(;;)
 				{
-					wait(thread_orphan_check_interval);
-					if(_lua_thread.get() == null)
-					{
-						_status = STATUS_DEAD;
-						throw new OrphanedThread();
-					}
+					int status = await(STATUS_SUSPENDED, STATUS_RESUMING, thread_orphan_check_interval * 1000000);
+					if(status == STATUS_RUNNING)
+					    return _args;
+					if(get() == null)
+					    orphan();
+					if(_status == STATUS_DEAD)
+					    throw new OrphanedThread();
 				}
-				while(_status == STATUS_SUSPENDED);
-				return _args;
-			}
-			catch(InterruptedException ie)
-			{
-				_status = STATUS_DEAD;
-				throw new OrphanedThread();
 			}
 			finally
 			{
@@ -359,7 +756,7 @@ public final class LuaThread extends LuaValue
 			if(_calls >= 0 && _calls < MAX_CALLSTACK)
 				_functions[_calls++] = function;
 			if(LibDebug.DEBUG_ENABLED)
-			    LibDebug.debugOnCall(running_thread, _calls, function);
+			    LibDebug.debugOnCall(LuaState.current()._running, _calls, function);
 		}
 
 		/**
@@ -371,7 +768,7 @@ public final class LuaThread extends LuaValue
 			if(_calls > 0 && _calls <= MAX_CALLSTACK)
 				_functions[--_calls] = null;
 			if(LibDebug.DEBUG_ENABLED)
-			    LibDebug.debugOnReturn(running_thread, _calls);
+			    LibDebug.debugOnReturn(LuaState.current()._running, _calls);
 		}
 
 		/**
@@ -71,7 +71,7 @@ package org.luaj.vm2;
  * {@link TNIL}, {@link TBOOLEAN}, {@link TLIGHTUSERDATA}, {@link TNUMBER}, {@link TSTRING},
  * {@link TTABLE}, {@link TFUNCTION}, {@link TUSERDATA}, {@link TTHREAD},
  * and extended lua type constants
- * {@link TINT}, {@link TNONE}, {@link TVALUE}
+ * {@link TLONG}, {@link TINT}, {@link TNONE}, {@link TVALUE}
  * <p>
  * Predefined constants exist for all strings used as metatags:
  * {@link INDEX}, {@link NEWINDEX}, {@link CALL}, {@link MODE}, {@link METATABLE},
@@ -84,6 +84,9 @@ package org.luaj.vm2;
  */
 public abstract class LuaValue extends Varargs
 {
+	/** Type enumeration constant for lua numbers that are longs, for constants in number-patched binary chunks only */
+	public static final int        TLONG          = -3;
+
 	/** Type enumeration constant for lua numbers that are ints, for compatibility with lua 5.1 number patch only */
 	public static final int        TINT           = -2;
 
@@ -1704,11 +1707,7 @@ public abstract class LuaValue extends Varargs
 	 * the metatable returned is this instance metatable.
 	 * For all other types, the class metatable value will be returned.
 	 * @return metatable, or null if it there is none
-	 * @see LuaBoolean#s_metatable
-	 * @see LuaNumber#s_metatable
-	 * @see LuaNil#s_metatable
-	 * @see LuaFunction#s_metatable
-	 * @see LuaThread#s_metatable
+	 * @see LuaState
 	 */
 	@SuppressWarnings("static-method")
 	public LuaValue getmetatable()
@@ -1723,11 +1722,7 @@ public abstract class LuaValue extends Varargs
 	 * For all other types, there is one metatable per type that can be set directly from java
 	 * @param metatable {@link LuaValue} instance to serve as the metatable, or null to reset it.
 	 * @return {@code this} to allow chaining of Java function calls
-	 * @see LuaBoolean#s_metatable
-	 * @see LuaNumber#s_metatable
-	 * @see LuaNil#s_metatable
-	 * @see LuaFunction#s_metatable
-	 * @see LuaThread#s_metatable
+	 * @see LuaState
 	 */
 	public LuaValue setmetatable(LuaValue metatable)
 	{
@@ -2593,6 +2588,19 @@ public abstract class LuaValue extends Varargs
 		return false;
 	}
 
+	/** Equals: Perform direct equality comparison with a long value
+	 * without metatag processing.
+	 * @param val The long value to compare with.
+	 * @return  true if {@code this} is a {@link LuaNumber}
+	 * whose value equals val,
+	 * otherwise false
+	 */
+	@SuppressWarnings("static-method")
+	public boolean raweq(long val)
+	{
+		return false;
+	}
+
 	/** Perform equality testing metatag processing
 	 * @param lhs left-hand-side of equality expression
 	 * @param lhsmt metatag value for left-hand-side
@@ -2661,6 +2669,22 @@ public abstract class LuaValue extends Varargs
 		return add((double)rhs);
 	}
 
+	/** Add: Perform numeric add operation with another value
+	 * of long type with metatag processing
+	 * <p>
+	 * {@code this} must derive from {@link LuaNumber}
+	 * or derive from {@link LuaString} and be convertible to a number
+	 *
+	 * @param rhs The right-hand-side value to perform the add with
+	 * @return  value of {@code (this + rhs)} if this is numeric
+	 * @throws LuaError if {@code this} is not a number or string convertible to number
+	 * @see #add(LuaValue)
+	 */
+	public LuaValue add(long rhs)
+	{
+		return add((double)rhs);
+	}
+
 	/** Subtract: Perform numeric subtract operation with another value
 	 * of unknown type,
 	 * including metatag processing.
@@ -2750,6 +2774,22 @@ public abstract class LuaValue extends Varargs
 		return subFrom((double)lhs);
 	}
 
+	/** Reverse-subtract: Perform numeric subtract operation from a long value
+	 * with metatag processing
+	 * <p>
+	 * {@code this} must derive from {@link LuaNumber}
+	 * or derive from {@link LuaString} and be convertible to a number
+	 *
+	 * @param lhs The left-hand-side value from which to perform the subtraction
+	 * @return  value of {@code (lhs - this)} if this is numeric
+	 * @throws LuaError if {@code this} is not a number or string convertible to number
+	 * @see #sub(LuaValue)
+	 */
+	public LuaValue subFrom(long lhs)
+	{
+		return subFrom((double)lhs);
+	}
+
 	/** Multiply: Perform numeric multiply operation with another value
 	 * of unknown type,
 	 * including metatag processing.
@@ -2801,6 +2841,22 @@ public abstract class LuaValue extends Varargs
 		return mul((double)rhs);
 	}
 
+	/** Multiply: Perform numeric multiply operation with another value
+	 * of long type with metatag processing
+	 * <p>
+	 * {@code this} must derive from {@link LuaNumber}
+	 * or derive from {@link LuaString} and be convertible to a number
+	 *
+	 * @param rhs The right-hand-side value to perform the multiply with
+	 * @return  value of {@code (this * rhs)} if this is numeric
+	 * @throws LuaError if {@code this} is not a number or string convertible to number
+	 * @see #mul(LuaValue)
+	 */
+	public LuaValue mul(long rhs)
+	{
+		return mul((double)rhs);
+	}
+
 	/** Raise to power: Raise this value to a power
 	 * including metatag processing.
 	 * <p>
@@ -2887,6 +2943,22 @@ public abstract class LuaValue extends Varargs
 		return powWith((double)lhs);
 	}
 
+	/** Reverse-exponent: Perform exponent (pow) operation from a long value
+	 * with metatag processing
+	 * <p>
+	 * {@code this} must derive from {@link LuaNumber}
+	 * or derive from {@link LuaString} and be convertible to a number
+	 *
+	 * @param lhs The left-hand-side value which will be raised to this power
+	 * @return  value of {@code (lhs ^ this)} if this is numeric
+	 * @throws LuaError if {@code this} is not a number or string convertible to number
+	 * @see #pow(LuaValue)
+	 */
+	public LuaValue powWith(long lhs)
+	{
+		return powWith((double)lhs);
+	}
+
 	/** Divide: Perform numeric divide operation by another value
 	 * of unknown type,
 	 * including metatag processing.
@@ -2960,6 +3032,22 @@ public abstract class LuaValue extends Varargs
 		return arithmtwith(DIV, lhs);
 	}
 
+	/** Reverse-divide: Perform numeric divide operation into a long value
+	 * with metatag processing
+	 * <p>
+	 * {@code this} must derive from {@link LuaNumber}
+	 * or derive from {@link LuaString} and be convertible to a number
+	 *
+	 * @param lhs The left-hand-side value which will be divided by this
+	 * @return  value of {@code (lhs / this)} if this is numeric
+	 * @throws LuaError if {@code this} is not a number or string convertible to number
+	 * @see #div(LuaValue)
+	 */
+	public LuaValue divInto(long lhs)
+	{
+		return divInto((double)lhs);
+	}
+
 	/** Modulo: Perform numeric modulo operation with another value
 	 * of unknown type,
 	 * including metatag processing.
@@ -3033,6 +3121,22 @@ public abstract class LuaValue extends Varargs
 		return arithmtwith(MOD, lhs);
 	}
 
+	/** Reverse-modulo: Perform numeric modulo operation from a long value
+	 * with metatag processing
+	 * <p>
+	 * {@code this} must derive from {@link LuaNumber}
+	 * or derive from {@link LuaString} and be convertible to a number
+	 *
+	 * @param lhs The left-hand-side value which will be modulo'ed by this
+	 * @return  value of {@code (lhs % this)} if this is numeric
+	 * @throws LuaError if {@code this} is not a number or string convertible to number
+	 * @see #mod(LuaValue)
+	 */
+	public LuaValue modFrom(long lhs)
+	{
+		return modFrom((double)lhs);
+	}
+
 	/** Perform metatag processing for arithmetic operations.
 	 * <p>
 	 * Finds the supplied metatag value for {@code this} or {@code op2} and invokes it,
@@ -3194,6 +3298,23 @@ public abstract class LuaValue extends Varargs
 		return false;
 	}
 
+	/** Less than: Perform numeric comparison with another value
+	 * of long type,
+	 * including metatag processing,
+	 * and returning java boolean.
+	 * <p>
+	 * To be comparable, this must derive from {@link LuaNumber}.
+	 *
+	 * @param rhs The right-hand-side value to perform the comparison with
+	 * @return  true if {@code (this < rhs)}, false if not
+	 * @throws LuaError if this is not a number
+	 * @see #lt_b(double)
+	 */
+	public boolean lt_b(long rhs)
+	{
+		return lt_b((double)rhs);
+	}
+
 	/** Less than: Perform numeric or string comparison with another value
 	 * of unknown type, including metatag processing,
 	 * and returning java boolean.
@@ -3314,6 +3435,23 @@ public abstract class LuaValue extends Varargs
 		return false;
 	}
 
+	/** Less than or equals: Perform numeric comparison with another value
+	 * of long type,
+	 * including metatag processing,
+	 * and returning java boolean.
+	 * <p>
+	 * To be comparable, this must derive from {@link LuaNumber}.
+	 *
+	 * @param rhs The right-hand-side value to perform the comparison with
+	 * @return  true if {@code (this <= rhs)}, false if not
+	 * @throws LuaError if this is not a number
+	 * @see #lteq_b(double)
+	 */
+	public boolean lteq_b(long rhs)
+	{
+		return lteq_b((double)rhs);
+	}
+
 	/** Less than or equals: Perform numeric comparison with another value
 	 * of double type,
 	 * including metatag processing,
@@ -3434,6 +3572,23 @@ public abstract class LuaValue extends Varargs
 		return false;
 	}
 
+	/** Greater than: Perform numeric comparison with another value
+	 * of long type,
+	 * including metatag processing,
+	 * and returning java boolean.
+	 * <p>
+	 * To be comparable, this must derive from {@link LuaNumber}.
+	 *
+	 * @param rhs The right-hand-side value to perform the comparison with
+	 * @return  true if {@code (this > rhs)}, false if not
+	 * @throws LuaError if this is not a number
+	 * @see #gt_b(double)
+	 */
+	public boolean gt_b(long rhs)
+	{
+		return gt_b((double)rhs);
+	}
+
 	/** Greater than: Perform numeric or string comparison with another value
 	 * of unknown type, including metatag processing,
 	 * and returning java boolean.
@@ -3554,6 +3709,23 @@ public abstract class LuaValue extends Varargs
 		return false;
 	}
 
+	/** Greater than or equals: Perform numeric comparison with another value
+	 * of long type,
+	 * including metatag processing,
+	 * and returning java boolean.
+	 * <p>
+	 * To be comparable, this must derive from {@link LuaNumber}.
+	 *
+	 * @param rhs The right-hand-side value to perform the comparison with
+	 * @return  true if {@code (this >= rhs)}, false if not
+	 * @throws LuaError if this is not a number
+	 * @see #gteq_b(double)
+	 */
+	public boolean gteq_b(long rhs)
+	{
+		return gteq_b((double)rhs);
+	}
+
 	/** Greater than or equals: Perform numeric comparison with another value
 	 * of double type,
 	 * including metatag processing,
@@ -3844,8 +4016,20 @@ public abstract class LuaValue extends Varargs
 		return LuaInteger.valueOf(i);
 	}
 
+	/** Convert java long to a {@link LuaValue}.
+	 * This may return a {@link LuaInteger} or {@link LuaLong} depending
+	 * on the value supplied.
+	 *
+	 * @param l long value to convert
+	 * @return {@link LuaNumber} instance, possibly pooled, whose value is l
+	 */
+	public static LuaNumber valueOf(long l)
+	{
+		return LuaInteger.valueOf(l);
+	}
+
 	/** Convert java double to a {@link LuaValue}.
-	 * This may return a {@link LuaInteger} or {@link LuaDouble} depending
+	 * This may return a {@link LuaInteger}, {@link LuaLong} or {@link LuaDouble} depending
 	 * on the value supplied.
 	 *
 	 * @param d double value to convert
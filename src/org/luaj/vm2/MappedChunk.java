@@ -0,0 +1,311 @@
+package org.luaj.vm2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary chunk file mapped into memory, whose functions are decoded on first use.
+ * <p>
+ * Loading decodes the main function and only skims the nested ones for their headers and extents,
+ * leaving stub {@link Prototype}s which know where they start in the file.
+ * The code and constants of a nested function are decoded by {@link Prototype#compile()} before its first closure is created,
+ * the line info, local and upvalue names of all functions by {@link Prototype#debug()} when the debug library,
+ * {@link Print} or the dumper read them.
+ * Decoding only reads the mapped buffer by absolute index, so several Java threads may do it at the same time.
+ * @see LoadState#mapBinaryChunk(File, String)
+ */
+final class MappedChunk
+{
+	private final ByteBuffer _buf;          // whole file, in the byte order of the chunk
+	private final boolean    _size64;       // size_t of the chunk is 8 bytes
+	private final int        _numberFormat;
+	private int              _pos;          // next byte to decode
+
+	private MappedChunk(ByteBuffer buf, boolean size64, int numberFormat, int pos)
+	{
+		_buf = buf;
+		_size64 = size64;
+		_numberFormat = numberFormat;
+		_pos = pos;
+	}
+
+	private MappedChunk at(int pos)
+	{
+		return new MappedChunk(_buf, _size64, _numberFormat, pos);
+	}
+
+	static Prototype load(File file, String name) throws IOException
+	{
+		FileInputStream fis = new FileInputStream(file);
+		ByteBuffer buf;
+		try
+		{
+			FileChannel ch = fis.getChannel();
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		}
+		finally
+		{
+			fis.close(); // the mapping stays valid
+		}
+		if(buf.limit() < LoadState.LUAC_HEADERSIZE || buf.get(0) != '\033' || buf.get(1) != 'L' || buf.get(2) != 'u' || buf.get(3) != 'a')
+		    throw new IllegalArgumentException("bad signature");
+		buf.order(buf.get(6) != 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		int numberFormat = buf.get(11);
+		switch(numberFormat)
+		{
+			case LoadState.NUMBER_FORMAT_FLOATS_OR_DOUBLES:
+			case LoadState.NUMBER_FORMAT_INTS_ONLY:
+			case LoadState.NUMBER_FORMAT_NUM_PATCH_INT32:
+				break;
+			default:
+				throw new LuaError("unsupported int size");
+		}
+		MappedChunk m = new MappedChunk(buf, buf.get(8) == 8, numberFormat, LoadState.LUAC_HEADERSIZE);
+		Prototype f = new Prototype();
+		try
+		{
+			m.header(f, LuaString.valueOf(LoadState.getSourceName(name)));
+			m.body(f); /* skims all nested functions, so decoding them later stays within the file */
+		}
+		catch(IndexOutOfBoundsException e)
+		{
+			throw new IllegalArgumentException("truncated chunk");
+		}
+		return f;
+	}
+
+	private int loadInt()
+	{
+		int i = _buf.getInt(_pos);
+		_pos += 4;
+		return i;
+	}
+
+	private long loadInt64()
+	{
+		long l = _buf.getLong(_pos);
+		_pos += 8;
+		return l;
+	}
+
+	private int loadByte()
+	{
+		return _buf.get(_pos++) & 0xff;
+	}
+
+	private int loadSize()
+	{
+		return _size64 ? (int)loadInt64() : loadInt();
+	}
+
+	private int[] loadIntArray()
+	{
+		int n = loadInt();
+		int[] a = new int[n];
+		for(int i = 0; i < n; i++, _pos += 4)
+			a[i] = _buf.getInt(_pos);
+		return a;
+	}
+
+	private LuaString loadString()
+	{
+		int size = loadSize();
+		if(size == 0)
+		    return null;
+		byte[] bytes = new byte[size - 1];
+		for(int i = 0; i < bytes.length; i++)
+			bytes[i] = _buf.get(_pos + i);
+		_pos += size;
+		LuaString s = LuaString.valueOf(bytes);
+		return ConstantPool.enabled ? ConstantPool.intern(s) : s;
+	}
+
+	private void skipInts()
+	{
+		int n = loadInt();
+		_pos += 4 * n;
+	}
+
+	private void skipString()
+	{
+		int size = loadSize();
+		_pos += size;
+	}
+
+	/** Decode the fields before the code of a function */
+	private void header(Prototype f, LuaString source)
+	{
+		f.source = loadString();
+		if(f.source == null)
+		    f.source = source;
+		f.linedefined = loadInt();
+		f.lastlinedefined = loadInt();
+		f.nups = loadByte();
+		f.numparams = loadByte();
+		f.is_vararg = loadByte();
+		f.maxstacksize = loadByte();
+	}
+
+	/** Decode the code and constants of a function, leaving stubs for its nested functions and its debug information */
+	private void body(Prototype f)
+	{
+		f.code = loadIntArray();
+		int n = loadInt();
+		LuaValue[] k = new LuaValue[n];
+		for(int i = 0; i < n; i++)
+		{
+			switch(_buf.get(_pos++))
+			{
+				case LoadState.LUA_TNIL:
+					k[i] = LuaValue.NIL;
+					break;
+				case LoadState.LUA_TBOOLEAN:
+					k[i] = (loadByte() != 0 ? LuaValue.TRUE : LuaValue.FALSE);
+					break;
+				case LoadState.LUA_TINT:
+					k[i] = LuaInteger.valueOf(loadInt());
+					break;
+				case LoadState.LUA_TLONG:
+					k[i] = LuaInteger.valueOf(loadInt64());
+					break;
+				case LoadState.LUA_TNUMBER:
+					k[i] = (_numberFormat == LoadState.NUMBER_FORMAT_INTS_ONLY ? LuaInteger.valueOf(loadInt())
+					        : LoadState.longBitsToLuaNumber(loadInt64()));
+					break;
+				case LoadState.LUA_TSTRING:
+					k[i] = loadString();
+					break;
+				default:
+					throw new IllegalStateException("bad constant");
+			}
+			if(ConstantPool.enabled)
+			    k[i] = ConstantPool.intern(k[i]);
+		}
+		f.k = k;
+		n = loadInt();
+		Prototype[] p = new Prototype[n];
+		for(int i = 0; i < n; i++)
+		{
+			Prototype c = p[i] = new Prototype();
+			header(c, f.source);
+			c.lazy = new Code(this, _pos);
+			skipBody();
+		}
+		f.p = p;
+		f.lazydebug = new Debug(this, _pos);
+		skipDebug();
+	}
+
+	/** Move past the code, constants, nested functions and debug information of a function without decoding them */
+	private void skipBody()
+	{
+		skipInts();
+		for(int i = 0, n = loadInt(); i < n; i++)
+		{
+			switch(_buf.get(_pos++))
+			{
+				case LoadState.LUA_TNIL:
+					break;
+				case LoadState.LUA_TBOOLEAN:
+					_pos++;
+					break;
+				case LoadState.LUA_TINT:
+					_pos += 4;
+					break;
+				case LoadState.LUA_TLONG:
+					_pos += 8;
+					break;
+				case LoadState.LUA_TNUMBER:
+					_pos += (_numberFormat == LoadState.NUMBER_FORMAT_INTS_ONLY ? 4 : 8);
+					break;
+				case LoadState.LUA_TSTRING:
+					skipString();
+					break;
+				default:
+					throw new IllegalStateException("bad constant");
+			}
+		}
+		for(int i = 0, n = loadInt(); i < n; i++)
+		{
+			skipString();
+			_pos += 4 + 4 + 4; /* linedefined, lastlinedefined, nups, numparams, is_vararg, maxstacksize */
+			skipBody();
+		}
+		skipDebug();
+	}
+
+	private void skipDebug()
+	{
+		skipInts();
+		for(int i = 0, n = loadInt(); i < n; i++)
+		{
+			skipString();
+			_pos += 8;
+		}
+		for(int i = 0, n = loadInt(); i < n; i++)
+			skipString();
+		if(_pos > _buf.limit())
+		    throw new IndexOutOfBoundsException();
+	}
+
+	private void debug(Prototype f)
+	{
+		f.lineinfo = loadIntArray();
+		int n = loadInt();
+		LocVars[] locvars = new LocVars[n];
+		for(int i = 0; i < n; i++)
+		{
+			LuaString varname = loadString();
+			int startpc = loadInt();
+			locvars[i] = new LocVars(varname, startpc, loadInt());
+		}
+		f.locvars = locvars;
+		n = loadInt();
+		LuaString[] upvalues = new LuaString[n];
+		for(int i = 0; i < n; i++)
+			upvalues[i] = loadString();
+		f.upvalues = upvalues;
+	}
+
+	/** Code and constants of a nested function, at their offset in the chunk */
+	private static final class Code implements Prototype.Body
+	{
+		private final MappedChunk _chunk;
+		private final int         _pos;
+
+		Code(MappedChunk chunk, int pos)
+		{
+			_chunk = chunk;
+			_pos = pos;
+		}
+
+		@Override
+		public void compile(Prototype p)
+		{
+			_chunk.at(_pos).body(p);
+		}
+	}
+
+	/** Debug information of a function, at its offset in the chunk */
+	private static final class Debug implements Prototype.Body
+	{
+		private final MappedChunk _chunk;
+		private final int         _pos;
+
+		Debug(MappedChunk chunk, int pos)
+		{
+			_chunk = chunk;
+			_pos = pos;
+		}
+
+		@Override
+		public void compile(Prototype p)
+		{
+			_chunk.at(_pos).debug(p);
+		}
+	}
+}
@@ -127,6 +127,7 @@ public class Print extends Lua
 	 */
 	public static void printCode(PrintStream ps, Prototype f)
 	{
+		f.debug();
 		int[] code = f.code;
 		int pc, n = code.length;
 		for(pc = 0; pc < n; pc++)
@@ -144,6 +145,7 @@ public class Print extends Lua
 	 */
 	public static void printOpCode(PrintStream ps, Prototype f, int pc)
 	{
+		f.debug();
 		int[] code = f.code;
 		int i = code[pc];
 		int o = GET_OPCODE(i);
@@ -320,6 +322,7 @@ public class Print extends Lua
 
 	public static void printFunction(PrintStream ps, Prototype f, boolean full)
 	{
+		f.debug();
 		int i, n = f.p.length;
 		printHeader(ps, f);
 		printCode(ps, f);
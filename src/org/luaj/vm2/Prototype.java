@@ -30,6 +30,61 @@ public class Prototype
 	public int         numparams;
 	public int         is_vararg;
 	public int         maxstacksize;
+	/* registers which may hold a raw number in LuaClosure.executeUnboxed, or -1 until counted */
+	int                numregs = -1;
+	/* body compiled on first use, or null once compiled */
+	public volatile Body lazy;
+	/* lineinfo, locvars and upvalues decoded on first use, or null once decoded */
+	public volatile Body lazydebug;
+
+	/** Deferred part of a function, filled in by {@link #compile()} or {@link #debug()} */
+	public interface Body
+	{
+		/** Fill in the deferred fields of the stub prototype {@code p} */
+		void compile(Prototype p);
+	}
+
+	/**
+	 * Compile the body of this function if the parser deferred it.
+	 * Called before the first closure is created and before dumping,
+	 * until then a deferred function only has the fields before its code in a binary chunk.
+	 */
+	public void compile()
+	{
+		if(lazy != null)
+		{
+			synchronized(this)
+			{
+				Body b = lazy;
+				if(b != null)
+				{
+					b.compile(this);
+					lazy = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decode the line info, local and upvalue names of this function if the loader deferred them.
+	 * Called before reading them, which only the debug library, {@link Print} and the dumper do.
+	 */
+	public void debug()
+	{
+		compile();
+		if(lazydebug != null)
+		{
+			synchronized(this)
+			{
+				Body b = lazydebug;
+				if(b != null)
+				{
+					b.compile(this);
+					lazydebug = null;
+				}
+			}
+		}
+	}
 
 	/** Get the name of a local variable.
 	 *
@@ -39,6 +94,7 @@ public class Prototype
 	 */
 	public LuaString getlocalname(int number, int pc)
 	{
+		debug();
 		int i;
 		for(i = 0; i < locvars.length && locvars[i]._startpc <= pc; i++)
 		{
@@ -0,0 +1,656 @@
+package org.luaj.vm2;
+
+import org.luaj.vm2.lib.LibBase;
+import org.luaj.vm2.lib.LibCoroutine;
+import org.luaj.vm2.lib.LibFunction;
+
+/**
+ * Coroutine body which runs as a chain of {@link LuaFrame}s instead of on its own Java thread.
+ * <p>
+ * The dispatch loop is the one of {@link LuaClosure#execute(LuaValue[], Varargs)},
+ * except that calls and tail calls of a {@link LuaClosure} push or replace a frame instead of recursing,
+ * and a call of {@code coroutine.yield} saves the top frame and returns from {@link #resume(Varargs)}.
+ * Resuming delivers the arguments as results of that call and continues the loop on the resumer's Java thread.
+ * A {@code pcall} of a {@link LuaClosure} is a protected frame, which catches the errors of the frames above it.
+ * <p>
+ * Library functions which can not yield, see {@link LibFunction#canYield()}, are called as usual.
+ * Before any other Java function, such as {@code xpcall} or a library function taking a callback,
+ * and before an instruction which would call a metamethod function,
+ * the frames are saved at that instruction and the coroutine moves to a Java thread for the rest of its life.
+ * The thread continues the frames, so lua functions called from Java there can yield like in any other coroutine.
+ * @see LuaThread#stackless
+ */
+final class StacklessCoroutine
+{
+	private final LuaClosure _body;
+	private LuaFrame         _frame;     // suspended top frame
+	private boolean          _started;
+	private boolean          _suspended; // last resume returned from a yield
+	private boolean          _threaded;  // moved to a Java thread, which continues _frame
+
+	StacklessCoroutine(LuaClosure body)
+	{
+		_body = body;
+	}
+
+	/**
+	 * Test whether the last {@link #resume(Varargs)} returned from a yield
+	 * @return true if suspended, false if the body returned
+	 */
+	boolean isSuspended()
+	{
+		return _suspended;
+	}
+
+	/**
+	 * Test whether the frames moved to a Java thread, which then runs them with {@link #run()}
+	 * @return true if the coroutine has to be resumed on its Java thread from now on
+	 */
+	boolean isThreaded()
+	{
+		return _threaded;
+	}
+
+	/**
+	 * Start the body or continue it after a yield
+	 * @param args the arguments of the body, or the results of the yield
+	 * @return values passed to yield, or values returned by the body,
+	 *         or nothing if the frames moved to a Java thread, see {@link #isThreaded()}
+	 * @throws LuaError if the body raised an error, which leaves it dead
+	 */
+	Varargs resume(Varargs args)
+	{
+		_suspended = false;
+		if(!_started)
+		{
+			_started = true;
+			return execute(new LuaFrame(_body, args, null));
+		}
+		LuaFrame f = _frame;
+		_frame = null;
+		f.deliver(args);
+		return execute(f);
+	}
+
+	/**
+	 * Continue the frames on the Java thread of the coroutine after they moved there
+	 * @return values returned by the body
+	 * @throws LuaError if the body raised an error
+	 */
+	Varargs run()
+	{
+		LuaFrame f = _frame;
+		_frame = null;
+		return execute(f);
+	}
+
+	/** Test if a function is {@code coroutine.yield}, which suspends the frames instead of being called */
+	private static boolean isyield(LuaValue o)
+	{
+		return o instanceof LibCoroutine && ((LibCoroutine)o).isYield();
+	}
+
+	/** Test if a call is a {@code pcall} of a lua function, which runs in a protected frame instead of being called */
+	private static boolean ispcall(LuaValue o, Varargs args)
+	{
+		return args.arg1() instanceof LuaClosure && LibBase.isPcall(o);
+	}
+
+	/** Enter a lua function called by {@code pcall}
+	 * @param args the arguments of pcall, the function followed by its arguments
+	 * @param parent the frame calling pcall
+	 */
+	private static LuaFrame pcall(Varargs args, LuaFrame parent)
+	{
+		LuaFrame f = new LuaFrame((LuaClosure)args.arg1(), args.subargs(2), parent);
+		f._errfunc = LuaThread.setErrorFunc(null);
+		f._protected = true;
+		return f;
+	}
+
+	/** Test if a function may let the coroutine yield from inside a Java call, so the call has to run on a Java thread */
+	private static boolean canyield(LuaValue o)
+	{
+		return !(o instanceof LibFunction) || ((LibFunction)o).canYield();
+	}
+
+	/** Test if indexing or assigning to a value may call a metamethod function
+	 * @param t the value to index
+	 * @param key the key to look up
+	 * @param event {@link LuaValue#INDEX} or {@link LuaValue#NEWINDEX}
+	 */
+	private static boolean tablecalls(LuaValue t, LuaValue key, LuaValue event)
+	{
+		for(int loop = 0; loop < 100; ++loop)
+		{
+			if(t instanceof LuaTable)
+			{
+				if(t.getmetatable() == null || !t.rawget(key).isnil())
+				    return false;
+			}
+			else if(!(t instanceof LuaString) && (t.isuserdata() || t.getmetatable() != null))
+			    return true; // userdata may be backed by Java code
+			LuaValue h = t.metatag(event);
+			if(h.isnil())
+			    return false;
+			if(h.isfunction())
+			    return true;
+			t = h;
+		}
+		return false;
+	}
+
+	/** Test if an operand which is not a number may call a metamethod function
+	 * @param x the operand
+	 * @param event the metamethod of the operation, such as {@link LuaValue#ADD}
+	 */
+	private static boolean opcalls(LuaValue x, LuaValue event)
+	{
+		return !(x instanceof LuaNumber) && !x.metatag(event).isnil();
+	}
+
+	/** Test if comparing two values for equality may call a metamethod function */
+	private static boolean eqcalls(LuaValue x, LuaValue y)
+	{
+		return x != y && (x instanceof LuaTable ? y instanceof LuaTable : x.isuserdata() && y.isuserdata()) &&
+		        x.getmetatable() != null && y.getmetatable() != null;
+	}
+
+	/** Test if a concatenation of registers may call a metamethod function */
+	private static boolean concatcalls(LuaValue[] stack, int b, int c)
+	{
+		for(; b <= c; ++b)
+			if(!(stack[b] instanceof LuaString) && opcalls(stack[b], LuaValue.CONCAT))
+			    return true;
+		return false;
+	}
+
+	/** Test if an order comparison may call a metamethod function */
+	private static boolean ltcalls(LuaValue x, LuaValue y)
+	{
+		if(x instanceof LuaNumber ? y instanceof LuaNumber : x instanceof LuaString && y instanceof LuaString)
+		    return false;
+		return x.getmetatable() != null || y.getmetatable() != null;
+	}
+
+	/** Save the frames at an instruction which may call back into lua from Java, to run them on a Java thread
+	 * @param f the top frame
+	 * @param pc index of the instruction, which the Java thread executes again
+	 * @param top top of the frame for the instruction
+	 * @param v values of the frame for the instruction
+	 */
+	private Varargs migrate(LuaFrame f, int pc, int top, Varargs v)
+	{
+		f._pc = pc;
+		f._top = top;
+		f._v = v;
+		_frame = f;
+		_threaded = true;
+		return LuaValue.NONE;
+	}
+
+	/** Copy values which may refer to a register window that keeps running after they are passed out */
+	private static Varargs copy(Varargs v)
+	{
+		int n = v.narg();
+		if(n <= 1)
+		    return v.arg1();
+		LuaValue[] a = new LuaValue[n];
+		for(int j = 0; j < n; ++j)
+			a[j] = v.arg(j + 1);
+		return LuaValue.varargsOf(a);
+	}
+
+	/** Save the top frame and suspend
+	 * @param f the frame waiting for the results of the yield
+	 * @param v the values passed to yield
+	 */
+	private Varargs suspend(LuaFrame f, Varargs v)
+	{
+		_frame = f;
+		_suspended = true;
+		return copy(v);
+	}
+
+	@SuppressWarnings("null")
+	private Varargs execute(LuaFrame f)
+	{
+		int i, a, b, c;
+		LuaValue o, x, y;
+		Varargs args;
+		boolean stackless = !_threaded; // calls which may yield move to a Java thread
+		for(;;)
+		{
+			try
+			{
+				// load the top frame
+				LuaClosure cl = f._closure;
+				Prototype p = cl._p;
+				int[] code = p.code;
+				LuaValue[] k = p.k;
+				LuaValue[] stack = f._stack;
+				Varargs varargs = f._varargs;
+				UpValue[] openups = f._openups;
+				UpValue[] upValues = cl._upValues;
+				LuaValue env = cl._env;
+				int pc = f._pc, top = f._top;
+				Varargs v = f._v;
+
+				dispatch: for(;;)
+				{
+					i = code[pc++];
+					a = (i >> 6) & 0xff;
+
+					switch(i & 0x3f)
+					{
+						case Lua.OP_MOVE:/*	A B	R(A):= R(B)					*/
+							stack[a] = stack[i >>> 23];
+							continue;
+						case Lua.OP_LOADK:/*	A Bx	R(A):= Kst(Bx)					*/
+							stack[a] = k[i >>> 14];
+							continue;
+						case Lua.OP_LOADBOOL:/*	A B C	R(A):= (Bool)B: if (C) pc++			*/
+							stack[a] = (i >>> 23 != 0) ? LuaValue.TRUE : LuaValue.FALSE;
+							if((i & (0x1ff << 14)) != 0)
+							    pc++; /* skip next instruction (if C) */
+							continue;
+						case Lua.OP_LOADNIL: /*	A B	R(A):= ...:= R(B):= nil			*/
+							for(b = i >>> 23; a <= b;)
+								stack[a++] = LuaValue.NIL;
+							continue;
+						case Lua.OP_GETUPVAL: /*	A B	R(A):= UpValue[B]				*/
+							stack[a] = upValues[i >>> 23].getValue();
+							continue;
+						case Lua.OP_GETGLOBAL: /*	A Bx	R(A):= Gbl[Kst(Bx)]				*/
+							if(stackless && tablecalls(env, k[i >>> 14], LuaValue.INDEX))
+							    return migrate(f, pc - 1, top, v);
+							stack[a] = env.get(k[i >>> 14]);
+							continue;
+						case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
+							o = stack[i >>> 23];
+							x = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c];
+							if(stackless && tablecalls(o, x, LuaValue.INDEX))
+							    return migrate(f, pc - 1, top, v);
+							stack[a] = o.get(x);
+							continue;
+						case Lua.OP_SETGLOBAL: /*	A Bx	Gbl[Kst(Bx)]:= R(A)				*/
+							if(stackless && tablecalls(env, k[i >>> 14], LuaValue.NEWINDEX))
+							    return migrate(f, pc - 1, top, v);
+							env.set(k[i >>> 14], stack[a]);
+							continue;
+						case Lua.OP_SETUPVAL: /*	A B	UpValue[B]:= R(A)				*/
+							upValues[i >>> 23].setValue(stack[a]);
+							continue;
+						case Lua.OP_SETTABLE: /*	A B C	R(A)[RK(B)]:= RK(C)				*/
+							x = ((b = i >>> 23) > 0xff ? k[b & 0xff] : stack[b]);
+							if(stackless && tablecalls(stack[a], x, LuaValue.NEWINDEX))
+							    return migrate(f, pc - 1, top, v);
+							stack[a].set(x, (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c]);
+							continue;
+						case Lua.OP_NEWTABLE: /*	A B C	R(A):= {} (size = B,C)				*/
+							stack[a] = new LuaTable(i >>> 23, (i >> 14) & 0x1ff);
+							continue;
+						case Lua.OP_SELF: /*	A B C	R(A+1):= R(B): R(A):= R(B)[RK(C)]		*/
+							o = stack[i >>> 23];
+							x = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c];
+							if(stackless && tablecalls(o, x, LuaValue.INDEX))
+							    return migrate(f, pc - 1, top, v);
+							stack[a + 1] = o;
+							stack[a] = o.get(x);
+							continue;
+						case Lua.OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
+							x = ((b = i >>> 23) > 0xff ? k[b & 0xff] : stack[b]);
+							y = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c];
+							if(stackless && (opcalls(x, LuaValue.ADD) || opcalls(y, LuaValue.ADD)))
+							    return migrate(f, pc - 1, top, v);
+							stack[a] = x.add(y);
+							continue;
+						case Lua.OP_SUB: /*	A B C	R(A):= RK(B) - RK(C)				*/
+							x = ((b = i >>> 23) > 0xff ? k[b & 0xff] : stack[b]);
+							y = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c];
+							if(stackless && (opcalls(x, LuaValue.SUB) || opcalls(y, LuaValue.SUB)))
+							    return migrate(f, pc - 1, top, v);
+							stack[a] = x.sub(y);
+							continue;
+						case Lua.OP_MUL: /*	A B C	R(A):= RK(B) * RK(C)				*/
+							x = ((b = i >>> 23) > 0xff ? k[b & 0xff] : stack[b]);
+							y = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c];
+							if(stackless && (opcalls(x, LuaValue.MUL) || opcalls(y, LuaValue.MUL)))
+							    return migrate(f, pc - 1, top, v);
+							stack[a] = x.mul(y);
+							continue;
+						case Lua.OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
+							x = ((b = i >>> 23) > 0xff ? k[b & 0xff] : stack[b]);
+							y = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c];
+							if(stackless && (opcalls(x, LuaValue.DIV) || opcalls(y, LuaValue.DIV)))
+							    return migrate(f, pc - 1, top, v);
+							stack[a] = x.div(y);
+							continue;
+						case Lua.OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
+							x = ((b = i >>> 23) > 0xff ? k[b & 0xff] : stack[b]);
+							y = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c];
+							if(stackless && (opcalls(x, LuaValue.MOD) || opcalls(y, LuaValue.MOD)))
+							    return migrate(f, pc - 1, top, v);
+							stack[a] = x.mod(y);
+							continue;
+						case Lua.OP_POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
+							x = ((b = i >>> 23) > 0xff ? k[b & 0xff] : stack[b]);
+							y = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c];
+							if(stackless && (opcalls(x, LuaValue.POW) || opcalls(y, LuaValue.POW)))
+							    return migrate(f, pc - 1, top, v);
+							stack[a] = x.pow(y);
+							continue;
+						case Lua.OP_UNM: /*	A B	R(A):= -R(B)					*/
+							o = stack[i >>> 23];
+							if(stackless && opcalls(o, LuaValue.UNM))
+							    return migrate(f, pc - 1, top, v);
+							stack[a] = o.neg();
+							continue;
+						case Lua.OP_NOT: /*	A B	R(A):= not R(B)				*/
+							stack[a] = stack[i >>> 23].not();
+							continue;
+						case Lua.OP_LEN: /*	A B	R(A):= length of R(B)				*/
+							o = stack[i >>> 23];
+							if(stackless && !(o instanceof LuaTable) && opcalls(o, LuaValue.LEN))
+							    return migrate(f, pc - 1, top, v);
+							stack[a] = o.len();
+							continue;
+						case Lua.OP_CONCAT: /*	A B C	R(A):= R(B).. ... ..R(C)			*/
+							b = i >>> 23;
+							c = (i >> 14) & 0x1ff;
+							if(stackless && concatcalls(stack, b, c))
+							    return migrate(f, pc - 1, top, v);
+							if(c > b + 1)
+							{
+								Buffer sb = stack[c].buffer();
+								while(--c >= b)
+									sb = stack[c].concat(sb);
+								stack[a] = sb.value();
+							}
+							else
+								stack[a] = stack[c - 1].concat(stack[c]);
+							continue;
+						case Lua.OP_JMP: /*	sBx	pc+=sBx					*/
+							pc += (i >>> 14) - 0x1ffff;
+							continue;
+						case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
+							x = ((b = i >>> 23) > 0xff ? k[b & 0xff] : stack[b]);
+							y = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c];
+							if(stackless && eqcalls(x, y))
+							    return migrate(f, pc - 1, top, v);
+							if(x.eq_b(y) != (a != 0))
+							    ++pc;
+							continue;
+						case Lua.OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
+							x = ((b = i >>> 23) > 0xff ? k[b & 0xff] : stack[b]);
+							y = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c];
+							if(stackless && ltcalls(x, y))
+							    return migrate(f, pc - 1, top, v);
+							if(x.lt_b(y) != (a != 0))
+							    ++pc;
+							continue;
+						case Lua.OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
+							x = ((b = i >>> 23) > 0xff ? k[b & 0xff] : stack[b]);
+							y = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0xff] : stack[c];
+							if(stackless && ltcalls(x, y))
+							    return migrate(f, pc - 1, top, v);
+							if(x.lteq_b(y) != (a != 0))
+							    ++pc;
+							continue;
+						case Lua.OP_TEST: /*	A C	if not (R(A) <=> C) then pc++			*/
+							if(stack[a].toboolean() != ((i & (0x1ff << 14)) != 0))
+							    ++pc;
+							continue;
+						case Lua.OP_TESTSET: /*	A B C	if (R(B) <=> C) then R(A):= R(B) else pc++	*/
+							/* note: doc appears to be reversed */
+							if((o = stack[i >>> 23]).toboolean() != ((i & (0x1ff << 14)) != 0))
+								++pc;
+							else
+								stack[a] = o;
+							continue;
+						case Lua.OP_CALL: /*	A B C	R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+							b = i >>> 23;
+							o = stack[a];
+							args = b > 0 ?
+							        LuaValue.varargsOf(stack, a + 1, b - 1) : // exact arg count
+							        LuaValue.varargsOf(stack, a + 1, top - v.narg() - (a + 1), v); // from prev top
+							if(o instanceof LuaClosure)
+							{
+								f._pc = pc;
+								f = new LuaFrame((LuaClosure)o, args, f);
+								break dispatch;
+							}
+							if(stackless && isyield(o))
+							{
+								f._pc = pc;
+								return suspend(f, args);
+							}
+							if(ispcall(o, args))
+							{
+								f._pc = pc;
+								f = pcall(args, f);
+								break dispatch;
+							}
+							if(stackless && canyield(o))
+							    return migrate(f, pc - 1, top, v);
+							v = o.invoke(args);
+							if((c = (i >> 14) & 0x1ff) > 0)
+							{
+								while(--c > 0)
+									stack[a + c - 1] = v.arg(c);
+								v = LuaValue.NONE;
+							}
+							else
+							{
+								top = a + v.narg();
+							}
+							continue;
+						case Lua.OP_TAILCALL: /*	A B C	return R(A)(R(A+1), ... ,R(A+B-1))		*/
+							b = i >>> 23;
+							o = stack[a];
+							args = b > 0 ?
+							        LuaValue.varargsOf(stack, a + 1, b - 1) : // exact arg count
+							        LuaValue.varargsOf(stack, a + 1, top - v.narg() - (a + 1), v); // from prev top
+							// a protected frame stays to catch errors, the frame after a yield returns its results
+							if(o instanceof LuaClosure && !f._protected)
+							{
+								f.close();
+								f = new LuaFrame((LuaClosure)o, args, f = f._parent);
+								break dispatch;
+							}
+							f._pc = pc;
+							if(o instanceof LuaClosure)
+							{
+								f = new LuaFrame((LuaClosure)o, args, f);
+								break dispatch;
+							}
+							if(stackless && isyield(o))
+							    return suspend(f, args);
+							if(ispcall(o, args))
+							{
+								f = pcall(args, f);
+								break dispatch;
+							}
+							if(stackless && canyield(o))
+							    return migrate(f, pc - 1, top, v);
+							v = o.invoke(args);
+							break;
+						case Lua.OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
+							b = i >>> 23;
+							switch(b)
+							{
+								case 0:
+									v = LuaValue.varargsOf(stack, a, top - v.narg() - a, v);
+									break;
+								case 1:
+									v = LuaValue.NONE;
+									break;
+								case 2:
+									v = stack[a];
+									break;
+								default:
+									v = LuaValue.varargsOf(stack, a, b - 1);
+									break;
+							}
+							break;
+						case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+						{
+							LuaValue limit = stack[a + 1];
+							LuaValue step = stack[a + 2];
+							LuaValue idx = stack[a].add(step);
+							if(step.gt_b(0) ? idx.lteq_b(limit) : idx.gteq_b(limit))
+							{
+								stack[a] = idx;
+								stack[a + 3] = idx;
+								pc += (i >>> 14) - 0x1ffff;
+							}
+							continue;
+						}
+						case Lua.OP_FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/
+						{
+							LuaValue init = stack[a].checknumber("'for' initial value must be a number");
+							LuaValue limit = stack[a + 1].checknumber("'for' limit must be a number");
+							LuaValue step = stack[a + 2].checknumber("'for' step must be a number");
+							stack[a] = init.sub(step);
+							stack[a + 1] = limit;
+							stack[a + 2] = step;
+							pc += (i >>> 14) - 0x1ffff;
+							continue;
+						}
+						case Lua.OP_TFORLOOP: /*
+							                  * A C R(A+3), ... ,R(A+2+C):= R(A)(R(A+1),
+							                  * R(A+2)): if R(A+3) ~= nil then R(A+2)=R(A+3)
+							                  * else pc++
+							                  */
+							o = stack[a];
+							args = LuaValue.varargsOf(stack[a + 1], stack[a + 2]);
+							if(o instanceof LuaClosure)
+							{
+								f._pc = pc;
+								f = new LuaFrame((LuaClosure)o, args, f);
+								break dispatch;
+							}
+							if(stackless && isyield(o))
+							{
+								f._pc = pc;
+								return suspend(f, args);
+							}
+							if(stackless && canyield(o))
+							    return migrate(f, pc - 1, top, v);
+							v = o.invoke(args);
+							if((o = v.arg1()).isnil())
+								++pc;
+							else
+							{
+								stack[a + 2] = stack[a + 3] = o;
+								for(c = (i >> 14) & 0x1ff; c > 1; --c)
+									stack[a + 2 + c] = v.arg(c);
+								v = LuaValue.NONE;
+							}
+							continue;
+						case Lua.OP_SETLIST: /*	A B C	R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B	*/
+							if((c = (i >> 14) & 0x1ff) == 0)
+							    c = code[pc++];
+							int offset = (c - 1) * Lua.LFIELDS_PER_FLUSH;
+							o = stack[a];
+							if((b = i >>> 23) == 0)
+							{
+								b = top - a - 1;
+								int m = b - v.narg();
+								int j = 1;
+								for(; j <= m; j++)
+									o.set(offset + j, stack[a + j]);
+								for(; j <= b; j++)
+									o.set(offset + j, v.arg(j - m));
+							}
+							else
+							{
+								o.presize(offset + b);
+								for(int j = 1; j <= b; j++)
+									o.set(offset + j, stack[a + j]);
+							}
+							continue;
+						case Lua.OP_CLOSE: /*	A 	close all variables in the stack up to (>=) R(A)*/
+							for(b = openups.length; --b >= a;)
+								if(openups[b] != null)
+								{
+									openups[b].close();
+									openups[b] = null;
+								}
+							continue;
+						case Lua.OP_CLOSURE: /*	A Bx	R(A):= closure(KPROTO[Bx], R(A), ... ,R(A+n))	*/
+							Prototype newp = p.p[i >>> 14];
+							LuaClosure newcl = new LuaClosure(newp, env);
+							for(int j = 0, nup = newp.nups; j < nup; ++j)
+							{
+								i = code[pc++];
+								b = i >>> 23;
+								newcl._upValues[j] = (i & 4) != 0 ?
+								        upValues[b] : openups[b] != null ? openups[b] : (openups[b] = new UpValue(stack, b));
+							}
+							stack[a] = newcl;
+							continue;
+						case Lua.OP_VARARG: /*	A B	R(A), R(A+1), ..., R(A+B-1) = vararg		*/
+							b = i >>> 23;
+							if(b == 0)
+							{
+								top = a + (b = varargs.narg());
+								v = varargs;
+							}
+							else
+							{
+								for(int j = 1; j < b; ++j)
+									stack[a + j - 1] = varargs.arg(j);
+							}
+							continue;
+					}
+
+					// return v from the frame, to the caller frame or out of the body
+					f.close();
+					if(f._protected)
+					{
+						LuaThread.setErrorFunc(f._errfunc);
+						v = LuaValue.varargsOf(LuaValue.TRUE, v);
+					}
+					if((f = f._parent) == null)
+					    return v;
+					f.deliver(v);
+					break;
+				}
+			}
+			catch(LuaError e)
+			{
+				String m = e.getMessage();
+				f = unwind(f, e, m != null ? LuaValue.valueOf(m) : LuaValue.NIL);
+			}
+			catch(Exception e)
+			{
+				String m = e.getMessage();
+				f = unwind(f, new LuaError(e), LuaValue.valueOf(m != null ? m : e.toString()));
+			}
+		}
+	}
+
+	/**
+	 * Close the frames above the nearest protected frame after an error, as pcall does
+	 * @param f the top frame when the error was raised
+	 * @param e the error to rethrow if no frame is protected
+	 * @param msg the error message returned by pcall
+	 * @return the frame which called the protected frame, with the results of pcall delivered
+	 */
+	private static LuaFrame unwind(LuaFrame f, LuaError e, LuaValue msg)
+	{
+		for(; f != null; f = f._parent)
+		{
+			f.close();
+			if(f._protected)
+			{
+				LuaThread.setErrorFunc(f._errfunc);
+				f = f._parent;
+				f.deliver(LuaValue.varargsOf(LuaValue.FALSE, msg));
+				return f;
+			}
+		}
+		throw e;
+	}
+}
@@ -0,0 +1,43 @@
+package org.luaj.vm2;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for events on hot paths which several Java threads may count at the same time.
+ * <p>
+ * The count is split into cells on separate cache lines, and each Java thread adds to the cell picked by its id,
+ * so threads counting at the same time seldom write to the same cache line.
+ * Reading the count adds up the cells, which is slower and may miss increments made meanwhile.
+ */
+public final class StripedCounter
+{
+	private static final int      STRIPES = stripes();
+	private static final int      PAD     = 8;          // longs per 64 byte cache line
+
+	private final AtomicLongArray _cells  = new AtomicLongArray(STRIPES * PAD);
+
+	/** @return a power of 2 of at least twice the number of processors, at most 64 */
+	private static int stripes()
+	{
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int n = 1;
+		while(n < 2 * cpus && n < 64)
+			n <<= 1;
+		return n;
+	}
+
+	/** Add one to the count */
+	public void increment()
+	{
+		_cells.incrementAndGet(((int)Thread.currentThread().getId() & (STRIPES - 1)) * PAD);
+	}
+
+	/** @return the sum of all increments */
+	public long get()
+	{
+		long n = 0;
+		for(int i = 0; i < STRIPES; i++)
+			n += _cells.get(i * PAD);
+		return n;
+	}
+}
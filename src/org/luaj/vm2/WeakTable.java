@@ -14,7 +14,7 @@ import org.luaj.vm2.lib.LibFunction2;
  */
 public final class WeakTable extends LuaTable
 {
-	private boolean _weakkeys, _weakvalues;
+	boolean _weakkeys, _weakvalues;
 
 	/**
 	 * Construct a table with weak keys, weak values, or both
@@ -169,6 +169,8 @@ public final class WeakTable extends LuaTable
 			LuaValue v = _hashValues[i];
 			return v != null ? v : NIL;
 		}
+		if(_source != null && _source.read(this))
+		    return rawget(key);
 		return NIL;
 	}
 
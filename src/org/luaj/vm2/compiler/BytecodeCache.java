@@ -0,0 +1,210 @@
+package org.luaj.vm2.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.StripedCounter;
+import org.luaj.vm2.lib.LibBase;
+
+/**
+ * Directory of compiled lua files, so unchanged sources are not compiled again by later runs.
+ * <p>
+ * When {@link #cache_dir} is set, {@link LibBase#loadFile(String)} and with it
+ * {@code require}, {@code dofile} and {@code loadfile} compile source files through {@link #compile(File, String)}.
+ * Each entry is named after the path and chunk name of its source file and the compiler mode,
+ * which is whether {@link LuaC#optimize} is set and whether the current state is integer-only.
+ * It starts with the mode and the size, modification time and SHA-1 digest of the source it was compiled from,
+ * followed by the binary chunk written by {@link DumpState} with debug information,
+ * in the number-patched format so that integer constants are kept exactly.
+ * An entry is only used if all of them match, otherwise the source is compiled and the entry written again.
+ * Entries are written to a temporary file which is then renamed,
+ * so several processes may share a cache directory.
+ * Errors while reading or writing entries fall back to compiling the source.
+ */
+public final class BytecodeCache
+{
+	/** Directory holding the entries, or null to disable the cache.
+	 * Defaults to the system property {@code luaj.bytecode.cache}, it can be changed by Java startup code.
+	 */
+	public static File                  cache_dir = (System.getProperty("luaj.bytecode.cache") != null ?
+	        new File(System.getProperty("luaj.bytecode.cache")) : null);
+
+	private static final int            MAGIC     = 0x4c4a4243; // "LJBC"
+	private static final int            VERSION   = 3;
+
+	private static final StripedCounter hits      = new StripedCounter();
+	private static final AtomicLong     misses    = new AtomicLong();
+
+	private BytecodeCache()
+	{
+	}
+
+	/**
+	 * Compile a source file, or load it from the cache entry of an earlier compilation
+	 * @param file source file, which may also hold a binary chunk
+	 * @param name chunk name
+	 * @return the {@link Prototype} of the chunk
+	 * @throws IOException if the source file cannot be read
+	 */
+	public static Prototype compile(File file, String name) throws IOException
+	{
+		byte[] src = readFully(file);
+		if(cache_dir == null || src.length > 0 && src[0] == '\033')
+		    return LuaC.compile(src, 0, src.length, name);
+		int mode = LuaC.mode();
+		long mtime = file.lastModified();
+		byte[] digest = sha1(src);
+		File entry = new File(cache_dir, hex(sha1((file.getAbsolutePath() + '\n' + name + '\n' + mode).getBytes("UTF-8"))) + ".luac");
+		Prototype p = read(entry, mode, src.length, mtime, digest, name);
+		if(p != null)
+		{
+			hits.increment();
+			return p;
+		}
+		misses.incrementAndGet();
+		p = LuaC.compile(src, 0, src.length, name);
+		write(entry, mode, src.length, mtime, digest, p);
+		return p;
+	}
+
+	/** @return the number of files loaded from the cache */
+	public static long getHitCount()
+	{
+		return hits.get();
+	}
+
+	/** @return the number of files compiled because their entry was missing or out of date */
+	public static long getMissCount()
+	{
+		return misses.get();
+	}
+
+	private static Prototype read(File entry, int mode, long size, long mtime, byte[] digest, String name)
+	{
+		if(!entry.isFile())
+		    return null;
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+			if(in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != mode || in.readLong() != size || in.readLong() != mtime)
+			    return null;
+			byte[] d = new byte[digest.length];
+			in.readFully(d);
+			if(!Arrays.equals(d, digest))
+			    return null;
+			return LoadState.loadBinaryChunk(in.read(), in, name);
+		}
+		catch(Exception e)
+		{
+			return null;
+		}
+		finally
+		{
+			close(in);
+		}
+	}
+
+	private static void write(File entry, int mode, long size, long mtime, byte[] digest, Prototype p)
+	{
+		File tmp = null;
+		DataOutputStream out = null;
+		try
+		{
+			File dir = entry.getParentFile();
+			if(!dir.isDirectory() && !dir.mkdirs())
+			    return;
+			tmp = File.createTempFile("entry", ".tmp", dir);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(mode);
+			out.writeLong(size);
+			out.writeLong(mtime);
+			out.write(digest);
+			DumpState.dump(p, out, false, DumpState.NUMBER_FORMAT_NUM_PATCH_INT32, false);
+			out.close();
+			out = null;
+			if(!tmp.renameTo(entry))
+			{
+				entry.delete();
+				if(!tmp.renameTo(entry))
+				    return;
+			}
+			tmp = null;
+		}
+		catch(Exception e)
+		{
+		}
+		finally
+		{
+			close(out);
+			if(tmp != null)
+			    tmp.delete();
+		}
+	}
+
+	private static byte[] readFully(File file) throws IOException
+	{
+		InputStream is = new FileInputStream(file);
+		try
+		{
+			byte[] b = new byte[(int)file.length()];
+			int n = 0;
+			for(int r; n < b.length && (r = is.read(b, n, b.length - n)) > 0;)
+				n += r;
+			return n == b.length ? b : Arrays.copyOf(b, n);
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	private static byte[] sha1(byte[] b)
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-1").digest(b);
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] b)
+	{
+		StringBuilder sb = new StringBuilder(b.length * 2);
+		for(byte c : b)
+			sb.append(Character.forDigit((c >> 4) & 15, 16)).append(Character.forDigit(c & 15, 16));
+		return sb.toString();
+	}
+
+	private static void close(Closeable c)
+	{
+		if(c != null)
+		{
+			try
+			{
+				c.close();
+			}
+			catch(IOException e)
+			{
+			}
+		}
+	}
+}
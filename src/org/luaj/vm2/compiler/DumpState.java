@@ -4,6 +4,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import org.luaj.vm2.LocVars;
+import org.luaj.vm2.LuaLong;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
@@ -93,7 +94,11 @@ public final class DumpState
 
 	void dumpDouble(double d) throws IOException
 	{
-		long l = Double.doubleToLongBits(d);
+		dumpInt64(Double.doubleToLongBits(d));
+	}
+
+	void dumpInt64(long l) throws IOException
+	{
 		if(IS_LITTLE_ENDIAN)
 		{
 			dumpInt((int)l);
@@ -114,6 +119,13 @@ public final class DumpState
 			dumpInt(code[i]);
 	}
 
+	/** true if the long converts to a double and back without losing bits */
+	private static boolean isExactDouble(long v)
+	{
+		double d = v;
+		return d != 0x1p63 && (long)d == v;
+	}
+
 	void dumpConstants(final Prototype f) throws IOException
 	{
 		final LuaValue[] k = f.k;
@@ -135,8 +147,17 @@ public final class DumpState
 					switch(NUMBER_FORMAT)
 					{
 						case NUMBER_FORMAT_FLOATS_OR_DOUBLES:
-							_writer.write(LuaValue.TNUMBER);
-							dumpDouble(o.todouble());
+							if(o instanceof LuaLong && !isExactDouble(o.tolong()))
+							{
+								/* no double holds it exactly, so keep all its bits */
+								_writer.write(LuaValue.TLONG);
+								dumpInt64(o.tolong());
+							}
+							else
+							{
+								_writer.write(LuaValue.TNUMBER);
+								dumpDouble(o.todouble());
+							}
 							break;
 						case NUMBER_FORMAT_INTS_ONLY:
 							if(!ALLOW_INTEGER_CASTING && !o.isint())
@@ -150,6 +171,11 @@ public final class DumpState
 								_writer.write(LuaValue.TINT);
 								dumpInt(o.toint());
 							}
+							else if(o instanceof LuaLong)
+							{
+								_writer.write(LuaValue.TLONG);
+								dumpInt64(o.tolong());
+							}
 							else
 							{
 								_writer.write(LuaValue.TNUMBER);
@@ -198,6 +224,7 @@ public final class DumpState
 
 	void dumpFunction(final Prototype f, final LuaString string) throws IOException
 	{
+		f.debug(); /* dumped chunks hold all code and debug information */
 		if(f.source == null || f.source.equals(string) || _strip)
 			dumpInt(0);
 		else
@@ -1,6 +1,7 @@
 package org.luaj.vm2.compiler;
 
 import java.util.HashMap;
+import org.luaj.vm2.ConstantPool;
 import org.luaj.vm2.LocVars;
 import org.luaj.vm2.Lua;
 import org.luaj.vm2.LuaDouble;
@@ -470,6 +471,8 @@ public final class FuncState extends LuaC
 			if(d == i)
 			    r = LuaInteger.valueOf(i);
 		}
+		if(ConstantPool.enabled)
+		    r = ConstantPool.intern(r);
 		return addk(r);
 	}
 
@@ -909,11 +912,23 @@ public final class FuncState extends LuaC
 	@SuppressWarnings("null")
 	static boolean constfolding(int op, expdesc e1, expdesc e2)
 	{
-		LuaValue v1, v2, r;
 		if(!e1.isnumeral() || !e2.isnumeral())
 		    return false;
-		v1 = e1.u.nval();
-		v2 = e2.u.nval();
+		LuaValue r = arith(op, e1.u.nval(), e2.u.nval());
+		if(r == null)
+		    return false;
+		e1.u.setNval(r);
+		return true;
+	}
+
+	/** @return the result of an arithmetic opcode on numbers, or null if it is not folded */
+	static LuaValue arith(int op, LuaValue v1, LuaValue v2)
+	{
+		LuaValue r;
+		if((op == OP_DIV || op == OP_MOD) && v2.raweq(0))
+		    return null; /* do not attempt to divide by 0 */
+		if(op == OP_POW && v1.raweq(0) && v2.todouble() < 0)
+		    return null; /* nor to take the reciprocal of 0 */
 		switch(op)
 		{
 			case OP_ADD:
@@ -940,16 +955,15 @@ public final class FuncState extends LuaC
 			case OP_LEN:
 				// r = v1.len();
 				// break;
-				return false; /* no constant folding for 'len' */
+				return null; /* no constant folding for 'len' */
 			default:
 				_assert(false);
 				r = null;
 				break;
 		}
 		if(Double.isNaN(r.todouble()))
-		    return false; /* do not attempt to produce NaN */
-		e1.u.setNval(r);
-		return true;
+		    return null; /* do not attempt to produce NaN */
+		return r;
 	}
 
 	void codearith(int op, expdesc e1, expdesc e2)
@@ -0,0 +1,84 @@
+package org.luaj.vm2.compiler;
+
+import java.util.HashMap;
+import org.luaj.vm2.DebugTable;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.LexState.expdesc;
+
+/**
+ * Source of a function body whose code the parser dropped when {@link LuaC#lazy} is set.
+ * <p>
+ * The stub {@link Prototype} made by the parser has the upvalues and the lines of the function,
+ * its body is compiled from a copy of its source by {@link Prototype#compile()}.
+ * The span is parsed inside a function whose locals are the upvalues of the stub in the same order,
+ * so the compiled body refers to the same upvalues as the stub,
+ * and it starts at its line in the chunk, so errors and debug information keep their lines.
+ */
+final class LazyBody implements Prototype.Body
+{
+	private final byte[]      _bytes;    // source from the '(' of the parameter list to the END of the body
+	private final int         _line;     // line of the '('
+	private final LuaString[] _upvalues;
+	private final boolean     _needself;
+
+	LazyBody(byte[] bytes, int line, LuaString[] upvalues, boolean needself)
+	{
+		_bytes = bytes;
+		_line = line;
+		_upvalues = upvalues;
+		_needself = needself;
+	}
+
+	@Override
+	public void compile(Prototype f)
+	{
+		LuaC c = new LuaC(new HashMap<LuaString, LuaString>());
+		LexState ls = new LexState(c, null);
+		ls.setinput(c, _bytes, 0, _bytes.length, f.source);
+		ls._lazy = true;
+		ls._linenumber = _line;
+		ls._lastline = _line;
+
+		/* enclosing function with the upvalues as locals */
+		FuncState parent = new FuncState();
+		ls.open_func(parent);
+		parent._f.source = f.source;
+		int n = _upvalues.length;
+		LuaString[] names = new LuaString[n];
+		for(int i = 0; i < n; i++)
+		{
+			LuaString s = _upvalues[i];
+			names[i] = c.newTString(s._bytes, s._offset, s._length);
+			ls.new_localvar(names[i], i);
+		}
+		ls.adjustlocalvars(n);
+		parent.reserveregs(n);
+
+		FuncState fs = new FuncState();
+		ls.open_func(fs);
+		fs._f.linedefined = f.linedefined;
+		expdesc v = new expdesc();
+		for(LuaString s : names)
+			fs.singlevaraux(s, v, 1);
+		ls.next(); /* read the '(' */
+		ls.funcbody(fs, _needself, f.linedefined, false);
+		ls.check(LexState.TK_EOS);
+
+		Prototype g = fs._f;
+		LuaC._assert(g.nups == f.nups);
+		if(DebugTable.detach_all)
+		    DebugTable.detach(g);
+		f.k = g.k;
+		f.code = g.code;
+		f.p = g.p;
+		f.lineinfo = g.lineinfo;
+		f.locvars = g.locvars;
+		f.upvalues = g.upvalues;
+		f.lazydebug = g.lazydebug;
+		f.numparams = g.numparams;
+		f.is_vararg = g.is_vararg;
+		f.maxstacksize = g.maxstacksize;
+		f.lastlinedefined = g.lastlinedefined;
+	}
+}
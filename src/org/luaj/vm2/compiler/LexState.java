@@ -2,11 +2,13 @@ package org.luaj.vm2.compiler;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import org.luaj.vm2.LocVars;
 import org.luaj.vm2.Lua;
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaNumber;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
@@ -123,11 +125,15 @@ public class LexState
 	final Token                              _lookahead     = new Token(); /* look ahead token */
 	FuncState                                _fs;                         /* `FuncState' is private to the parser */
 	LuaC                                     _L;
-	InputStream                              _z;                          /* input stream */
+	InputStream                              _z;                          /* input stream, or null if all input is in _zbuf */
+	byte[]                                   _zbuf;                       /* window of input read ahead */
+	int                                      _zpos;                       /* index of the next character in _zbuf */
+	int                                      _zlen;                       /* end of the input in _zbuf */
 	byte[]                                   _buff;                       /* buffer for tokens */
 	int                                      _nbuff;                      /* length of buffer */
 	LuaString                                _source;                     /* current source name */
 	byte                                     _decpoint;                   /* locale decimal point */
+	boolean                                  _lazy;                       /* defer nested function bodies, all input must be in _zbuf */
 
 	/* ORDER RESERVED */
 	static final String                      luaX_tokens[]  = {
@@ -152,17 +158,45 @@ public class LexState
 	static final int                         FIRST_RESERVED = TK_AND;
 	static final int                         NUM_RESERVED   = TK_WHILE + 1 - FIRST_RESERVED;
 
-	static final HashMap<LuaString, Integer> RESERVED       = new HashMap<LuaString, Integer>();
+	/* reserved words by their perfect hash, see reserved() */
+	private static final byte[][]            RESERVED_WORD  = new byte[64][];
+	private static final int[]               RESERVED_TOKEN = new int[64];
+
+	private static final int                 ZBUFSIZE       = 8192;
 
 	static
 	{
 		for(int i = 0; i < NUM_RESERVED; i++)
 		{
-			LuaString ts = LuaValue.valueOf(luaX_tokens[i]);
-			RESERVED.put(ts, new Integer(FIRST_RESERVED + i));
+			byte[] w = luaX_tokens[i].getBytes();
+			int h = reservedHash(w, w.length);
+			LuaC._assert(RESERVED_WORD[h] == null);
+			RESERVED_WORD[h] = w;
+			RESERVED_TOKEN[h] = FIRST_RESERVED + i;
 		}
 	}
 
+	/* unique for each reserved word, found by trying small multipliers */
+	private static int reservedHash(byte[] b, int n)
+	{
+		return (b[0] * 3 + b[n - 1] * 13 + n) & 63;
+	}
+
+	/** @return the token of the reserved word in the buffer, or 0 if it holds a name */
+	private static int reserved(byte[] b, int n)
+	{
+		if(n < 2 || n > 8)
+		    return 0;
+		int h = reservedHash(b, n);
+		byte[] w = RESERVED_WORD[h];
+		if(w == null || w.length != n)
+		    return 0;
+		for(int i = 0; i < n; i++)
+			if(b[i] != w[i])
+			    return 0;
+		return RESERVED_TOKEN[h];
+	}
+
 	private static boolean isalnum(int c)
 	{
 		return c >= '0' && c <= '9'
@@ -196,14 +230,36 @@ public class LexState
 
 	void nextChar()
 	{
+		if(_zpos < _zlen)
+			_current = _zbuf[_zpos++] & 0xff;
+		else
+			_current = fill();
+	}
+
+	/** Read the next window of input in bulk, instead of calling the stream for each character */
+	private int fill()
+	{
+		if(_z == null)
+		    return EOZ;
 		try
 		{
-			_current = _z.read();
+			if(_zbuf == null)
+			    _zbuf = new byte[ZBUFSIZE];
+			int n = _z.read(_zbuf, 0, _zbuf.length);
+			if(n <= 0)
+			{
+				_z = null;
+				return EOZ;
+			}
+			_zpos = 1;
+			_zlen = n;
+			return _zbuf[0] & 0xff;
 		}
 		catch(IOException e)
 		{
 			e.printStackTrace();
-			_current = EOZ;
+			_z = null;
+			return EOZ;
 		}
 	}
 
@@ -326,6 +382,16 @@ public class LexState
 		skipShebang();
 	}
 
+	void setinput(LuaC L, byte[] bytes, int offset, int length, LuaString source)
+	{
+		_zbuf = bytes;
+		_zpos = offset;
+		_zlen = offset + length;
+		setinput(L, EOZ, null, source);
+		nextChar(); /* read first char */
+		skipShebang();
+	}
+
 	private void skipShebang()
 	{
 		if(_current == '#')
@@ -358,14 +424,37 @@ public class LexState
 
 	static boolean str2d(String str, SemInfo seminfo)
 	{
-		double d;
 		str = str.trim(); // TODO: get rid of this
 		if(str.startsWith("0x"))
 		{
-			d = Long.parseLong(str.substring(2), 16);
+			seminfo.r = LuaValue.valueOf(Long.parseLong(str.substring(2), 16));
+			return true;
+		}
+		if(LuaNumber.isIntegerOnly())
+		{
+			try
+			{
+				seminfo.r = LuaValue.valueOf(Long.parseLong(str));
+				return true;
+			}
+			catch(NumberFormatException e)
+			{
+				return false;
+			}
+		}
+		double d = Double.parseDouble(str);
+		if(d >= 0x1p53 && d <= 0x1p63)
+		{
+			try
+			{
+				seminfo.r = LuaValue.valueOf(Long.parseLong(str)); // keep integers beyond double precision exact
+				return true;
+			}
+			catch(NumberFormatException e)
+			{
+				// not a plain integer, use the double value
+			}
 		}
-		else
-			d = Double.parseDouble(str);
 		seminfo.r = LuaValue.valueOf(d);
 		return true;
 	}
@@ -416,7 +505,8 @@ public class LexState
 		String str = new String(_buff, 0, _nbuff);
 //		if (!str2d(str, seminfo)) /* format error? */
 //			trydecpoint(str, seminfo); /* try to update decimal point separator */
-		str2d(str, seminfo);
+		if(!str2d(str, seminfo)) /* not an integer in integer-only mode */
+		    lexerror("malformed number", TK_NUMBER);
 	}
 
 	int skip_sep()
@@ -691,9 +781,10 @@ public class LexState
 							save_and_next();
 						}
 						while(isalnum(_current) || _current == '_');
+						int r = reserved(_buff, _nbuff);
+						if(r != 0)
+						    return r;
 						ts = newstring(_buff, 0, _nbuff);
-						if(RESERVED.containsKey(ts))
-						    return RESERVED.get(ts).intValue();
 						seminfo.ts = ts;
 						return TK_NAME;
 					}
@@ -1015,6 +1106,8 @@ public class LexState
 		f.locvars = LuaC.realloc(f.locvars, fs.nlocvars);
 		// f.sizelocvars = fs.nlocvars;
 		f.upvalues = LuaC.realloc(f.upvalues, f.nups);
+		if(LuaC.optimize && f.lazy == null)
+		    Optimizer.optimize(f);
 		// LuaC._assert (CheckCode.checkcode(f));
 		LuaC._assert(fs._bl == null);
 		_fs = fs.prev;
@@ -1212,6 +1305,16 @@ public class LexState
 		FuncState new_fs = new FuncState();
 		open_func(new_fs);
 		new_fs._f.linedefined = line;
+		funcbody(new_fs, needself, line, _lazy);
+		pushclosure(new_fs, e);
+	}
+
+	/** Parse a body opened by open_func, deferring its code to {@link LazyBody} if allowed */
+	void funcbody(FuncState new_fs, boolean needself, int line, boolean lazy)
+	{
+		int start = -1, startline = _linenumber;
+		if(lazy && _t.token == '(' && _lookahead.token == TK_EOS && _current != EOZ && _zbuf[_zpos - 2] == '(')
+		    start = _zpos - 2;
 		checknext('(');
 		if(needself)
 		{
@@ -1220,11 +1323,30 @@ public class LexState
 		}
 		parlist();
 		checknext(')');
+		Prototype f = new_fs._f;
+		boolean nested = _lazy;
+		if(start >= 0)
+		    _lazy = false; /* functions nested in a deferred body are deferred when it is compiled */
 		chunk();
-		new_fs._f.lastlinedefined = _linenumber;
+		_lazy = nested;
+		f.lastlinedefined = _linenumber;
+		if(start >= 0 && _t.token == TK_END && _lookahead.token == TK_EOS)
+		{
+			/* the body is checked and its upvalues are known, keep its source up to the END */
+			int end = (_current == EOZ ? _zlen : _zpos - 1);
+			f.lazy = new LazyBody(Arrays.copyOfRange(_zbuf, start, end), startline, LuaC.realloc(f.upvalues, f.nups), needself);
+		}
 		check_match(TK_END, TK_FUNCTION, line);
 		close_func();
-		pushclosure(new_fs, e);
+		if(f.lazy != null)
+		{
+			/* drop the code until the first closure compiles the body again */
+			f.k = LuaC.realloc(f.k, 0);
+			f.code = LuaC.realloc(f.code, 0);
+			f.p = LuaC.realloc(f.p, 0);
+			f.lineinfo = LuaC.realloc(f.lineinfo, 0);
+			f.locvars = LuaC.realloc(f.locvars, 0);
+		}
 	}
 
 	int explist1(expdesc v)
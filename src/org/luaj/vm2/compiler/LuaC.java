@@ -1,14 +1,18 @@
 package org.luaj.vm2.compiler;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
+import org.luaj.vm2.ConstantPool;
+import org.luaj.vm2.DebugTable;
 import org.luaj.vm2.LoadState;
 import org.luaj.vm2.LocVars;
 import org.luaj.vm2.Lua;
 import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaNumber;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Prototype;
@@ -34,6 +38,10 @@ import org.luaj.vm2.lib.LibBase;
  * LuaValue _G = JsePlatform.standardGlobals();
  * LoadState.load( new ByteArrayInputStream("print 'hello'".getBytes()), "main.lua", _G ).call();
  * } </pre>
+ * <p>
+ * Each compilation has its own lexer, function states and string table,
+ * and the static tables of the compiler are never changed,
+ * so several Java threads may compile at the same time.
  * @see LuaCompiler
  * @see JsePlatform
  * @see LibBase
@@ -46,6 +54,33 @@ public class LuaC extends Lua
 	static final int LUAI_MAXUPVALUES = 60;
 	static final int LUAI_MAXVARS     = 200;
 
+	/** Keep the code of nested functions only once their first closure is created,
+	 * so chunks defining many functions which are seldom called take less memory.
+	 * The parser still parses each body in full, so syntax errors and upvalues are those of an eager compile,
+	 * but it keeps only a copy of the source of the body to compile it again on first use.
+	 * Dumping a chunk compiles all its functions.
+	 * Defaults to the system property {@code luaj.compiler.lazy}.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean lazy = Boolean.getBoolean("luaj.compiler.lazy");
+
+	/** Run the {@link Optimizer} over the code of each compiled function,
+	 * which removes dead code and redundant moves, threads jumps and folds known values.
+	 * The code stays standard 5.1 bytecode, with line info and local ranges adjusted to it.
+	 * Defaults to the system property {@code luaj.compiler.optimize}.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static boolean optimize = Boolean.getBoolean("luaj.compiler.optimize");
+
+	/**
+	 * Get the switches which change what is compiled from a source, for the caches of compiled chunks
+	 * @return bit 0 set if {@link #optimize} is set, bit 1 set if the current state is integer-only
+	 */
+	static int mode()
+	{
+		return (optimize ? 1 : 0) | (LuaNumber.isIntegerOnly() ? 2 : 0);
+	}
+
 	protected static void _assert(boolean b)
 	{
 		if(!b)
@@ -154,7 +189,7 @@ public class LuaC extends Lua
 	{
 	}
 
-	private LuaC(HashMap<LuaString, LuaString> strings)
+	LuaC(HashMap<LuaString, LuaString> strings)
 	{
 		_strings = strings;
 	}
@@ -176,18 +211,41 @@ public class LuaC extends Lua
 	public static Prototype compile(InputStream stream, String name) throws IOException
 	{
 		int firstByte = stream.read();
-		return firstByte == '\033' ?
-		        LoadState.loadBinaryChunk(firstByte, stream, name) :
-		        new LuaC(new HashMap<LuaString, LuaString>()).luaY_parser(firstByte, stream, name);
+		if(firstByte == '\033')
+		    return LoadState.loadBinaryChunk(firstByte, stream, name);
+		if(lazy && firstByte >= 0)
+		{
+			/* deferred bodies are compiled from the bytes of the chunk */
+			byte[] b = new byte[4096];
+			int n = 1;
+			b[0] = (byte)firstByte;
+			for(int r; (r = stream.read(b, n, b.length - n)) > 0;)
+				if((n += r) == b.length)
+				    b = realloc(b, n * 2);
+			return compile(b, 0, n, name);
+		}
+		LuaC c = new LuaC(new HashMap<LuaString, LuaString>());
+		LexState lexstate = new LexState(c, stream);
+		lexstate.setinput(c, firstByte, stream, LuaValue.valueOf(name));
+		return c.luaY_parser(lexstate, name);
+	}
+
+	/** Compile a prototype or load as a binary chunk held in a byte array, which the lexer reads directly */
+	public static Prototype compile(byte[] bytes, int offset, int length, String name) throws IOException
+	{
+		if(length > 0 && bytes[offset] == '\033')
+		    return LoadState.loadBinaryChunk('\033', new ByteArrayInputStream(bytes, offset + 1, length - 1), name);
+		LuaC c = new LuaC(new HashMap<LuaString, LuaString>());
+		LexState lexstate = new LexState(c, null);
+		lexstate.setinput(c, bytes, offset, length, LuaValue.valueOf(name));
+		lexstate._lazy = lazy;
+		return c.luaY_parser(lexstate, name);
 	}
 
 	/** Parse the input */
-	private Prototype luaY_parser(int firstByte, InputStream z, String name)
+	private Prototype luaY_parser(LexState lexstate, String name)
 	{
-		LexState lexstate = new LexState(this, z);
 		FuncState funcstate = new FuncState();
-		// lexstate.buff = buff;
-		lexstate.setinput(this, firstByte, z, LuaValue.valueOf(name));
 		lexstate.open_func(funcstate);
 		/* main func. is always vararg */
 		funcstate._f.is_vararg = Lua.VARARG_ISVARARG;
@@ -199,6 +257,8 @@ public class LuaC extends Lua
 		LuaC._assert(funcstate.prev == null);
 		LuaC._assert(funcstate._f.nups == 0);
 		LuaC._assert(lexstate._fs == null);
+		if(DebugTable.detach_all)
+		    DebugTable.detach(funcstate._f);
 		return funcstate._f;
 	}
 
@@ -213,6 +273,8 @@ public class LuaC extends Lua
 			byte[] copy = new byte[len];
 			System.arraycopy(bytes, offset, copy, 0, len);
 			v = LuaString.valueOf(copy);
+			if(ConstantPool.enabled)
+			    v = ConstantPool.intern(v);
 			_strings.put(v, v);
 		}
 		return v;
@@ -0,0 +1,999 @@
+package org.luaj.vm2.compiler;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import org.luaj.vm2.ConstantPool;
+import org.luaj.vm2.LocVars;
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaDouble;
+import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+
+/**
+ * Optimizing pass over the code of a function made by {@link FuncState}, run when the function is closed
+ * if {@link LuaC#optimize} is set.
+ * <p>
+ * These steps are repeated until the code does not change any more:
+ * <ul>
+ * <li>dead code: instructions no path from the start of the function reaches are removed,
+ * and so are jumps to the next instruction</li>
+ * <li>jump threading: jumps to jumps go to the final target, and jumps to a {@code RETURN} are replaced by a copy of it</li>
+ * <li>constant folding: the constants, booleans and nils loaded into registers are followed along all paths,
+ * so arithmetic, {@code NOT} and tests of known values become loads or unconditional jumps,
+ * and loads of the value a register already holds, like {@code LOADNIL} of registers never written, are removed</li>
+ * <li>move coalescing: an instruction whose result is only moved out of a temporary register writes the destination directly,
+ * a {@code NOT} into a temporary which is only tested becomes part of the {@code TEST},
+ * and loads into a temporary which the next instruction overwrites are removed</li>
+ * </ul>
+ * Jumps, line info and the ranges of locals are adjusted to the removed instructions.
+ * The result is standard 5.1 bytecode, it is checked for valid registers, constants and jumps,
+ * and the function keeps its code as compiled if the check fails.
+ * <p>
+ * Registers captured by nested functions are left alone, and so are registers of locals, except by steps which do not change
+ * the values they hold. Values changed by {@code debug.setlocal} are not seen by this pass,
+ * and line hooks are not called any more for lines whose code was removed.
+ */
+final class Optimizer extends Lua
+{
+	private final Prototype            _f;
+	private final int                  _max;      // registers of the function
+	private final boolean[]            _captured; // register is an upvalue of a nested function
+	private final int[]                _succ = new int[2];
+	private int[]                      _code;
+	private int[]                      _lines;
+	private LocVars[]                  _locvars;
+	private LuaValue[]                 _k;
+	private HashMap<LuaValue, Integer> _kindex;   // index of each constant, made when the first one is added
+	private int                        _n;        // number of instructions
+	private boolean[]                  _data;     // word is an argument of the instruction before it
+	private boolean[]                  _target;   // instruction is the target of a jump or skip
+	private boolean[]                  _leader;   // instruction starts a basic block
+	private int[]                      _nact;     // number of active locals at each pc
+	private boolean[]                  _delete;   // instruction is removed by the next compact()
+	private boolean                    _changed;
+
+	private Optimizer(Prototype f)
+	{
+		_f = f;
+		_max = f.maxstacksize;
+		_captured = new boolean[_max];
+		_code = f.code.clone();
+		_lines = f.lineinfo;
+		_locvars = f.locvars;
+		_k = f.k;
+		_n = _code.length;
+	}
+
+	/** Optimize the code of a compiled function, leaving it as it is if the result does not pass the check */
+	static void optimize(Prototype f)
+	{
+		if(f.code == null || f.code.length == 0)
+		    return;
+		Optimizer o = new Optimizer(f);
+		o.run();
+		o.prune(f.k.length);
+		if(!o.check())
+		    return;
+		f.code = o._code;
+		f.lineinfo = o._lines;
+		f.locvars = o._locvars;
+		f.k = o._k;
+	}
+
+	private void run()
+	{
+		do
+		{
+			_changed = false;
+			scan();
+			sweep();
+			compact();
+			scan();
+			thread();
+			compact();
+			scan();
+			fold();
+			compact();
+			scan();
+			coalesce();
+			compact();
+		}
+		while(_changed);
+	}
+
+	/** @return the index of the instruction after the one at pc and its argument words */
+	private int next(int pc)
+	{
+		int i = _code[pc];
+		switch(GET_OPCODE(i))
+		{
+			case OP_CLOSURE:
+				return pc + 1 + _f.p[GETARG_Bx(i)].nups;
+			case OP_SETLIST:
+				return pc + (GETARG_C(i) == 0 ? 2 : 1);
+			default:
+				return pc + 1;
+		}
+	}
+
+	/** @return the number of instructions which may run after the one at pc, stored in s */
+	private int successors(int pc, int[] s)
+	{
+		int i = _code[pc];
+		switch(GET_OPCODE(i))
+		{
+			case OP_JMP:
+			case OP_FORPREP:
+				s[0] = pc + 1 + GETARG_sBx(i);
+				return 1;
+			case OP_FORLOOP:
+				s[0] = pc + 1 + GETARG_sBx(i);
+				s[1] = pc + 1;
+				return 2;
+			case OP_LOADBOOL:
+				s[0] = pc + (GETARG_C(i) != 0 ? 2 : 1);
+				return 1;
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+			case OP_TEST:
+			case OP_TESTSET:
+			case OP_TFORLOOP:
+				s[0] = pc + 1;
+				s[1] = pc + 2;
+				return 2;
+			case OP_RETURN:
+				return 0;
+			default:
+				s[0] = next(pc);
+				return 1;
+		}
+	}
+
+	/** @return true if the instruction at pc is the jump which a test skips or not */
+	private boolean aftertest(int pc)
+	{
+		return pc > 0 && !_data[pc - 1] && testTMode(GET_OPCODE(_code[pc - 1]));
+	}
+
+	/** @return true if a register does not hold a local around pc */
+	private boolean temporary(int r, int pc)
+	{
+		return r >= _nact[pc] && r >= _nact[pc + 1] && r >= _nact[pc + 2];
+	}
+
+	/** Find the argument words, jump targets, basic blocks, active locals and captured registers of the code */
+	private void scan()
+	{
+		int n = _n;
+		_data = new boolean[n];
+		_target = new boolean[n + 1];
+		_leader = new boolean[n + 1];
+		_delete = new boolean[n];
+		_leader[0] = true;
+		for(int pc = 0; pc < n; pc = next(pc))
+		{
+			int i = _code[pc];
+			switch(GET_OPCODE(i))
+			{
+				case OP_CLOSURE:
+					for(int j = pc + 1; j < next(pc); j++)
+					{
+						_data[j] = true;
+						if(GET_OPCODE(_code[j]) == OP_MOVE)
+						    _captured[GETARG_B(_code[j])] = true;
+					}
+					break;
+				case OP_SETLIST:
+					if(GETARG_C(i) == 0)
+					    _data[pc + 1] = true;
+					break;
+				case OP_JMP:
+				case OP_FORLOOP:
+				case OP_FORPREP:
+					_target[pc + 1 + GETARG_sBx(i)] = true;
+					break;
+				case OP_LOADBOOL:
+					if(GETARG_C(i) != 0)
+					    _target[pc + 2] = true;
+					break;
+				case OP_EQ:
+				case OP_LT:
+				case OP_LE:
+				case OP_TEST:
+				case OP_TESTSET:
+				case OP_TFORLOOP:
+					_target[pc + 2] = true;
+					break;
+			}
+			int c = successors(pc, _succ);
+			for(int j = 0; j < c; j++)
+				if(c != 1 || _succ[j] != next(pc))
+				    _leader[_succ[j]] = true;
+		}
+		_nact = new int[n + 3];
+		if(_locvars != null)
+		{
+			for(LocVars v : _locvars)
+			{
+				if(v._startpc < v._endpc)
+				{
+					_nact[v._startpc]++;
+					_nact[v._endpc]--;
+				}
+			}
+		}
+		for(int pc = 1; pc < _nact.length; pc++)
+			_nact[pc] += _nact[pc - 1];
+	}
+
+	/** Remove the instructions marked in {@link #_delete}, moving jumps, lines and the ranges of locals */
+	private void compact()
+	{
+		int[] map = new int[_n + 1];
+		int m = 0;
+		for(int pc = 0; pc < _n; pc++)
+		{
+			map[pc] = m;
+			if(!_delete[pc])
+			    m++;
+		}
+		map[_n] = m;
+		if(m == _n)
+		    return;
+		int[] code = new int[m];
+		int[] lines = (_lines != null ? new int[m] : null);
+		for(int pc = 0; pc < _n; pc++)
+		{
+			if(_delete[pc])
+			    continue;
+			code[map[pc]] = _code[pc];
+			if(lines != null)
+			    lines[map[pc]] = _lines[pc];
+			if(!_data[pc])
+			{
+				switch(GET_OPCODE(_code[pc]))
+				{
+					case OP_JMP:
+					case OP_FORLOOP:
+					case OP_FORPREP:
+						LuaC.SETARG_sBx(new InstructionPtr(code, map[pc]), map[pc + 1 + GETARG_sBx(_code[pc])] - map[pc] - 1);
+						break;
+					case OP_LOADBOOL:
+						if(GETARG_C(_code[pc]) != 0 && _delete[pc + 1])
+						    LuaC.SETARG_C(new InstructionPtr(code, map[pc]), 0); /* nothing left to skip */
+						break;
+				}
+			}
+		}
+		if(_locvars != null)
+		{
+			LocVars[] locvars = new LocVars[_locvars.length];
+			for(int j = 0; j < locvars.length; j++)
+			{
+				LocVars v = _locvars[j];
+				locvars[j] = new LocVars(v._varname, map[v._startpc], map[v._endpc]);
+			}
+			_locvars = locvars;
+		}
+		_code = code;
+		_lines = lines;
+		_n = m;
+		_changed = true;
+	}
+
+	/* ---- dead code ---- */
+
+	/** Mark the instructions no path from the start reaches, keeping the final return */
+	private void sweep()
+	{
+		boolean[] reached = new boolean[_n];
+		int[] stack = new int[_n];
+		int sp = 0;
+		reached[0] = true;
+		stack[sp++] = 0;
+		while(sp > 0)
+		{
+			int pc = stack[--sp];
+			for(int j = pc + 1; j < next(pc); j++)
+				reached[j] = true;
+			for(int j = 0, c = successors(pc, _succ); j < c; j++)
+			{
+				if(!reached[_succ[j]])
+				{
+					reached[_succ[j]] = true;
+					stack[sp++] = _succ[j];
+				}
+			}
+		}
+		for(int pc = 0; pc < _n - 1; pc++)
+			if(!reached[pc])
+			    _delete[pc] = true;
+	}
+
+	/* ---- jump threading ---- */
+
+	private void thread()
+	{
+		for(int pc = 0; pc < _n; pc = next(pc))
+		{
+			int i = _code[pc];
+			if(GET_OPCODE(i) != OP_JMP)
+			    continue;
+			int t = pc + 1 + GETARG_sBx(i);
+			for(int hops = 0; hops < _n && t != pc && GET_OPCODE(_code[t]) == OP_JMP; hops++)
+				t += 1 + GETARG_sBx(_code[t]);
+			if(t - pc - 1 != GETARG_sBx(i))
+			{
+				if(Math.abs(t - pc - 1) > MAXARG_sBx)
+				    continue;
+				LuaC.SETARG_sBx(new InstructionPtr(_code, pc), t - pc - 1);
+				_changed = true;
+			}
+			if(aftertest(pc))
+			    continue; /* a test must be followed by a jump */
+			if(t == pc + 1)
+			    _delete[pc] = true;
+			else if(GET_OPCODE(_code[t]) == OP_RETURN && GETARG_B(_code[t]) != 0)
+			{
+				_code[pc] = _code[t]; /* does not depend on the top set by the instruction before it */
+				_changed = true;
+			}
+		}
+	}
+
+	/* ---- constant folding ---- */
+
+	private void fold()
+	{
+		LuaValue[][] in = values();
+		LuaValue[] s = new LuaValue[_max];
+		for(int b = 0; b < _n; b++)
+		{
+			if(!_leader[b] || in[b] == null)
+			    continue;
+			System.arraycopy(in[b], 0, s, 0, _max);
+			for(int pc = b;;)
+			{
+				int c = successors(pc, _succ), t = _succ[0], nx = next(pc);
+				fold(pc, s);
+				step(pc, s);
+				if(c != 1 || t != nx || _leader[nx])
+				    break;
+				pc = nx;
+			}
+		}
+	}
+
+	/** @return the values known at the start of each basic block, or null for blocks not reached */
+	private LuaValue[][] values()
+	{
+		LuaValue[][] in = new LuaValue[_n][];
+		LuaValue[] s = new LuaValue[_max];
+		for(int r = _f.numparams + (_f.is_vararg >= VARARG_NEEDSARG ? 1 : 0); r < _max; r++)
+			set(s, r, LuaValue.NIL); /* registers start as nil */
+		in[0] = s.clone();
+		int[] work = new int[_n];
+		boolean[] queued = new boolean[_n];
+		int sp = 0;
+		work[sp++] = 0;
+		queued[0] = true;
+		while(sp > 0)
+		{
+			int b = work[--sp];
+			queued[b] = false;
+			System.arraycopy(in[b], 0, s, 0, _max);
+			for(int pc = b;;)
+			{
+				step(pc, s);
+				int c = successors(pc, _succ), nx = next(pc);
+				if(c == 1 && _succ[0] == nx && !_leader[nx])
+				{
+					pc = nx;
+					continue;
+				}
+				for(int j = 0; j < c; j++)
+				{
+					int t = _succ[j];
+					if(merge(in, t, s) && !queued[t])
+					{
+						queued[t] = true;
+						work[sp++] = t;
+					}
+				}
+				break;
+			}
+		}
+		return in;
+	}
+
+	/** @return true if the values known at t changed by adding the path with values s */
+	private boolean merge(LuaValue[][] in, int t, LuaValue[] s)
+	{
+		LuaValue[] d = in[t];
+		if(d == null)
+		{
+			in[t] = s.clone();
+			return true;
+		}
+		boolean changed = false;
+		for(int r = 0; r < _max; r++)
+		{
+			if(d[r] != null && !same(d[r], s[r]))
+			{
+				d[r] = null;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static boolean same(LuaValue a, LuaValue b)
+	{
+		if(a == b)
+		    return true;
+		if(a == null || b == null || a.getClass() != b.getClass() || !a.raweq(b))
+		    return false;
+		return !(a instanceof LuaDouble) || Double.doubleToLongBits(a.todouble()) == Double.doubleToLongBits(b.todouble());
+	}
+
+	private static boolean number(LuaValue v)
+	{
+		return v != null && v.type() == LuaValue.TNUMBER;
+	}
+
+	private void set(LuaValue[] s, int r, LuaValue v)
+	{
+		s[r] = (_captured[r] ? null : v);
+	}
+
+	/** Update the values known in the registers by the instruction at pc */
+	private void step(int pc, LuaValue[] s)
+	{
+		int i = _code[pc];
+		int a = GETARG_A(i);
+		switch(GET_OPCODE(i))
+		{
+			case OP_MOVE:
+				set(s, a, s[GETARG_B(i)]);
+				break;
+			case OP_LOADK:
+				set(s, a, _k[GETARG_Bx(i)]);
+				break;
+			case OP_LOADBOOL:
+				set(s, a, LuaValue.valueOf(GETARG_B(i) != 0));
+				break;
+			case OP_LOADNIL:
+				for(int r = a; r <= GETARG_B(i); r++)
+					set(s, r, LuaValue.NIL);
+				break;
+			default:
+				for(int r = firstWritten(i), e = Math.min(lastWritten(i), _max - 1); r <= e; r++)
+					s[r] = null;
+				break;
+		}
+	}
+
+	/** @return the lowest register an instruction may write */
+	private static int firstWritten(int i)
+	{
+		return GET_OPCODE(i) == OP_TFORLOOP ? GETARG_A(i) + 2 : GETARG_A(i);
+	}
+
+	/** @return the highest register an instruction may write, below {@link #firstWritten(int)} if none */
+	private int lastWritten(int i)
+	{
+		int a = GETARG_A(i);
+		switch(GET_OPCODE(i))
+		{
+			case OP_SETGLOBAL:
+			case OP_SETUPVAL:
+			case OP_SETTABLE:
+			case OP_JMP:
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+			case OP_TEST:
+			case OP_RETURN:
+			case OP_SETLIST:
+			case OP_CLOSE:
+				return a - 1;
+			case OP_LOADNIL:
+				return GETARG_B(i);
+			case OP_SELF:
+				return a + 1;
+			case OP_CALL:
+			case OP_TAILCALL:
+				return _max - 1;
+			case OP_VARARG:
+				return GETARG_B(i) == 0 ? _max - 1 : a + GETARG_B(i) - 2;
+			case OP_FORLOOP:
+				return a + 3;
+			case OP_TFORLOOP:
+				return a + 2 + GETARG_C(i);
+			default:
+				return a;
+		}
+	}
+
+	private LuaValue rk(int x, LuaValue[] s)
+	{
+		return ISK(x) ? _k[INDEXK(x)] : s[x];
+	}
+
+	/** Rewrite the instruction at pc if it works on known values */
+	private void fold(int pc, LuaValue[] s)
+	{
+		int i = _code[pc];
+		int op = GET_OPCODE(i);
+		int a = GETARG_A(i);
+		LuaValue v, w;
+		switch(op)
+		{
+			case OP_MOVE:
+				if(s[a] != null && same(s[a], s[GETARG_B(i)]))
+				    _delete[pc] = true;
+				break;
+			case OP_LOADK:
+				if(same(s[a], _k[GETARG_Bx(i)]))
+				    _delete[pc] = true;
+				break;
+			case OP_LOADBOOL:
+				if(GETARG_C(i) == 0 && same(s[a], LuaValue.valueOf(GETARG_B(i) != 0)))
+				    _delete[pc] = true;
+				break;
+			case OP_LOADNIL:
+			{
+				int b = GETARG_B(i);
+				while(a <= b && s[a] == LuaValue.NIL)
+					a++;
+				while(a <= b && s[b] == LuaValue.NIL)
+					b--;
+				if(a > b)
+				    _delete[pc] = true;
+				else if(a != GETARG_A(i) || b != GETARG_B(i))
+				{
+					_code[pc] = LuaC.CREATE_ABC(OP_LOADNIL, a, b, 0);
+					_changed = true;
+				}
+				break;
+			}
+			case OP_ADD:
+			case OP_SUB:
+			case OP_MUL:
+			case OP_DIV:
+			case OP_MOD:
+			case OP_POW:
+				v = rk(GETARG_B(i), s);
+				w = rk(GETARG_C(i), s);
+				if(number(v) && number(w))
+				    loadk(pc, a, FuncState.arith(op, v, w));
+				break;
+			case OP_UNM:
+				v = rk(GETARG_B(i), s);
+				if(number(v))
+				    loadk(pc, a, FuncState.arith(op, v, v));
+				break;
+			case OP_NOT:
+				v = s[GETARG_B(i)];
+				if(v != null)
+				{
+					_code[pc] = LuaC.CREATE_ABC(OP_LOADBOOL, a, v.toboolean() ? 0 : 1, 0);
+					_changed = true;
+				}
+				break;
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+				v = rk(GETARG_B(i), s);
+				w = rk(GETARG_C(i), s);
+				if(v == null || w == null || op != OP_EQ && !(number(v) && number(w)))
+				    break; /* only numbers are ordered without metamethods */
+				branch(pc, (op == OP_EQ ? v.eq_b(w) : op == OP_LT ? v.lt_b(w) : v.lteq_b(w)) == (a != 0));
+				break;
+			case OP_TEST:
+				v = s[a];
+				if(v != null)
+				    branch(pc, v.toboolean() == (GETARG_C(i) != 0));
+				break;
+			case OP_TESTSET:
+				v = s[GETARG_B(i)];
+				if(v == null)
+				    break;
+				if(v.toboolean() == (GETARG_C(i) != 0) && a != GETARG_B(i))
+				{
+					_code[pc] = LuaC.CREATE_ABC(OP_MOVE, a, GETARG_B(i), 0); /* the jump after it is always taken */
+					_changed = true;
+				}
+				else
+					branch(pc, v.toboolean() == (GETARG_C(i) != 0));
+				break;
+		}
+	}
+
+	/** Remove a test with a known outcome, and the jump after it if that is never taken */
+	private void branch(int pc, boolean taken)
+	{
+		if(taken)
+		    _delete[pc] = true;
+		else if(!_target[pc + 1])
+		{
+			_delete[pc] = true;
+			_delete[pc + 1] = true;
+		}
+	}
+
+	/** Replace the instruction at pc by a load of a folded value into register a */
+	private void loadk(int pc, int a, LuaValue v)
+	{
+		if(v == null)
+		    return;
+		int k = constant(v);
+		if(k < 0)
+		    return;
+		_code[pc] = LuaC.CREATE_ABx(OP_LOADK, a, k);
+		_changed = true;
+	}
+
+	/** @return the index of a number constant, adding it if needed, or -1 if there are too many constants */
+	private int constant(LuaValue v)
+	{
+		if(v instanceof LuaDouble)
+		{
+			double d = v.todouble();
+			int i = (int)d;
+			if(d == i)
+			    v = LuaInteger.valueOf(i);
+		}
+		if(_kindex == null)
+		{
+			_kindex = new HashMap<LuaValue, Integer>();
+			for(int j = _k.length; --j >= 0;)
+				_kindex.put(_k[j], j);
+		}
+		Integer idx = _kindex.get(v);
+		if(idx != null)
+		    return idx;
+		int k = _k.length;
+		if(k > MAXARG_Bx)
+		    return -1;
+		if(ConstantPool.enabled)
+		    v = ConstantPool.intern(v);
+		_k = LuaC.realloc(_k, k + 1);
+		_k[k] = v;
+		_kindex.put(v, k);
+		return k;
+	}
+
+	/** Remove the constants added by folding which are not loaded any more, those before index k are kept */
+	private void prune(int k)
+	{
+		if(_k.length == k)
+		    return;
+		int[] map = new int[_k.length];
+		for(int pc = 0; pc < _n; pc = next(pc))
+			if(GET_OPCODE(_code[pc]) == OP_LOADK && GETARG_Bx(_code[pc]) >= k)
+			    map[GETARG_Bx(_code[pc])] = 1;
+		int m = k;
+		for(int j = k; j < map.length; j++)
+			if(map[j] != 0)
+			    _k[map[j] = m++] = _k[j];
+		_k = LuaC.realloc(_k, m);
+		for(int pc = 0; pc < _n; pc = next(pc))
+			if(GET_OPCODE(_code[pc]) == OP_LOADK && GETARG_Bx(_code[pc]) >= k)
+			    LuaC.SETARG_Bx(new InstructionPtr(_code, pc), map[GETARG_Bx(_code[pc])]);
+	}
+
+	/* ---- move coalescing ---- */
+
+	private void coalesce()
+	{
+		BitSet[] after = live();
+		for(int pc = 0; pc < _n; pc = next(pc))
+		{
+			int i = _code[pc];
+			int op = GET_OPCODE(i);
+			int a = GETARG_A(i);
+			if(op == OP_MOVE && a == GETARG_B(i))
+			{
+				_delete[pc] = true;
+				continue;
+			}
+			int nx = pc + 1;
+			if(nx >= _n || _leader[nx] || _captured[a])
+			    continue;
+			int j = _code[nx];
+			if(pure(i) && a >= _nact[nx] && !after[pc].get(a) && (single(j) || GET_OPCODE(j) == OP_LOADBOOL) && GETARG_A(j) == a)
+			{
+				_delete[pc] = true; /* overwritten before it is read */
+				continue;
+			}
+			if(!temporary(a, pc) || after[nx] == null || after[nx].get(a))
+			    continue;
+			if(GET_OPCODE(j) == OP_MOVE && GETARG_B(j) == a && !_captured[GETARG_A(j)] && single(i))
+			{
+				LuaC.SETARG_A(new InstructionPtr(_code, pc), GETARG_A(j));
+				_delete[nx] = true;
+				pc = nx;
+			}
+			else if(op == OP_NOT && GET_OPCODE(j) == OP_TEST && GETARG_A(j) == a)
+			{
+				_code[nx] = LuaC.CREATE_ABC(OP_TEST, GETARG_B(i), 0, GETARG_C(j) ^ 1);
+				_delete[pc] = true;
+				pc = nx;
+			}
+		}
+	}
+
+	/** @return true if an instruction only writes register A, and may write another register instead */
+	private static boolean single(int i)
+	{
+		switch(GET_OPCODE(i))
+		{
+			case OP_LOADBOOL:
+				return GETARG_C(i) == 0;
+			case OP_MOVE:
+			case OP_LOADK:
+			case OP_GETUPVAL:
+			case OP_GETGLOBAL:
+			case OP_GETTABLE:
+			case OP_NEWTABLE:
+			case OP_ADD:
+			case OP_SUB:
+			case OP_MUL:
+			case OP_DIV:
+			case OP_MOD:
+			case OP_POW:
+			case OP_UNM:
+			case OP_NOT:
+			case OP_LEN:
+			case OP_CONCAT:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/** @return true if an instruction only writes register A, without side effects */
+	private static boolean pure(int i)
+	{
+		switch(GET_OPCODE(i))
+		{
+			case OP_LOADBOOL:
+				return GETARG_C(i) == 0;
+			case OP_MOVE:
+			case OP_LOADK:
+			case OP_GETUPVAL:
+			case OP_NEWTABLE:
+			case OP_NOT:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/** @return the registers live after each instruction which {@link #coalesce()} may change */
+	private BitSet[] live()
+	{
+		int[] starts = new int[_n], ends = new int[_n];
+		int nb = 0;
+		boolean open = false;
+		for(int pc = 0; pc < _n; pc = next(pc))
+		{
+			if(!open)
+			    starts[nb] = pc;
+			int c = successors(pc, _succ), nx = next(pc);
+			open = (c == 1 && _succ[0] == nx && !_leader[nx]);
+			if(!open)
+			    ends[nb++] = pc;
+		}
+		BitSet[] in = new BitSet[_n + 1];
+		BitSet[] after = new BitSet[_n];
+		BitSet live = new BitSet(_max);
+		for(boolean changed = true; changed;)
+		{
+			changed = false;
+			for(int b = nb; --b >= 0;)
+			{
+				live.clear();
+				for(int j = 0, c = successors(ends[b], _succ); j < c; j++)
+					if(in[_succ[j]] != null)
+					    live.or(in[_succ[j]]);
+				for(int pc = ends[b]; pc >= starts[b]; pc--)
+				{
+					if(_data[pc])
+					    continue;
+					int op = GET_OPCODE(_code[pc]);
+					if(op == OP_TEST || pure(_code[pc]))
+					    after[pc] = (BitSet)live.clone();
+					transfer(pc, live);
+				}
+				if(!live.equals(in[starts[b]]))
+				{
+					in[starts[b]] = (BitSet)live.clone();
+					changed = true;
+				}
+			}
+		}
+		return after;
+	}
+
+	/** Turn the registers live after the instruction at pc into those live before it */
+	private void transfer(int pc, BitSet live)
+	{
+		int i = _code[pc];
+		int op = GET_OPCODE(i);
+		int a = GETARG_A(i), b = GETARG_B(i), c = GETARG_C(i);
+		switch(op)
+		{
+			case OP_LOADNIL:
+				live.clear(a, b + 1);
+				break;
+			case OP_SELF:
+				live.clear(a, a + 2);
+				break;
+			case OP_CALL:
+				if(c >= 2)
+				    live.clear(a, a + c - 1);
+				break;
+			case OP_VARARG:
+				if(b >= 2)
+				    live.clear(a, a + b - 1);
+				break;
+			case OP_TFORLOOP:
+				live.clear(a + 3, a + 3 + c);
+				break;
+			case OP_CLOSURE:
+				live.clear(a);
+				break;
+			default:
+				if(single(i) || op == OP_LOADBOOL)
+				    live.clear(a);
+				break;
+		}
+		switch(op)
+		{
+			case OP_MOVE:
+			case OP_NOT:
+			case OP_TESTSET:
+				live.set(b);
+				break;
+			case OP_UNM:
+			case OP_LEN:
+				if(!ISK(b))
+				    live.set(b);
+				break;
+			case OP_GETTABLE:
+			case OP_SELF:
+				live.set(b);
+				if(!ISK(c))
+				    live.set(c);
+				break;
+			case OP_SETGLOBAL:
+			case OP_SETUPVAL:
+			case OP_TEST:
+				live.set(a);
+				break;
+			case OP_SETTABLE:
+				live.set(a);
+				//$FALL-THROUGH$
+			case OP_ADD:
+			case OP_SUB:
+			case OP_MUL:
+			case OP_DIV:
+			case OP_MOD:
+			case OP_POW:
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+				if(!ISK(b))
+				    live.set(b);
+				if(!ISK(c))
+				    live.set(c);
+				break;
+			case OP_CONCAT:
+				live.set(b, c + 1);
+				break;
+			case OP_CALL:
+			case OP_TAILCALL:
+				live.set(a, b == 0 ? _max : a + b);
+				break;
+			case OP_RETURN:
+				live.set(a, b == 0 ? _max : a + b - 1);
+				break;
+			case OP_FORLOOP:
+			case OP_FORPREP:
+			case OP_TFORLOOP:
+				live.set(a, a + 3);
+				break;
+			case OP_SETLIST:
+				live.set(a, b == 0 ? _max : a + b + 1);
+				break;
+			case OP_CLOSURE:
+				for(int j = pc + 1; j < next(pc); j++)
+					if(GET_OPCODE(_code[j]) == OP_MOVE)
+					    live.set(GETARG_B(_code[j]));
+				break;
+		}
+	}
+
+	/* ---- check ---- */
+
+	/** @return true if all registers, constants, functions and jumps of the code are within their limits */
+	private boolean check()
+	{
+		int n = _n;
+		if(GET_OPCODE(_code[n - 1]) != OP_RETURN || _lines != null && _lines.length != n)
+		    return false;
+		for(int pc = 0; pc < n; pc = next(pc))
+		{
+			int i = _code[pc];
+			int op = GET_OPCODE(i);
+			int a = GETARG_A(i), b = GETARG_B(i), c = GETARG_C(i);
+			if(op >= NUM_OPCODES || a >= _max)
+			    return false;
+			switch(getOpMode(op))
+			{
+				case iABC:
+					if(!arg(getBMode(op), b) || !arg(getCMode(op), c))
+					    return false;
+					break;
+				case iABx:
+					if(GETARG_Bx(i) >= (op == OP_CLOSURE ? _f.p.length : _k.length))
+					    return false;
+					break;
+				case iAsBx:
+					int t = pc + 1 + GETARG_sBx(i);
+					if(t < 0 || t >= n)
+					    return false;
+					break;
+			}
+			if(testTMode(op) && (pc + 2 >= n || GET_OPCODE(_code[pc + 1]) != OP_JMP))
+			    return false;
+			switch(op)
+			{
+				case OP_LOADBOOL:
+					if(c != 0 && pc + 2 >= n)
+					    return false;
+					break;
+				case OP_LOADNIL:
+				case OP_CONCAT:
+					if((op == OP_LOADNIL ? a : b) > (op == OP_LOADNIL ? b : c))
+					    return false;
+					break;
+				case OP_CALL:
+				case OP_TAILCALL:
+				case OP_SETLIST:
+					if(a + b > _max)
+					    return false;
+					break;
+				case OP_CLOSURE:
+					if(next(pc) >= n)
+					    return false;
+					for(int j = pc + 1; j < next(pc); j++)
+						if(GET_OPCODE(_code[j]) != OP_MOVE && GET_OPCODE(_code[j]) != OP_GETUPVAL)
+						    return false;
+					break;
+			}
+		}
+		if(_locvars != null)
+			for(LocVars v : _locvars)
+				if(v._startpc < 0 || v._startpc > v._endpc || v._endpc > n)
+				    return false;
+		return true;
+	}
+
+	private boolean arg(int mode, int x)
+	{
+		switch(mode)
+		{
+			case OpArgR:
+				return x < _max;
+			case OpArgK:
+				return ISK(x) ? INDEXK(x) < _k.length : x < _max;
+			default:
+				return true;
+		}
+	}
+}
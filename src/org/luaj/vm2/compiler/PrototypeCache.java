@@ -0,0 +1,215 @@
+package org.luaj.vm2.compiler;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.luaj.vm2.LuaState;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.StripedCounter;
+import org.luaj.vm2.lib.LibBase;
+
+/**
+ * Bounded cache of compiled chunks, so loading the same chunk again only creates a new closure.
+ * <p>
+ * The code and constants of a compiled {@link Prototype} never change once a closure can see them:
+ * lazily compiled bodies and deferred debug information are filled in at most once, under the lock of the function,
+ * before they are first used, and stay the same afterwards. So one compiled chunk may be used
+ * by any number of closures in any number of {@link LuaState}s at the same time.
+ * Entries are keyed by the bytes and the name of the chunk and the compiler mode,
+ * which is whether {@link LuaC#optimize} is set and whether the current state is integer-only.
+ * The least recently used entries are evicted.
+ * The cache is split into segments with their own lock, so it may be used by several Java threads.
+ * <p>
+ * When {@link #shared} is set, {@link LibBase} compiles the chunks of {@code loadstring} and {@code load} through it.
+ */
+public final class PrototypeCache
+{
+	/** Cache used by {@code loadstring} and {@code load}, or null to compile every chunk.
+	 * Defaults to a cache with as many entries as the system property {@code luaj.prototype.cache},
+	 * it can be changed by Java startup code.
+	 */
+	public static PrototypeCache    shared   = (Integer.getInteger("luaj.prototype.cache", 0) > 0 ?
+	        new PrototypeCache(Integer.getInteger("luaj.prototype.cache", 0)) : null);
+
+	private static final int        SEGMENTS = 16;
+
+	private final Segment[]         _segments;
+	private final StripedCounter    _hits      = new StripedCounter();
+	private final AtomicLong        _misses    = new AtomicLong();
+	private final AtomicLong        _evictions = new AtomicLong();
+
+	/**
+	 * Create a cache
+	 * @param capacity maximum number of chunks kept
+	 */
+	public PrototypeCache(int capacity)
+	{
+		if(capacity <= 0)
+		    throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		int n = Math.min(SEGMENTS, capacity);
+		_segments = new Segment[n];
+		for(int i = 0; i < n; i++)
+			_segments[i] = new Segment(capacity / n + (i < capacity % n ? 1 : 0));
+	}
+
+	/**
+	 * Get the compiled chunk for some bytes, compiling them if they are not cached
+	 * @param bytes array holding lua source or a binary chunk
+	 * @param offset index of the first byte of the chunk
+	 * @param length number of bytes of the chunk
+	 * @param name chunk name
+	 * @return the {@link Prototype} of the chunk
+	 * @throws IOException if compiling fails
+	 */
+	public Prototype compile(byte[] bytes, int offset, int length, String name) throws IOException
+	{
+		Key key = new Key(bytes, offset, length, name, LuaC.mode());
+		int h = key._hash * 0x9e3779b9; // spread the low bits, which hardly differ for similar chunks
+		Segment s = _segments[((h ^ (h >>> 16)) & 0x7fffffff) % _segments.length];
+		Prototype p;
+		synchronized(s)
+		{
+			p = s.get(key);
+		}
+		if(p != null)
+		{
+			_hits.increment();
+			return p;
+		}
+		_misses.incrementAndGet();
+		p = LuaC.compile(bytes, offset, length, name);
+		key = key.own();
+		synchronized(s)
+		{
+			Prototype q = s.get(key);
+			if(q != null)
+			    return q; // compiled by another thread meanwhile
+			s.put(key, p);
+		}
+		return p;
+	}
+
+	/** @return the number of chunks found in the cache */
+	public long getHitCount()
+	{
+		return _hits.get();
+	}
+
+	/** @return the number of chunks compiled */
+	public long getMissCount()
+	{
+		return _misses.get();
+	}
+
+	/** @return the number of chunks evicted to make room for others */
+	public long getEvictionCount()
+	{
+		return _evictions.get();
+	}
+
+	/** @return the fraction of lookups found in the cache, or 0 before the first lookup */
+	public double getHitRate()
+	{
+		long h = _hits.get(), n = h + _misses.get();
+		return n > 0 ? (double)h / n : 0;
+	}
+
+	/** @return the number of chunks in the cache */
+	public int size()
+	{
+		int n = 0;
+		for(Segment s : _segments)
+		{
+			synchronized(s)
+			{
+				n += s.size();
+			}
+		}
+		return n;
+	}
+
+	/** Remove all chunks */
+	public void clear()
+	{
+		for(Segment s : _segments)
+		{
+			synchronized(s)
+			{
+				s.clear();
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private final class Segment extends LinkedHashMap<Key, Prototype>
+	{
+		private final int _capacity;
+
+		Segment(int capacity)
+		{
+			super(16, 0.75f, true);
+			_capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Prototype> eldest)
+		{
+			if(size() <= _capacity)
+			    return false;
+			_evictions.incrementAndGet();
+			return true;
+		}
+	}
+
+	private static final class Key
+	{
+		private final byte[] _bytes;
+		private final int    _offset;
+		private final int    _length;
+		private final String _name;
+		private final int    _mode;
+		final int            _hash;
+
+		Key(byte[] bytes, int offset, int length, String name, int mode)
+		{
+			_bytes = bytes;
+			_offset = offset;
+			_length = length;
+			_name = name;
+			_mode = mode;
+			int h = name.hashCode() + mode;
+			for(int i = offset, e = offset + length; i < e; i++)
+				h = 31 * h + bytes[i];
+			_hash = h;
+		}
+
+		/** @return a key with its own copy of the bytes, which the caller may change later */
+		Key own()
+		{
+			byte[] b = new byte[_length];
+			System.arraycopy(_bytes, _offset, b, 0, _length);
+			return new Key(b, 0, _length, _name, _mode);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return _hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof Key))
+			    return false;
+			Key k = (Key)o;
+			if(k._hash != _hash || k._length != _length || k._mode != _mode || !k._name.equals(_name))
+			    return false;
+			for(int i = 0; i < _length; i++)
+				if(_bytes[_offset + i] != k._bytes[k._offset + i])
+				    return false;
+			return true;
+		}
+	}
+}
@@ -68,6 +68,15 @@ public final class CoerceJavaToLua
 				return LuaInteger.valueOf(n.intValue());
 			}
 		};
+		Coercion longCoercion = new Coercion()
+		{
+			@Override
+			public LuaValue coerce(Object javaValue)
+			{
+				Number n = (Number)javaValue;
+				return LuaInteger.valueOf(n.longValue());
+			}
+		};
 		Coercion charCoercion = new Coercion()
 		{
 			@Override
@@ -99,7 +108,7 @@ public final class CoerceJavaToLua
 		COERCIONS.put(Character.class, charCoercion);
 		COERCIONS.put(Short.class, intCoercion);
 		COERCIONS.put(Integer.class, intCoercion);
-		COERCIONS.put(Long.class, doubleCoercion);
+		COERCIONS.put(Long.class, longCoercion);
 		COERCIONS.put(Float.class, doubleCoercion);
 		COERCIONS.put(Double.class, doubleCoercion);
 		COERCIONS.put(String.class, stringCoercion);
@@ -158,10 +158,7 @@ public final class CoerceLuaToJava
 					case TARGET_TYPE_INT:
 						return SCORE_WRONG_TYPE;
 					case TARGET_TYPE_LONG:
-					{
-						double d = value.todouble();
-						return (d == (long)d) ? 0 : SCORE_WRONG_TYPE;
-					}
+						return value.islong() ? 0 : SCORE_WRONG_TYPE;
 					case TARGET_TYPE_FLOAT:
 					{
 						double d = value.todouble();
@@ -196,7 +193,7 @@ public final class CoerceLuaToJava
 				case TARGET_TYPE_INT:
 					return new Integer(value.toint());
 				case TARGET_TYPE_LONG:
-					return new Long((long)value.todouble());
+					return new Long(value.tolong());
 				case TARGET_TYPE_FLOAT:
 					return new Float((float)value.todouble());
 				case TARGET_TYPE_DOUBLE:
@@ -1,5 +1,6 @@
 package org.luaj.vm2.lib;
 
+import org.luaj.vm2.LuaState;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaThread;
 import org.luaj.vm2.LuaValue;
@@ -37,6 +38,7 @@ import org.luaj.vm2.compiler.LuaC;
  * <li>{@link LibString}</li>
  * <li>{@link LibCoroutine}</li>
  * <li>{@link JseMathLib}</li>
+ * <li>{@link LibBit}</li>
  * <li>{@link JseIoLib}</li>
  * <li>{@link JseOsLib}</li>
  * <li>{@link LibLuajava}</li>
@@ -47,6 +49,8 @@ import org.luaj.vm2.compiler.LuaC;
  * <p>
  * The class ensures that initialization is done in the correct order,
  * and that linkage is made to {@link LuaThread#setGlobals(LuaValue)}.
+ * The globals and libraries belong to the {@link LuaState} of the current Java thread,
+ * so separate states can be initialized and run in parallel.
  */
 public final class JsePlatform
 {
@@ -66,6 +70,7 @@ public final class JsePlatform
 		_G.load(new LibString());
 		_G.load(new LibCoroutine());
 		_G.load(new LibMath());
+		_G.load(new LibBit());
 		_G.load(new LibIo());
 		_G.load(new LibOs());
 		_G.load(new LibLuajava());
@@ -1,9 +1,11 @@
 package org.luaj.vm2.lib;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import org.luaj.vm2.LoadState;
 import org.luaj.vm2.Lua;
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaString;
@@ -11,7 +13,9 @@ import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaThread;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.BytecodeCache;
 import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.compiler.PrototypeCache;
 
 /**
  * Subclass of {@link LibFunction} which implements the lua basic library functions.
@@ -93,6 +97,12 @@ public final class LibBase extends LibFunction1
 
 	static final class BaseLib2 extends LibFunction2
 	{
+		@Override
+		public boolean canYield()
+		{
+			return false;
+		}
+
 		@Override
 		public LuaValue call(LuaValue arg1, LuaValue arg2)
 		{
@@ -153,6 +163,23 @@ public final class LibBase extends LibFunction1
 	{
 		public LibBase baselib;
 
+		@Override
+		public boolean canYield()
+		{
+			switch(_opcode)
+			{
+				case 1: // dofile
+				case 4: // load
+				case 7: // pcall
+				case 8: // xpcall
+				case 9: // print
+				case 11: // unpack
+				case 17: // tostring
+					return true;
+			}
+			return false;
+		}
+
 		@Override
 		public Varargs invoke(Varargs args)
 		{
@@ -187,6 +214,20 @@ public final class LibBase extends LibFunction1
 					StringInputStream sis = new StringInputStream(func);
 					try
 					{
+						if(PrototypeCache.shared != null)
+						{
+							ByteArrayOutputStream bos = new ByteArrayOutputStream();
+							try
+							{
+								for(int c; (c = sis.read()) >= 0;)
+									bos.write(c);
+							}
+							catch(Exception e)
+							{
+								return varargsOf(NIL, valueOf(e.getMessage()));
+							}
+							return LibBase.loadBytes(bos.toByteArray(), 0, bos.size(), chunkname);
+						}
 						return LibBase.loadStream(sis, chunkname);
 					}
 					finally
@@ -211,7 +252,7 @@ public final class LibBase extends LibFunction1
 				{
 					LuaString script = args.checkstring(1);
 					String chunkname = args.optjstring(2, "string");
-					return LibBase.loadStream(script.toInputStream(), chunkname);
+					return LibBase.loadBytes(script._bytes, script._offset, script._length, chunkname);
 				}
 				case 7: // "pcall", // (f, arg1, ...) -> status, result1, ...
 				{
@@ -334,6 +375,16 @@ public final class LibBase extends LibFunction1
 		}
 	}
 
+	/**
+	 * Test if a function is {@code pcall}, which a stackless coroutine handles without calling it
+	 * @param f the function to test
+	 * @return true for the pcall function
+	 */
+	public static boolean isPcall(LuaValue f)
+	{
+		return f instanceof BaseLibV && ((BaseLibV)f)._opcode == 7;
+	}
+
 	public static Varargs pcall(LuaValue func, Varargs args, LuaValue errfunc)
 	{
 		LuaValue olderr = LuaThread.setErrorFunc(errfunc);
@@ -368,6 +419,33 @@ public final class LibBase extends LibFunction1
 		try
 		{
 			File f = new File(filename);
+			if(LoadState.mapped_chunks && f.isFile())
+			{
+				try
+				{
+					is = new FileInputStream(f);
+					boolean binary = (is.read() == '\033');
+					is.close();
+					is = null;
+					if(binary)
+					    return LuaC.load(LoadState.mapBinaryChunk(f, "@" + filename), LuaThread.getGlobals());
+				}
+				catch(Exception e)
+				{
+					return varargsOf(NIL, valueOf(e.getMessage()));
+				}
+			}
+			if(BytecodeCache.cache_dir != null && f.isFile())
+			{
+				try
+				{
+					return LuaC.load(BytecodeCache.compile(f, "@" + filename), LuaThread.getGlobals());
+				}
+				catch(Exception e)
+				{
+					return varargsOf(NIL, valueOf(e.getMessage()));
+				}
+			}
 			if(f.exists())
 			{
 				try
@@ -412,34 +490,76 @@ public final class LibBase extends LibFunction1
 		}
 	}
 
+	/**
+	 * Load a chunk from a byte array without copying it, using the {@link PrototypeCache#shared} cache if there is one
+	 * @return Varargs containing chunk, or NIL,error-text on error
+	 */
+	public static Varargs loadBytes(byte[] bytes, int offset, int length, String chunkname)
+	{
+		PrototypeCache cache = PrototypeCache.shared;
+		try
+		{
+			return LuaC.load(cache != null ?
+			        cache.compile(bytes, offset, length, chunkname) :
+			        LuaC.compile(bytes, offset, length, chunkname), LuaThread.getGlobals());
+		}
+		catch(Exception e)
+		{
+			return varargsOf(NIL, valueOf(e.getMessage()));
+		}
+	}
+
 	private static class StringInputStream extends InputStream
 	{
 		final LuaValue func;
 		byte[]         bytes;
 		int            offset, remaining = 0;
+		boolean        eof;
 
 		StringInputStream(LuaValue f)
 		{
 			func = f;
 		}
 
-		@Override
-		public int read() throws IOException
+		/** Get the next piece from the function if the current one is used up, which ends at nil or an empty string */
+		private boolean more()
 		{
-			if(remaining <= 0)
+			if(remaining > 0)
+			    return true;
+			if(eof)
+			    return false;
+			LuaValue s = func.call();
+			if(!s.isnil())
 			{
-				LuaValue s = func.call();
-				if(s.isnil())
-				    return -1;
 				LuaString ls = s.strvalue();
 				bytes = ls._bytes;
 				offset = ls._offset;
 				remaining = ls._length;
-				if(remaining <= 0)
-				    return -1;
 			}
+			return !(eof = remaining <= 0);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if(!more())
+			    return -1;
 			--remaining;
-			return bytes[offset++];
+			return bytes[offset++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if(len == 0)
+			    return 0;
+			if(!more())
+			    return -1;
+			int n = Math.min(len, remaining);
+			System.arraycopy(bytes, offset, b, off, n);
+			offset += n;
+			remaining -= n;
+			return n;
 		}
 	}
 }
@@ -0,0 +1,166 @@
+package org.luaj.vm2.lib;
+
+import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaLong;
+import org.luaj.vm2.LuaString;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+/**
+ * Subclass of {@link LibFunction} which implements the {@code bit} library
+ * with the same API as the LuaJIT BitOp module.
+ * <p>
+ * All operations work on 32-bit signed integers and return {@link LuaInteger} values,
+ * so small results come from the {@link LuaInteger} cache.
+ * Arguments are normalized like {@code bit.tobit}:
+ * {@link LuaInteger} is used directly, {@link LuaLong} keeps its low 32 bits,
+ * and other numbers are rounded and taken modulo 2^32.
+ * <p>
+ * To instantiate and use it directly,
+ * link it into your globals table via {@link LuaValue#load(LuaValue)} using code such as:
+ * <pre> {@code
+ * LuaTable _G = new LuaTable();
+ * LuaThread.setGlobals(_G);
+ * _G.load(new LibBase());
+ * _G.load(new LibPackage());
+ * _G.load(new LibBit());
+ * System.out.println( _G.get("bit").get("band").call( LuaValue.valueOf(12), LuaValue.valueOf(10) ) );
+ * } </pre>
+ * Doing so will ensure the library is properly initialized
+ * and loaded into the globals table.
+ * @see LibFunction
+ * @see JsePlatform
+ * @see <a href="http://bitop.luajit.org/api.html">http://bitop.luajit.org/api.html</a>
+ */
+public final class LibBit extends LibFunction1
+{
+	private static final byte[] HEX_LOWER = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+	private static final byte[] HEX_UPPER = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+	@Override
+	public LuaValue call(LuaValue arg)
+	{
+		LuaTable t = new LuaTable(0, 12);
+		bind(t, BitLib1.class, new String[] { "tobit", "bnot", "bswap" });
+		bind(t, BitLib2.class, new String[] { "lshift", "rshift", "arshift", "rol", "ror", "tohex" });
+		bind(t, BitLibV.class, new String[] { "band", "bor", "bxor" });
+		_env.set("bit", t);
+		LibPackage.instance().LOADED.set("bit", t);
+		return t;
+	}
+
+	/** Normalize a value to a 32-bit integer as {@code bit.tobit} does
+	 * @param arg the value to convert
+	 * @return the low 32 bits of the rounded number
+	 * @throws LuaError if arg is not a number or string convertible to number
+	 */
+	static int tobit(LuaValue arg)
+	{
+		if(arg instanceof LuaInteger)
+		    return ((LuaInteger)arg).v;
+		if(arg instanceof LuaLong)
+		    return (int)((LuaLong)arg).v;
+		return (int)(long)Math.rint(arg.checkdouble() % 0x1p32);
+	}
+
+	static final class BitLib1 extends LibFunction1
+	{
+		@Override
+		public LuaValue call(LuaValue arg)
+		{
+			switch(_opcode)
+			{
+				case 0: // tobit
+					return arg instanceof LuaInteger ? arg : valueOf(tobit(arg));
+				case 1: // bnot
+					return valueOf(~tobit(arg));
+				case 2: // bswap
+					return valueOf(Integer.reverseBytes(tobit(arg)));
+			}
+			return NIL;
+		}
+	}
+
+	static final class BitLib2 extends LibFunction2
+	{
+		@Override
+		public LuaValue call(LuaValue arg1, LuaValue arg2)
+		{
+			switch(_opcode)
+			{
+				case 0: // lshift
+					return valueOf(tobit(arg1) << tobit(arg2));
+				case 1: // rshift
+					return valueOf(tobit(arg1) >>> tobit(arg2));
+				case 2: // arshift
+					return valueOf(tobit(arg1) >> tobit(arg2));
+				case 3: // rol
+					return valueOf(Integer.rotateLeft(tobit(arg1), tobit(arg2)));
+				case 4: // ror
+					return valueOf(Integer.rotateRight(tobit(arg1), tobit(arg2)));
+				case 5: // tohex
+				{
+					int x = tobit(arg1);
+					int n = arg2.isnil() ? 8 : tobit(arg2);
+					byte[] hex = HEX_LOWER;
+					if(n < 0)
+					{
+						n = (n < -8 ? 8 : -n); /* clamp first, -Integer.MIN_VALUE is still negative */
+						hex = HEX_UPPER;
+					}
+					else if(n > 8)
+					    n = 8;
+					byte[] b = new byte[n];
+					for(int i = n; --i >= 0; x >>>= 4)
+						b[i] = hex[x & 15];
+					return LuaString.valueOf(b);
+				}
+			}
+			return NIL;
+		}
+	}
+
+	static final class BitLibV extends LibFunctionV
+	{
+		private int op(int x, int y)
+		{
+			switch(_opcode)
+			{
+				case 0: // band
+					return x & y;
+				case 1: // bor
+					return x | y;
+				default: // bxor
+					return x ^ y;
+			}
+		}
+
+		@Override
+		public LuaValue call(LuaValue arg)
+		{
+			return valueOf(tobit(arg));
+		}
+
+		@Override
+		public LuaValue call(LuaValue arg1, LuaValue arg2)
+		{
+			return valueOf(op(tobit(arg1), tobit(arg2)));
+		}
+
+		@Override
+		public LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3)
+		{
+			return valueOf(op(op(tobit(arg1), tobit(arg2)), tobit(arg3)));
+		}
+
+		@Override
+		public Varargs invoke(Varargs args)
+		{
+			int x = tobit(args.arg1());
+			for(int i = 2, n = args.narg(); i <= n; ++i)
+				x = op(x, tobit(args.arg(i)));
+			return valueOf(x);
+		}
+	}
+}
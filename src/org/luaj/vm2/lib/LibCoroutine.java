@@ -15,6 +15,8 @@ import org.luaj.vm2.Varargs;
  * similar to the "Coco" yield-from-anywhere patch available for C-based lua.
  * However, coroutines that are yielded but never resumed to complete their execution
  * may not be collected by the garbage collector.
+ * With {@link LuaThread#stackless} turned on, coroutines of lua functions run without a Java thread
+ * and can only yield from lua code, see {@link LuaThread}.
  * <p>
  * Typically, this library is included as part of a call to {@link JsePlatform#standardGlobals()}
  * <p>
@@ -48,10 +50,27 @@ public final class LibCoroutine extends LibFunctionV
 		        "create", "resume", "running", "status", "yield", "wrap" },
 		        CREATE);
 		_env.set("coroutine", t);
-		LibPackage.instance.LOADED.set("coroutine", t);
+		LibPackage.instance().LOADED.set("coroutine", t);
 		return t;
 	}
 
+	/**
+	 * Test if this is {@code coroutine.yield}, which a stackless coroutine handles without calling it
+	 * @return true for the yield function
+	 * @see LuaThread#stackless
+	 */
+	public boolean isYield()
+	{
+		return _opcode == YIELD;
+	}
+
+	/** Only a yield suspends the calling coroutine, a resume runs lua in the resumed one */
+	@Override
+	public boolean canYield()
+	{
+		return _opcode == YIELD;
+	}
+
 	@Override
 	public Varargs invoke(Varargs args)
 	{
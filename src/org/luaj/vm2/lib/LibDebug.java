@@ -2,12 +2,10 @@ package org.luaj.vm2.lib;
 
 import java.lang.ref.WeakReference;
 import org.luaj.vm2.Lua;
-import org.luaj.vm2.LuaBoolean;
 import org.luaj.vm2.LuaClosure;
 import org.luaj.vm2.LuaError;
 import org.luaj.vm2.LuaFunction;
-import org.luaj.vm2.LuaNil;
-import org.luaj.vm2.LuaNumber;
+import org.luaj.vm2.LuaState;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaThread;
@@ -118,7 +116,7 @@ public final class LibDebug extends LibFunctionV
 		LuaTable t = new LuaTable();
 		bind(t, LibDebug.class, NAMES, DEBUG);
 		_env.set("debug", t);
-		LibPackage.instance.LOADED.set("debug", t);
+		LibPackage.instance().LOADED.set("debug", t);
 		return t;
 	}
 
@@ -220,6 +218,7 @@ public final class LibDebug extends LibFunctionV
 		public int currentline()
 		{
 			if(_closure == null) return -1;
+			_closure._p.debug();
 			int[] li = _closure._p.lineinfo;
 			return li == null || _pc < 0 || _pc >= li.length ? -1 : li[_pc];
 		}
@@ -686,22 +685,22 @@ public final class LibDebug extends LibFunctionV
 			switch(object.type())
 			{
 				case TNIL:
-					LuaNil.s_metatable = mt;
+					LuaState.current()._nilMetatable = mt;
 					break;
 				case TNUMBER:
-					LuaNumber.s_metatable = mt;
+					LuaState.current()._numberMetatable = mt;
 					break;
 				case TBOOLEAN:
-					LuaBoolean.s_metatable = mt;
+					LuaState.current()._booleanMetatable = mt;
 					break;
 				case TSTRING:
-					LuaString.s_metatable = mt;
+					LuaState.current()._stringMetatable = LuaString.s_metatable = mt;
 					break;
 				case TFUNCTION:
-					LuaFunction.s_metatable = mt;
+					LuaState.current()._functionMetatable = mt;
 					break;
 				case TTHREAD:
-					LuaThread.s_metatable = mt;
+					LuaState.current()._threadMetatable = mt;
 					break;
 				default:
 					object.setmetatable(mt);
@@ -723,6 +722,7 @@ public final class LibDebug extends LibFunctionV
 	{
 		if(c._upValues != null && up > 0 && up <= c._upValues.length)
 		{
+			c._p.debug();
 			if(c._p.upvalues != null && up <= c._p.upvalues.length)
 			    return c._p.upvalues[up - 1];
 			return LuaString.valueOf("." + up);
@@ -858,6 +858,7 @@ public final class LibDebug extends LibFunctionV
 		if(di._closure != null)
 		{ /* a Lua function? */
 			Prototype p = di._closure._p;
+			p.debug();
 			int pc = di._pc; // currentpc(L, ci);
 			int i;// Instruction i;
 			name = p.getlocalname(stackpos + 1, pc);
@@ -920,6 +921,7 @@ public final class LibDebug extends LibFunctionV
 
 	static boolean precheck(Prototype pt)
 	{
+		pt.debug();
 		if(!(pt.maxstacksize <= MAXSTACK)) return false;
 		lua_assert(pt.numparams + (pt.is_vararg & Lua.VARARG_HASARG) <= pt.maxstacksize);
 		lua_assert((pt.is_vararg & Lua.VARARG_NEEDSARG) == 0
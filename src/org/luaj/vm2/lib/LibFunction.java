@@ -126,6 +126,18 @@ public abstract class LibFunction extends LuaFunction
 		return _name != null ? _name : super.tojstring();
 	}
 
+	/**
+	 * Test if the calling coroutine may yield while this function runs,
+	 * because it calls lua functions or metamethods.
+	 * A stackless coroutine calls functions which return false without moving to a Java thread first.
+	 * @return true unless overridden by a function which works on its arguments only
+	 * @see org.luaj.vm2.LuaThread#stackless
+	 */
+	public boolean canYield()
+	{
+		return true;
+	}
+
 	/**
 	 * Bind a set of library functions.
 	 * <p>
@@ -187,7 +187,7 @@ public final class LibIo extends LibFunction1
 
 		// return the table
 		_env.set("io", t);
-		LibPackage.instance.LOADED.set("io", t);
+		LibPackage.instance().LOADED.set("io", t);
 		return t;
 	}
 
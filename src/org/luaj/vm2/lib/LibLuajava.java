@@ -76,7 +76,7 @@ public final class LibLuajava extends LibFunctionV
 					LuaTable t = new LuaTable();
 					bind(t, LibLuajava.class, NAMES, BINDCLASS);
 					_env.set("luajava", t);
-					LibPackage.instance.LOADED.set("luajava", t);
+					LibPackage.instance().LOADED.set("luajava", t);
 					return t;
 				}
 				case BINDCLASS:
@@ -2,6 +2,8 @@ package org.luaj.vm2.lib;
 
 import java.util.Random;
 import org.luaj.vm2.LuaDouble;
+import org.luaj.vm2.LuaLong;
+import org.luaj.vm2.LuaNumber;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
@@ -29,6 +31,10 @@ import org.luaj.vm2.Varargs;
  * The implementations of {@code exp()} and {@code pow()} are constructed by
  * hand for JME, so will be slower and less accurate than when executed on the JSE platform.
  * <p>
+ * In {@link LuaNumber#isIntegerOnly()} mode only {@code abs}, {@code ceil}, {@code floor}, {@code fmod},
+ * {@code max}, {@code min}, {@code pow}, {@code random} and {@code randomseed} are provided,
+ * all operating on integers, and {@code random()} without arguments returns a random long.
+ * <p>
  * To instantiate and use it directly,
  * link it into your globals table via {@link LuaValue#load(LuaValue)} using code such as:
  * <pre> {@code
@@ -54,6 +60,21 @@ public final class LibMath extends LibFunction1
 	public LuaValue call(LuaValue arg)
 	{
 		LuaTable t = new LuaTable(0, 30);
+		if(LuaNumber.isIntegerOnly())
+		{
+			// only the functions which keep integers integral, with their usual opcodes
+			bind(t, MathLib1.class, new String[] { "abs", "ceil" });
+			bind(t, MathLib1.class, new String[] { "floor" }, 5);
+			bind(t, MathLib2.class, new String[] { "fmod" });
+			bind(t, MathLib2.class, new String[] { "pow" }, 2);
+			bind(t, MathLibV.class, new String[] { "max", "min" }, 1);
+			bind(t, MathLibV.class, new String[] { "randomseed", "random" }, 4);
+			((MathLibV)t.get("randomseed")).mathlib = this;
+			((MathLibV)t.get("random")).mathlib = this;
+			_env.set("math", t);
+			LibPackage.instance().LOADED.set("math", t);
+			return t;
+		}
 		t.set("pi", Math.PI);
 		t.set("huge", LuaDouble.POSINF);
 		bind(t, MathLib1.class, new String[] {
@@ -74,12 +95,18 @@ public final class LibMath extends LibFunction1
 		((MathLibV)t.get("randomseed")).mathlib = this;
 		((MathLibV)t.get("random")).mathlib = this;
 		_env.set("math", t);
-		LibPackage.instance.LOADED.set("math", t);
+		LibPackage.instance().LOADED.set("math", t);
 		return t;
 	}
 
 	public static final class JseMathLib1 extends LibFunction1
 	{
+		@Override
+		public boolean canYield()
+		{
+			return false;
+		}
+
 		@Override
 		public LuaValue call(LuaValue arg)
 		{
@@ -110,6 +137,12 @@ public final class LibMath extends LibFunction1
 
 	public static final class JseMathLib2 extends LibFunction2
 	{
+		@Override
+		public boolean canYield()
+		{
+			return false;
+		}
+
 		@Override
 		public LuaValue call(LuaValue arg1, LuaValue arg2)
 		{
@@ -126,15 +159,21 @@ public final class LibMath extends LibFunction1
 
 	static final class MathLib1 extends LibFunction1
 	{
+		@Override
+		public boolean canYield()
+		{
+			return false;
+		}
+
 		@Override
 		public LuaValue call(LuaValue arg)
 		{
 			switch(_opcode)
 			{
 				case 0:
-					return valueOf(Math.abs(arg.checkdouble()));
+					return arg instanceof LuaLong ? (arg.lt_b(0) ? arg.neg() : arg) : valueOf(Math.abs(arg.checkdouble()));
 				case 1:
-					return valueOf(Math.ceil(arg.checkdouble()));
+					return arg instanceof LuaLong ? arg : valueOf(Math.ceil(arg.checkdouble()));
 				case 2:
 					return valueOf(Math.cos(arg.checkdouble()));
 				case 3:
@@ -142,7 +181,7 @@ public final class LibMath extends LibFunction1
 				case 4:
 					return dpow(Math.E, arg.checkdouble());
 				case 5:
-					return valueOf(Math.floor(arg.checkdouble()));
+					return arg instanceof LuaLong ? arg : valueOf(Math.floor(arg.checkdouble()));
 				case 6:
 					return valueOf(Math.toRadians(arg.checkdouble()));
 				case 7:
@@ -160,6 +199,12 @@ public final class LibMath extends LibFunction1
 	{
 		protected LibMath mathlib;
 
+		@Override
+		public boolean canYield()
+		{
+			return false;
+		}
+
 		@Override
 		public LuaValue call(LuaValue arg1, LuaValue arg2)
 		{
@@ -167,6 +212,13 @@ public final class LibMath extends LibFunction1
 			{
 				case 0:
 				{ // fmod
+					if(LuaNumber.isIntegerOnly())
+					{
+						long y = arg2.checklong();
+						if(y == 0)
+						    argerror(2, "zero");
+						return valueOf(arg1.checklong() % y);
+					}
 					double x = arg1.checkdouble();
 					double y = arg2.checkdouble();
 					double q = x / y;
@@ -182,6 +234,8 @@ public final class LibMath extends LibFunction1
 				}
 				case 2:
 				{ // pow
+					if(LuaNumber.isIntegerOnly())
+					    return arg1.checknumber().pow(arg2.checknumber());
 					return dpow(arg1.checkdouble(), arg2.checkdouble());
 				}
 			}
@@ -212,6 +266,12 @@ public final class LibMath extends LibFunction1
 	{
 		protected LibMath mathlib;
 
+		@Override
+		public boolean canYield()
+		{
+			return false;
+		}
+
 		@Override
 		public Varargs invoke(Varargs args)
 		{
@@ -228,6 +288,13 @@ public final class LibMath extends LibFunction1
 				}
 				case 1:
 				{ // max
+					if(LuaNumber.isIntegerOnly())
+					{
+						long m = args.checklong(1);
+						for(int i = 2, n = args.narg(); i <= n; ++i)
+							m = Math.max(m, args.checklong(i));
+						return valueOf(m);
+					}
 					double m = args.checkdouble(1);
 					for(int i = 2, n = args.narg(); i <= n; ++i)
 						m = Math.max(m, args.checkdouble(i));
@@ -235,6 +302,13 @@ public final class LibMath extends LibFunction1
 				}
 				case 2:
 				{ // min
+					if(LuaNumber.isIntegerOnly())
+					{
+						long m = args.checklong(1);
+						for(int i = 2, n = args.narg(); i <= n; ++i)
+							m = Math.min(m, args.checklong(i));
+						return valueOf(m);
+					}
 					double m = args.checkdouble(1);
 					for(int i = 2, n = args.narg(); i <= n; ++i)
 						m = Math.min(m, args.checkdouble(i));
@@ -261,7 +335,7 @@ public final class LibMath extends LibFunction1
 					switch(args.narg())
 					{
 						case 0:
-							return valueOf(mathlib.random.nextDouble());
+							return LuaNumber.isIntegerOnly() ? valueOf(mathlib.random.nextLong()) : valueOf(mathlib.random.nextDouble());
 						case 1:
 						{
 							int m = args.checkint(1);
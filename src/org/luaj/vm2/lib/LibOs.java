@@ -87,7 +87,7 @@ public final class LibOs extends LibFunctionV
 		LuaTable t = new LuaTable();
 		bind(t, getClass(), NAMES, CLOCK);
 		_env.set("os", t);
-		LibPackage.instance.LOADED.set("os", t);
+		LibPackage.instance().LOADED.set("os", t);
 		return t;
 	}
 
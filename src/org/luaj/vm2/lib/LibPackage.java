@@ -3,6 +3,7 @@ package org.luaj.vm2.lib;
 import java.io.InputStream;
 import java.io.PrintStream;
 import org.luaj.vm2.LuaFunction;
+import org.luaj.vm2.LuaState;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaThread;
@@ -44,8 +45,12 @@ public final class LibPackage extends LibFunction1
 	public LuaTable                LOADED;
 	public LuaTable                PACKAGE;
 
-	/** Most recent instance of PackageLib */
-	public static LibPackage       instance;                               // almost thread-safe
+	/** Most recent instance of PackageLib in any {@link LuaState}.
+	 * @deprecated each state has its own package library, use {@link #instance()}.
+	 * This only mirrors the latest instance for code written against a single global state.
+	 */
+	@Deprecated
+	public static LibPackage       instance;
 
 	/** Loader that loads from preload table if found there */
 	public LuaValue                preload_loader;
@@ -78,24 +83,34 @@ public final class LibPackage extends LibFunction1
 
 	public LibPackage()
 	{
+		LuaState.current()._packageLib = this;
 		instance = this;
 	}
 
+	/**
+	 * Get the package library of the current {@link LuaState}
+	 * @return the most recent instance of PackageLib created in the current state
+	 */
+	public static LibPackage instance()
+	{
+		return LuaState.current()._packageLib;
+	}
+
 	@Override
 	public LuaValue call(LuaValue arg)
 	{
-		_env.set("require", new PkgLib1(_env, "require", OP_REQUIRE, this));
-		_env.set("module", new PkgLibV(_env, "module", OP_MODULE, this));
+		_env.set("require", new PkgLib1(_env, "require", OP_REQUIRE));
+		_env.set("module", new PkgLibV(_env, "module", OP_MODULE));
 		_env.set("package", PACKAGE = tableOf(new LuaValue[] {
 		        _LOADED, LOADED = tableOf(),
 		        _PRELOAD, tableOf(),
 		        _PATH, valueOf(DEFAULT_LUA_PATH),
-		        _LOADLIB, new PkgLibV(_env, "loadlib", OP_LOADLIB, this),
-		        _SEEALL, new PkgLib1(_env, "seeall", OP_SEEALL, this),
+		        _LOADLIB, new PkgLibV(_env, "loadlib", OP_LOADLIB),
+		        _SEEALL, new PkgLib1(_env, "seeall", OP_SEEALL),
 		        _LOADERS, listOf(new LuaValue[] {
-		                preload_loader = new PkgLibV(_env, "preload_loader", OP_PRELOAD_LOADER, this),
-		                lua_loader = new PkgLibV(_env, "lua_loader", OP_LUA_LOADER, this),
-		                java_loader = new PkgLibV(_env, "java_loader", OP_JAVA_LOADER, this),
+		                preload_loader = new PkgLibV(_env, "preload_loader", OP_PRELOAD_LOADER),
+		                lua_loader = new PkgLibV(_env, "lua_loader", OP_LUA_LOADER),
+		                java_loader = new PkgLibV(_env, "java_loader", OP_JAVA_LOADER),
 		        }) }));
 		LOADED.set("package", PACKAGE);
 		return _env;
@@ -103,14 +118,11 @@ public final class LibPackage extends LibFunction1
 
 	static final class PkgLib1 extends LibFunction1
 	{
-		LibPackage _lib;
-
-		public PkgLib1(LuaValue env, String name, int opcode, LibPackage lib)
+		public PkgLib1(LuaValue env, String name, int opcode)
 		{
 			_env = env;
 			_name = name;
 			_opcode = opcode;
-			_lib = lib;
 		}
 
 		@Override
@@ -119,7 +131,7 @@ public final class LibPackage extends LibFunction1
 			switch(_opcode)
 			{
 				case OP_REQUIRE:
-					return _lib.require(arg);
+					return instance().require(arg);
 				case OP_SEEALL:
 				{
 					LuaTable t = arg.checktable();
@@ -136,14 +148,11 @@ public final class LibPackage extends LibFunction1
 
 	static final class PkgLibV extends LibFunctionV
 	{
-		LibPackage _lib;
-
-		public PkgLibV(LuaValue env, String name, int opcode, LibPackage lib)
+		public PkgLibV(LuaValue env, String name, int opcode)
 		{
 			_env = env;
 			_name = name;
 			_opcode = opcode;
-			_lib = lib;
 		}
 
 		@Override
@@ -152,20 +161,20 @@ public final class LibPackage extends LibFunction1
 			switch(_opcode)
 			{
 				case OP_MODULE:
-					return _lib.module(args);
+					return instance().module(args);
 				case OP_LOADLIB:
 					return loadlib(args);
 				case OP_PRELOAD_LOADER:
 				{
-					return _lib.loader_preload(args);
+					return instance().loader_preload(args);
 				}
 				case OP_LUA_LOADER:
 				{
-					return _lib.loader_Lua(args);
+					return instance().loader_Lua(args);
 				}
 				case OP_JAVA_LOADER:
 				{
-					return _lib.loader_Java(args);
+					return instance().loader_Java(args);
 				}
 			}
 			return NONE;
@@ -430,7 +439,7 @@ public final class LibPackage extends LibFunction1
 		{
 			c = Class.forName(classname);
 			v = (LuaValue)c.newInstance();
-			v.setfenv(_env);
+			v.setfenv(getfenv());
 			return v;
 		}
 		catch(ClassNotFoundException cnfe)
@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import org.luaj.vm2.Buffer;
 import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaState;
 import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
@@ -34,42 +35,56 @@ import org.luaj.vm2.compiler.DumpState;
  */
 public final class LibString extends LibFunction1
 {
-	public static LuaTable instance; // thread-safe for reading
+	/** String library table most recently loaded in any {@link LuaState}.
+	 * @deprecated each state has its own string library, use {@link LuaState#_stringLib} of {@link LuaState#current()}.
+	 * This only mirrors the latest table for code written against a single global state.
+	 */
+	@Deprecated
+	public static LuaTable instance;
 
 	@Override
 	public LuaValue call(LuaValue arg)
 	{
 		LuaTable t = new LuaTable();
 		bind(t, StringLib1.class, new String[] {
-		        "dump", "len", "lower", "reverse", "upper", });
+		        "compact", "dump", "len", "lower", "reverse", "upper", });
 		bind(t, StringLibV.class, new String[] {
 		        "byte", "char", "find", "format",
 		        "gmatch", "gsub", "match", "rep",
 		        "sub" });
 		_env.set("string", t);
-		instance = t;
-		if(LuaString.s_metatable == null)
-		    LuaString.s_metatable = tableOf(new LuaValue[] { INDEX, t });
-		LibPackage.instance.LOADED.set("string", t);
+		LuaState s = LuaState.current();
+		s._stringLib = instance = t;
+		if(s._stringMetatable == null)
+		    s._stringMetatable = LuaString.s_metatable = tableOf(new LuaValue[] { INDEX, t });
+		LibPackage.instance().LOADED.set("string", t);
 		return t;
 	}
 
 	static final class StringLib1 extends LibFunction1
 	{
+		@Override
+		public boolean canYield()
+		{
+			return false;
+		}
+
 		@Override
 		public LuaValue call(LuaValue arg)
 		{
 			switch(_opcode)
 			{
 				case 0:
-					return dump(arg); // dump (function)
+					return compact(arg); // compact (function)
 				case 1:
-					return LibString.len(arg); // len (function)
+					return dump(arg); // dump (function)
 				case 2:
-					return lower(arg); // lower (function)
+					return LibString.len(arg); // len (function)
 				case 3:
-					return reverse(arg); // reverse (function)
+					return lower(arg); // lower (function)
 				case 4:
+					return reverse(arg); // reverse (function)
+				case 5:
 					return upper(arg); // upper (function)
 			}
 			return NIL;
@@ -78,6 +93,12 @@ public final class LibString extends LibFunction1
 
 	static final class StringLibV extends LibFunctionV
 	{
+		@Override
+		public boolean canYield()
+		{
+			return _opcode == 5; // gsub
+		}
+
 		@Override
 		public Varargs invoke(Varargs args)
 		{
@@ -160,6 +181,18 @@ public final class LibString extends LibFunction1
 		return LuaString.valueOf(bytes);
 	}
 
+	/**
+	 * string.compact (s)
+	 *
+	 * Returns a string equal to s which does not share the memory of a larger string,
+	 * such as the result of io.read("*a") it was extracted from.
+	 * This is a luaj extension.
+	 */
+	static LuaValue compact(LuaValue arg)
+	{
+		return arg.checkstring().compact();
+	}
+
 	/**
 	 * string.dump (function)
 	 *
@@ -266,7 +299,7 @@ public final class LibString extends LibFunction1
 									break;
 								case 'i':
 								case 'd':
-									fdsc.format(result, args.checkint(arg));
+									fdsc.format(result, args.checklong(arg));
 									break;
 								case 'o':
 								case 'u':
@@ -423,6 +456,12 @@ public final class LibString extends LibFunction1
 
 		public void format(Buffer buf, long number)
 		{
+			if(width == -1 && precision == -1 && !explicitPlus && !space && conversion != 'o' && conversion != 'x' && conversion != 'X')
+			{
+				buf.append(number);
+				return;
+			}
+
 			String digits;
 
 			if(number == 0 && precision == 0)
@@ -512,7 +551,7 @@ public final class LibString extends LibFunction1
 		{
 			int nullindex = s.indexOf((byte)'\0', 0);
 			if(nullindex != -1)
-			    s = s.substring(0, nullindex);
+			    s = s.substringShared(0, nullindex);
 			buf.append(s);
 		}
 
@@ -559,18 +598,38 @@ public final class LibString extends LibFunction1
 	{
 		private final int        _srclen;
 		private final MatchState _ms;
+		private final boolean    _plain;
 		private int              _soffset;
 
 		public GMatchAux(Varargs args, LuaString src, LuaString pat)
 		{
 			_srclen = src.length();
 			_ms = new MatchState(args, src, pat);
+			_plain = isplain(pat);
 			_soffset = 0;
 		}
 
+		@Override
+		public boolean canYield()
+		{
+			return false;
+		}
+
 		@Override
 		public Varargs invoke(Varargs args)
 		{
+			if(_plain)
+			{
+				int res = _soffset < _srclen ? _ms._s.indexOf(_ms._p, _soffset) : -1;
+				if(res < 0)
+				{
+					_soffset = _srclen;
+					return NIL;
+				}
+				_soffset = res + _ms._p.length();
+				_ms.reset();
+				return _ms.push_captures(true, res, _soffset);
+			}
 			for(; _soffset < _srclen; _soffset++)
 			{
 				_ms.reset();
@@ -645,25 +704,38 @@ public final class LibString extends LibFunction1
 
 		int soffset = 0;
 		int n = 0;
-		while(n < max_s)
+		if(isplain(p))
 		{
-			ms.reset();
-			int res = ms.match(soffset, anchor ? 1 : 0);
-			if(res != -1)
+			for(int res, plen = p.length(); n < max_s && (res = src.indexOf(p, soffset)) >= 0; soffset = res + plen)
 			{
 				n++;
-				ms.add_value(lbuf, soffset, res, repl);
+				lbuf.append(src.substringShared(soffset, res));
+				ms.reset();
+				ms.add_value(lbuf, res, res + plen, repl);
 			}
-			if(res != -1 && res > soffset)
-				soffset = res;
-			else if(soffset < srclen)
-				lbuf.append((byte)src.luaByte(soffset++));
-			else
-				break;
-			if(anchor)
-			    break;
 		}
-		lbuf.append(src.substring(soffset, srclen));
+		else
+		{
+			while(n < max_s)
+			{
+				ms.reset();
+				int res = ms.match(soffset, anchor ? 1 : 0);
+				if(res != -1)
+				{
+					n++;
+					ms.add_value(lbuf, soffset, res, repl);
+				}
+				if(res != -1 && res > soffset)
+					soffset = res;
+				else if(soffset < srclen)
+					lbuf.append((byte)src.luaByte(soffset++));
+				else
+					break;
+				if(anchor)
+				    break;
+			}
+		}
+		lbuf.append(src.substringShared(soffset, srclen));
 		return varargsOf(lbuf.tostring(), valueOf(n));
 	}
 
@@ -817,11 +889,14 @@ public final class LibString extends LibFunction1
 				anchor = true;
 				poff = 1;
 			}
+			int prefix = anchor ? 0 : literalprefix(pat);
 
 			int soff = init;
 			do
 			{
 				int res;
+				if(prefix > 0 && (soff = s.indexOf(pat, prefix, soff)) < 0)
+				    break;
 				ms.reset();
 				if((res = ms.match(soff, poff)) != -1)
 				{
@@ -840,11 +915,47 @@ public final class LibString extends LibFunction1
 		return (pos >= 0) ? pos : len + pos + 1;
 	}
 
+	/**
+	 * Test if a pattern can be searched for as a plain string.
+	 */
+	private static boolean isplain(LuaString pat)
+	{
+		return pat.length() > 0 && pat.indexOfAny(SPECIALS) == -1;
+	}
+
+	/**
+	 * Get the literal bytes every match of a pattern must begin with,
+	 * so that candidate positions can be found with {@link LuaString#indexOf(LuaString, int, int)}.
+	 * The pattern itself is searched for, so its skip table is found again by later calls.
+	 * @return the length of the literal prefix, or 0 if it is too short to be worth searching for
+	 */
+	private static int literalprefix(LuaString pat)
+	{
+		int n = pat.length();
+		int i = 0;
+		while(i < n && SPECIALS.indexOf((byte)pat.luaByte(i), 0) < 0 && pat.luaByte(i) != ')')
+			++i;
+		if(i < n)
+		{
+			switch(pat.luaByte(i))
+			{
+				case '*':
+				case '+':
+				case '?':
+				case '-':
+					--i; // the last literal is repeated or optional
+					break;
+			}
+		}
+		return i >= MIN_PREFIX ? i : 0;
+	}
+
 	// Pattern matching implementation
 
 	private static final int       L_ESC          = '%';
 	private static final LuaString SPECIALS       = valueOf("^$*+?.([%-");
 	private static final int       MAX_CAPTURES   = 32;
+	private static final int       MIN_PREFIX     = 2;
 
 	private static final int       CAP_UNFINISHED = -1;
 	private static final int       CAP_POSITION   = -2;
@@ -937,11 +1048,11 @@ public final class LibString extends LibFunction1
 					}
 					else if(b == '0')
 					{
-						lbuf.append(_s.substring(soff, e));
+						lbuf.append(_s.substringShared(soff, e));
 					}
 					else
 					{
-						lbuf.append(push_onecapture(b - '1', soff, e).strvalue());
+						lbuf.append(push_onecapture(b - '1', soff, e, true).strvalue());
 					}
 				}
 			}
@@ -962,7 +1073,7 @@ public final class LibString extends LibFunction1
 
 				case LuaValue.TTABLE:
 					// Need to call push_onecapture here for the error checking
-					repl = repl.get(push_onecapture(0, soffset, end));
+					repl = repl.get(push_onecapture(0, soffset, end, true));
 					break;
 
 				default:
@@ -972,7 +1083,7 @@ public final class LibString extends LibFunction1
 
 			if(!repl.toboolean())
 			{
-				repl = _s.substring(soffset, end);
+				repl = _s.substringShared(soffset, end);
 			}
 			else if(!repl.isstring())
 			{
@@ -989,20 +1100,25 @@ public final class LibString extends LibFunction1
 				case 0:
 					return NONE;
 				case 1:
-					return push_onecapture(0, soff, end);
+					return push_onecapture(0, soff, end, false);
 			}
 			LuaValue[] v = new LuaValue[nlevels];
 			for(int i = 0; i < nlevels; ++i)
-				v[i] = push_onecapture(i, soff, end);
+				v[i] = push_onecapture(i, soff, end, false);
 			return varargsOf(v);
 		}
 
-		private LuaValue push_onecapture(int i, int soff, int end)
+		/**
+		 * Get a capture as a value.
+		 * @param shared true if the value is consumed before the match completes,
+		 * so it can share the bytes of the subject string regardless of size
+		 */
+		private LuaValue push_onecapture(int i, int soff, int end, boolean shared)
 		{
 			if(i >= _level)
 			{
 				if(i == 0)
-				    return _s.substring(soff, end);
+				    return shared ? _s.substringShared(soff, end) : _s.substring(soff, end);
 				return error("invalid capture index");
 			}
 			int l = _clen[i];
@@ -1011,7 +1127,7 @@ public final class LibString extends LibFunction1
 			if(l == CAP_POSITION)
 			    return valueOf(_cinit[i] + 1);
 			int begin = _cinit[i];
-			return _s.substring(begin, begin + l);
+			return shared ? _s.substringShared(begin, begin + l) : _s.substring(begin, begin + l);
 		}
 
 		private int check_capture(int l)
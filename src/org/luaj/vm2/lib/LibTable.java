@@ -39,10 +39,16 @@ public final class LibTable extends LibFunction1
 		bind(t, LibTable.class, new String[] { "getn", "maxn", }, 1);
 		bind(t, TableLibV.class, new String[] { "remove", "concat", "insert", "sort", "foreach", "foreachi", });
 		_env.set("table", t);
-		LibPackage.instance.LOADED.set("table", t);
+		LibPackage.instance().LOADED.set("table", t);
 		return t;
 	}
 
+	@Override
+	public boolean canYield()
+	{
+		return false;
+	}
+
 	@Override
 	public LuaValue call(LuaValue arg)
 	{
@@ -60,6 +66,12 @@ public final class LibTable extends LibFunction1
 
 	static final class TableLibV extends LibFunctionV
 	{
+		@Override
+		public boolean canYield()
+		{
+			return _opcode != 0 && _opcode != 2; // not remove or insert
+		}
+
 		@Override
 		public Varargs invoke(Varargs args)
 		{
@@ -0,0 +1,108 @@
+package org.luaj.vm2.compiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaState;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.JsePlatform;
+
+/**
+ * Checks that chunks loaded from {@link BytecodeCache} entries behave like freshly compiled ones.
+ */
+public final class BytecodeCacheTest
+{
+	private static final String   SOURCE   = "return 9007199254740993, -9007199254740993, 9223372036854775807, -9223372036854775807, 12345\n";
+	private static final long[]   EXPECTED = { 9007199254740993L, -9007199254740993L, Long.MAX_VALUE, -Long.MAX_VALUE, 12345 };
+
+	private static LuaTable       _G;
+
+	public static void main(String[] args) throws Exception
+	{
+		_G = JsePlatform.standardGlobals();
+		File dir = createTempDir();
+		File cacheDir = BytecodeCache.cache_dir;
+		try
+		{
+			BytecodeCache.cache_dir = new File(dir, "cache");
+			File src = new File(dir, "big.lua");
+			FileOutputStream os = new FileOutputStream(src);
+			try
+			{
+				os.write(SOURCE.getBytes("UTF-8"));
+			}
+			finally
+			{
+				os.close();
+			}
+			testLongConstants(src);
+			LuaState.getDefault().setIntegerOnly(true);
+			try
+			{
+				testLongConstants(src);
+			}
+			finally
+			{
+				LuaState.getDefault().setIntegerOnly(false);
+			}
+		}
+		finally
+		{
+			BytecodeCache.cache_dir = cacheDir;
+			delete(dir);
+		}
+		System.out.println("BytecodeCacheTest: OK");
+	}
+
+	/** compile once to fill the entry, then again to load it, and check both results */
+	private static void testLongConstants(File src) throws IOException
+	{
+		long misses = BytecodeCache.getMissCount();
+		check(BytecodeCache.compile(src, "big"), "compiled");
+		assertTrue(BytecodeCache.getMissCount() == misses + 1, "first compile should miss the cache");
+		long hits = BytecodeCache.getHitCount();
+		check(BytecodeCache.compile(src, "big"), "cached");
+		assertTrue(BytecodeCache.getHitCount() == hits + 1, "second compile should hit the cache");
+	}
+
+	private static void check(Prototype p, String what)
+	{
+		Varargs v = new LuaClosure(p, _G).invoke(LuaValue.NONE);
+		assertTrue(v.narg() == EXPECTED.length, what + ": expected " + EXPECTED.length + " results, got " + v.narg());
+		for(int i = 0; i < EXPECTED.length; i++)
+		{
+			LuaValue r = v.arg(i + 1);
+			assertTrue(r.eq_b(LuaValue.valueOf(EXPECTED[i])) && r.tojstring().equals(Long.toString(EXPECTED[i])),
+			        what + ": result " + (i + 1) + " is " + r.tojstring() + ", expected " + EXPECTED[i]);
+		}
+	}
+
+	private static void assertTrue(boolean b, String msg)
+	{
+		if(!b)
+		    throw new AssertionError(msg);
+	}
+
+	private static File createTempDir() throws IOException
+	{
+		File dir = File.createTempFile("bccache", "");
+		if(!dir.delete() || !dir.mkdir())
+		    throw new IOException("cannot create " + dir);
+		return dir;
+	}
+
+	private static void delete(File f)
+	{
+		File[] files = f.listFiles();
+		if(files != null)
+		{
+			for(File c : files)
+				delete(c);
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,122 @@
+package org.luaj.vm2.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+
+/**
+ * Compiles chunks with and without {@link LuaC#lazy} and checks that they give the same errors and functions.
+ * <p>
+ * The stubs of deferred functions are compared with the eagerly compiled functions before they are compiled,
+ * since their upvalues decide the code of the enclosing function.
+ */
+public final class LazyBodyTest
+{
+	/** chunks with errors inside nested function bodies */
+	private static final String[] ERRORS = {
+	        "local function f() local x = = 1 end return 1",
+	        "local a = 1 local function f() break end",
+	        "return function() return function() x( end end",
+	        "local t = {} function t:m() return self. end",
+	        "local f = function() if true then return end",
+	};
+
+	/** chunks whose nested functions refer to outer locals in different ways */
+	private static final String[] CHUNKS = {
+	        // locals of the body shadow outer ones, also in a list
+	        "local a, b, c, d = 1, 2, 3, 4 local function f() local a, b = 10, 20 local function g() return c end return a + b + d, g end return f",
+	        // parameters, loop variables and nested functions shadow outer locals
+	        "local x, y, z = 1, 2, 3 return function(x) for y = 1, 2 do local function z() return x, y end end return z end",
+	        "local k, v = 1, 2 return function(t) for k, v in pairs(t) do return k, v end return k end",
+	        // fields and methods named like outer locals
+	        "local n, m = 1, 2 return function(t) return t.n, t:m(), { n = m } end",
+	        // first reference order decides the upvalue order
+	        "local a, b, c = 1, 2, 3 return function() local r = c + b r = r + a return function() return b, a end end",
+	        // repeat scope reaches the condition
+	        "local i = 0 return function() repeat local i = 1 until i > 0 return i end",
+	};
+
+	public static void main(String[] args) throws Exception
+	{
+		LuaValue.valueOf(1);
+		boolean lazy = LuaC.lazy;
+		try
+		{
+			for(String s : ERRORS)
+				checkError(s);
+			for(String s : CHUNKS)
+				check(s);
+			StringBuilder sb = new StringBuilder();
+			for(int i = 1; i <= LuaC.LUAI_MAXUPVALUES + 1; i++)
+				sb.append("local v").append(i).append(" = ").append(i).append('\n');
+			sb.append("return function() local v1, v2 = 0, 0\n");
+			for(int i = 1; i <= LuaC.LUAI_MAXUPVALUES + 1; i++)
+				sb.append("v").append(i).append(" = 1\n");
+			sb.append("end");
+			check(sb.toString());
+		}
+		finally
+		{
+			LuaC.lazy = lazy;
+		}
+		System.out.println("LazyBodyTest: OK");
+	}
+
+	private static void checkError(String chunk) throws IOException
+	{
+		String expected = error(chunk, false), actual = error(chunk, true);
+		assertTrue(expected != null, "no error: " + chunk);
+		assertTrue(expected.equals(actual), "errors differ: " + chunk + "\n  eager: " + expected + "\n  lazy:  " + actual);
+	}
+
+	private static String error(String chunk, boolean lazy) throws IOException
+	{
+		try
+		{
+			compile(chunk, lazy);
+			return null;
+		}
+		catch(LuaError e)
+		{
+			return e.getMessage();
+		}
+	}
+
+	private static void check(String chunk) throws IOException
+	{
+		Prototype eager = compile(chunk, false);
+		Prototype lazy = compile(chunk, true);
+		for(int i = 0; i < eager.p.length; i++)
+		{
+			assertTrue(lazy.p[i].lazy != null, "function " + (i + 1) + " is not deferred: " + chunk);
+			assertTrue(lazy.p[i].nups == eager.p[i].nups && Arrays.equals(lazy.p[i].upvalues, eager.p[i].upvalues),
+			        "upvalues of function " + (i + 1) + " differ: " + chunk + "\n  eager: " + Arrays.toString(eager.p[i].upvalues) +
+			                "\n  lazy:  " + Arrays.toString(lazy.p[i].upvalues));
+		}
+		assertTrue(Arrays.equals(dump(eager), dump(lazy)), "dumped code differs: " + chunk);
+	}
+
+	private static Prototype compile(String chunk, boolean lazy) throws IOException
+	{
+		LuaC.lazy = lazy;
+		byte[] b = chunk.getBytes("UTF-8");
+		return LuaC.compile(b, 0, b.length, "test");
+	}
+
+	/** dump with debug information, which compiles all deferred functions */
+	private static byte[] dump(Prototype p) throws IOException
+	{
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		DumpState.dump(p, os, false);
+		return os.toByteArray();
+	}
+
+	private static void assertTrue(boolean b, String msg)
+	{
+		if(!b)
+		    throw new AssertionError(msg);
+	}
+}
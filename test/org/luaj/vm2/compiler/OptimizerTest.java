@@ -0,0 +1,124 @@
+package org.luaj.vm2.compiler;
+
+import java.io.IOException;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.JsePlatform;
+
+/**
+ * Runs chunks compiled with and without {@link LuaC#optimize} and checks that they give the same results.
+ * <p>
+ * The optimizer keeps the code as compiled if its result fails the check,
+ * so chunks which it is expected to shorten are also checked for fewer instructions.
+ */
+public final class OptimizerTest
+{
+	/** chunks the optimizer is expected to shorten */
+	private static final String[] SHORTENED = {
+	        // dead code and jumps to returns
+	        "local function f(x) if x then return 1 else return 2 end return 3 end return f(true), f(false)",
+	        // tests of known values
+	        "local a, r = 5, {} if not (a > 3) then r[1] = 'no' else r[1] = 'yes' end if nil then r[2] = 1 end return r[1], r[2]",
+	        "local a = true if a then return 1 end return 2",
+	        "local x = 1 do local x = 2 end local y = x and nil return x, y, y or false",
+	        // loads of values the registers already hold
+	        "local a, b, c return a, b, c",
+	        // NOT into a temporary which is only tested
+	        "local function k(a) local b = not a if b then return 1 end return 2 end return k(nil), k(1)",
+	        // jump threading in loops
+	        "local s = 0 for i = 1, 10 do if i % 2 == 0 then s = s + i end end local j = 0 while true do j = j + 1 if j > 5 then break end end return s, j",
+	};
+
+	/** chunks which only have to keep their results */
+	private static final String[] UNCHANGED = {
+	        "local a = 2 * 3 + 1 local b = -(-4) return a, b, not nil, a .. ''",
+	        "local function g(a, b) if not (a == b) then return 'ne' end return 'eq' end return g(1, 2), g(3, 3)",
+	        "local function w(a) while a do if a > 3 then break end a = a + 1 end return a end return w(1)",
+	        "local a, b = nil, 3 return a and b or 'x', (a or b) and 'y', not (a == b), a == nil",
+	        "local t = {} for i = 1, 3 do t[i] = function() return i end end local x = 1 local function g() x = x + 1 return x end g() return t[1]() + t[3](), x",
+	        "local n = 0 repeat local m = n n = m + 1 until n >= 4 return n",
+	        "local function v(...) return select('#', ...), ... end return v(1, nil, 3)",
+	        "local t = { 1, 2, x = 'y', [10] = 'z' } return #t, t.x, t[10], '10' + 1, 7 % 3, 2 ^ 10",
+	        "local ok, e = pcall(function() local a = nil return a.b end) return ok, e ~= nil",
+	        "local function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end return fib(15)",
+	        "local s = '' for k, v in ipairs({ 'a', 'b', 'c' }) do s = s .. k .. v end return s",
+	        "local a = nil return a.b",
+	};
+
+	public static void main(String[] args) throws Exception
+	{
+		LuaValue.valueOf(1);
+		boolean optimize = LuaC.optimize;
+		try
+		{
+			for(String s : SHORTENED)
+				check(s, true);
+			for(String s : UNCHANGED)
+				check(s, false);
+		}
+		finally
+		{
+			LuaC.optimize = optimize;
+		}
+		System.out.println("OptimizerTest: OK");
+	}
+
+	private static void check(String chunk, boolean shortened) throws IOException
+	{
+		// count right after compiling, so deferred bodies are compiled with the same setting
+		LuaC.optimize = false;
+		Prototype plain = compile(chunk);
+		int n = count(plain);
+		LuaC.optimize = true;
+		Prototype optimized = compile(chunk);
+		int m = count(optimized);
+		assertTrue(m <= n, "optimized code is longer (" + m + " > " + n + "): " + chunk);
+		if(shortened)
+		    assertTrue(m < n, "optimized code is not shorter (" + n + " instructions): " + chunk);
+		String expected = run(plain), actual = run(optimized);
+		assertTrue(expected.equals(actual), "results differ: " + chunk + "\n  plain:     " + expected + "\n  optimized: " + actual);
+	}
+
+	private static Prototype compile(String chunk) throws IOException
+	{
+		byte[] b = chunk.getBytes("UTF-8");
+		return LuaC.compile(b, 0, b.length, "test");
+	}
+
+	/** @return number of instructions of a function and all functions nested in it */
+	private static int count(Prototype p)
+	{
+		p.compile();
+		int n = p.code.length;
+		for(Prototype q : p.p)
+			n += count(q);
+		return n;
+	}
+
+	private static String run(Prototype p)
+	{
+		LuaTable _G = JsePlatform.standardGlobals();
+		StringBuilder sb = new StringBuilder();
+		try
+		{
+			Varargs v = new LuaClosure(p, _G).invoke(LuaValue.NONE);
+			for(int i = 1; i <= v.narg(); i++)
+				sb.append(v.arg(i).typename()).append(':').append(v.arg(i).tojstring()).append(' ');
+		}
+		catch(LuaError e)
+		{
+			sb.append("error: ").append(e.getMessage());
+		}
+		return sb.toString();
+	}
+
+	private static void assertTrue(boolean b, String msg)
+	{
+		if(!b)
+		    throw new AssertionError(msg);
+	}
+}